@@ -0,0 +1,105 @@
+package com.tssaumi.tcpredirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link TCPFwd.BytesQueue} between READ and WRITE side: put and take of pooled buffers,
+ * including byte/memory accounting and {@link MemoryBudget}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Group)
+public class BytesQueueBenchmark {
+
+    /**
+     * Producer waits while more than this is queued, as READ side does under backpressure.
+     */
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+
+    @Param({"1024", "16384"})
+    public int chunkSize;
+
+    private TCPFwd.BytesQueue q;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        q = new TCPFwd.BytesQueue(1, new AtomicInteger());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        q.discard();
+    }
+
+    /**
+     * Same thread put then take, cost without contention.
+     */
+    @Benchmark
+    @Group("single")
+    public PooledBuffer putTake() throws InterruptedException {
+        q.put(chunk());
+        PooledBuffer e = q.take();
+        e.release();
+        return e;
+    }
+
+    @Benchmark
+    @Group("handover")
+    @GroupThreads(1)
+    public void put(Control control) throws InterruptedException {
+        while(q.getMemory() > MAX_QUEUED_BYTES) {
+            if(control.stopMeasurement) {
+                // consumer may have stopped already
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        q.put(chunk());
+    }
+
+    /**
+     * Poll instead of take, so the benchmark never blocks at end of iteration.
+     */
+    @Benchmark
+    @Group("handover")
+    @GroupThreads(1)
+    public PooledBuffer take(Control control) {
+        PooledBuffer e;
+        while((e = q.poll()) == null) {
+            if(control.stopMeasurement) {
+                return null;
+            }
+            Thread.onSpinWait();
+        }
+        e.release();
+        return e;
+    }
+
+    private PooledBuffer chunk() {
+        PooledBuffer pooled = BufferPool.acquire(chunkSize, false);
+        pooled.buffer().position(chunkSize);
+        pooled.buffer().flip();
+        return pooled;
+    }
+}
@@ -0,0 +1,127 @@
+package com.tssaumi.tcpredirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end forwarding on loopback: benchmark client >>> forwarder >>> echo server >>> forwarder >>> client.<BR>
+ * One operation sends {@link #BLOCK_SIZE} bytes in writes of chunkSize and reads them back,
+ * so small chunks measure the READ to WRITE hand over and the gathering writes of {@link TCPFwd}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Thread)
+public class ForwardingBenchmark {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    @Param({"THREAD", "NIO"})
+    public Config.Engine engine;
+
+    @Param({"512", "16384"})
+    public int chunkSize;
+
+    /**
+     * TCP_NODELAY on forwarder sockets. With Nagle, a partial segment written by the forwarder
+     * waits for the delayed ACK of the peer.
+     */
+    @Param({"false", "true"})
+    public boolean noDelay;
+
+    private ServerSocket echoServer;
+    private Thread echoThread;
+    private SocketChannel client;
+    private ByteBuffer[] chunks;
+    private ByteBuffer readBuf;
+
+    @Setup
+    public void setup() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        echoServer = new ServerSocket(0, 50, loopback);
+        echoThread = new Thread(this::echo, "Echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        Config.engine = engine;
+        try(ServerSocketChannel entry = ServerSocketChannel.open()) {
+            entry.bind(new InetSocketAddress(loopback, 0));
+            // no Nagle on the benchmark's own ends, forwarder sockets keep their defaults
+            client = SocketChannel.open(entry.getLocalAddress());
+            client.socket().setTcpNoDelay(true);
+            SocketChannel clientSide = entry.accept();
+            SocketChannel serverSide = SocketChannel.open(echoServer.getLocalSocketAddress());
+            clientSide.socket().setTcpNoDelay(noDelay);
+            serverSide.socket().setTcpNoDelay(noDelay);
+            Forwarders.start(1, clientSide.socket(), serverSide.socket());
+        }
+
+        chunks = new ByteBuffer[BLOCK_SIZE / chunkSize];
+        for(int i=0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize);
+        }
+        readBuf = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    }
+
+    private void echo() {
+        try(Socket s = echoServer.accept()) {
+            s.setTcpNoDelay(true);
+            InputStream is = s.getInputStream();
+            OutputStream os = s.getOutputStream();
+            byte[] buf = new byte[BLOCK_SIZE];
+            int len;
+            while((len = is.read(buf)) >= 0) {
+                os.write(buf, 0, len);
+            }
+        } catch(IOException e) {
+            // closed by tear down
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        echoServer.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        for(ByteBuffer chunk : chunks) {
+            chunk.clear();
+            while(chunk.hasRemaining()) {
+                client.write(chunk);
+            }
+        }
+        readBuf.clear();
+        while(readBuf.hasRemaining()) {
+            if(client.read(readBuf) < 0) {
+                throw new IOException("Forwarding closed");
+            }
+        }
+        return readBuf.position();
+    }
+}
@@ -0,0 +1,89 @@
+package com.tssaumi.tcpredirect;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of agent requests and parsing of them by {@link HandShakeThread#handShake}, version 1 and 2.
+ * Parsing reads from memory, the socket is only used for its options.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+@State(Scope.Thread)
+public class HandShakeBenchmark {
+
+    private static final String CHANNEL = "BENCH_CHANNEL";
+
+    private TCPRedirectServer server;
+    private RedirectTarget target;
+    private byte[] channelBytes;
+    private Capabilities caps;
+    private byte[] requestV1;
+    private byte[] requestV2;
+    private Socket socket;
+
+    @Setup
+    public void setup() throws Exception {
+        // not started, only the channels are used
+        Properties props = new Properties();
+        props.setProperty("local.port", "1");
+        props.setProperty("target.1", CHANNEL + ",127.0.0.1,1");
+        server = new TCPRedirectServer(props);
+        target = server.getTarget(CHANNEL);
+
+        channelBytes = CHANNEL.getBytes(StandardCharsets.UTF_8);
+        caps = Capabilities.of(target);
+        requestV1 = HandShakeFrame.encodeV1(CHANNEL);
+        requestV2 = HandShakeFrame.encodeRequest(channelBytes, 0, caps);
+        socket = new Socket();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        socket.close();
+    }
+
+    @Benchmark
+    public byte[] encodeV1() {
+        return HandShakeFrame.encodeV1(CHANNEL);
+    }
+
+    @Benchmark
+    public byte[] encodeV2() {
+        return HandShakeFrame.encodeRequest(channelBytes, 0, caps);
+    }
+
+    @Benchmark
+    public RedirectTarget parseV1() throws IOException {
+        HandShakeThread hs = new HandShakeThread(socket, server);
+        hs.handShake(socket, new ByteArrayInputStream(requestV1), OutputStream.nullOutputStream());
+        return hs.target;
+    }
+
+    @Benchmark
+    public RedirectTarget parseV2() throws IOException {
+        HandShakeThread hs = new HandShakeThread(socket, server);
+        hs.handShake(socket, new ByteArrayInputStream(requestV2), OutputStream.nullOutputStream());
+        return hs.target;
+    }
+}
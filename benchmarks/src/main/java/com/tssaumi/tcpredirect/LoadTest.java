@@ -0,0 +1,498 @@
+package com.tssaumi.tcpredirect;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Load test of the server + agent topology in one JVM, all on loopback:<BR>
+ * load generator >>> agent >>> redirect server >>> backend<BR>
+ * <BR>
+ * Backend (mode):
+ * <UL>
+ *     <LI>echo: send back everything. A request is payload bytes out and back.</LI>
+ *     <LI>rr: request/response, read payload bytes then reply response bytes.</LI>
+ *     <LI>sink: read and discard. Throughput only.</LI>
+ *     <LI>eof: read until end of stream, then reply byte count and CRC32 of the data. A request is one connection sending payload bytes
+ *     and shutting down its output, a reply not matching what was sent is an error. Checks that the last bytes before end of stream are not lost,
+ *     e.g. compression=deflate payload=65536.</LI>
+ * </UL>
+ * Latencies reported: connect (TCP connect to agent), first reply (connect until first response, whole path set up),
+ * round trip (one request). Only connections opened during measurement count, see reconnect.<BR>
+ * Arguments are name=value:
+ * <UL>
+ *     <LI>mode (echo), connections (50), duration.s (10), warmup.s (2), payload (1024), response (payload)</LI>
+ *     <LI>reconnect: open a new connection after this many requests, 0 = keep (default 0)</LI>
+ *     <LI>direct=Y: connect the backend directly, baseline without tcp-redirect</LI>
+ *     <LI>idle: extra connections kept idle like members of a connection pool, one request when opened and one after warm up.
+ *     Pooled buffer memory they hold is reported at the end (default 0)</LI>
+ *     <LI>server.NAME / agent.NAME: option of server or agent only. Other names go to both, e.g. fwd.engine=nio.
+ *     Global options ({@link Config}) are shared by both in one JVM, the agent wins.</LI>
+ * </UL>
+ * Example: java -cp target/benchmarks.jar com.tssaumi.tcpredirect.LoadTest mode=rr connections=200 payload=200 response=4096
+ */
+public class LoadTest {
+
+    private static final String CHANNEL = "LOAD";
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final Map<String, String> args;
+    private final String mode;
+    private final int connections;
+    private final long durationMs;
+    private final long warmupMs;
+    private final int payload;
+    private final int response;
+    private final int reconnect;
+    private final boolean direct;
+    private final int idle;
+
+    private volatile boolean running = true;
+    private volatile boolean measuring = false;
+
+    // measured after warm up
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final LongAdder sinkBytes = new LongAdder();
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+
+    public LoadTest(Map<String, String> args) {
+        this.args = args;
+        this.mode = args.getOrDefault("mode", "echo");
+        this.connections = Integer.parseInt(args.getOrDefault("connections", "50"));
+        this.durationMs = Long.parseLong(args.getOrDefault("duration.s", "10")) * 1000L;
+        this.warmupMs = Long.parseLong(args.getOrDefault("warmup.s", "2")) * 1000L;
+        this.payload = Integer.parseInt(args.getOrDefault("payload", "1024"));
+        this.response = Integer.parseInt(args.getOrDefault("response", Integer.toString(payload)));
+        this.reconnect = Integer.parseInt(args.getOrDefault("reconnect", "0"));
+        this.direct = "Y".equalsIgnoreCase(args.getOrDefault("direct", "N"));
+        this.idle = Integer.parseInt(args.getOrDefault("idle", "0"));
+        if(Arrays.asList("echo", "rr", "sink", "eof").contains(mode) == false) {
+            throw new IllegalArgumentException("Invalid mode: " + mode);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if(System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            // connection logs would dominate the measurement, failures are counted as errors
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "off");
+        }
+        Map<String, String> args = new TreeMap<>();
+        for(String arg : argv) {
+            int i = arg.indexOf('=');
+            if(i <= 0) {
+                throw new IllegalArgumentException("Argument must be name=value: " + arg);
+            }
+            args.put(arg.substring(0, i).trim(), arg.substring(i + 1).trim());
+        }
+        new LoadTest(args).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        ServerSocket backend = new ServerSocket(0, 1024, LOOPBACK);
+        startDaemon("Backend", () -> acceptBackend(backend));
+
+        TCPRedirectServer server = null;
+        TCPRedirect agent = null;
+        int entryPort = backend.getLocalPort();
+        if(direct == false) {
+            int serverPort = freePort();
+            int agentPort = freePort();
+
+            Properties serverProps = props("server.");
+            serverProps.setProperty("local.port", Integer.toString(serverPort));
+            serverProps.setProperty("bind.addr", LOOPBACK.getHostAddress());
+            serverProps.setProperty("target.1", CHANNEL + "," + LOOPBACK.getHostAddress() + "," + backend.getLocalPort());
+            server = new TCPRedirectServer(serverProps);
+            server.start();
+
+            Properties agentProps = props("agent.");
+            agentProps.setProperty("redirect.server.host", LOOPBACK.getHostAddress());
+            agentProps.setProperty("redirect.server.port", Integer.toString(serverPort));
+            agentProps.setProperty("channel." + CHANNEL, LOOPBACK.getHostAddress() + ":" + agentPort);
+            agent = new TCPRedirect(agentProps);
+            agent.start();
+
+            entryPort = agentPort;
+            awaitListening(serverPort);
+            awaitListening(agentPort);
+        }
+
+        System.out.printf(Locale.ROOT, "mode=%s connections=%d payload=%d response=%d reconnect=%d direct=%s engine=%s%n",
+                mode, connections, payload, replySize(), reconnect, direct, Config.engine);
+
+        List<Socket> idleSockets = new ArrayList<>();
+        for(int i=0; i < idle; i++) {
+            Socket s = new Socket(LOOPBACK, entryPort);
+            s.setTcpNoDelay(true);
+            idleSockets.add(s);
+            touch(s);
+        }
+        for(int i=0; i < connections; i++) {
+            Worker w = new Worker(i, entryPort);
+            workers.add(w);
+            workerThreads.add(startDaemon("Load-" + i, w));
+        }
+        Thread.sleep(warmupMs);
+        for(Socket s : idleSockets) {
+            touch(s);
+        }
+        long sinkStart = sinkBytes.sum();
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationMs);
+        measuring = false;
+        long elapsedNs = System.nanoTime() - start;
+        long sunk = sinkBytes.sum() - sinkStart;
+        running = false;
+        for(Thread t : workerThreads) {
+            // samples are read after workers stopped
+            t.join(5000L);
+        }
+
+        report(elapsedNs, sunk);
+        if(idle > 0) {
+            // only idle connections left once closing of workers' connections settled
+            Thread.sleep(1000L);
+            long held = BufferPool.getLiveBytes();
+            System.out.printf(Locale.ROOT, "idle:        %d connections hold %d bytes of buffers (%d per connection)%n", idle, held, held / idle);
+        }
+        for(Socket s : idleSockets) {
+            s.close();
+        }
+
+        if(agent != null) {
+            agent.stop();
+        }
+        if(server != null) {
+            server.stop();
+        }
+        backend.close();
+    }
+
+    /**
+     * Options of one side: "prefix.NAME" and names without side prefix.
+     */
+    private Properties props(String prefix) {
+        Properties props = new Properties();
+        for(Map.Entry<String, String> e : args.entrySet()) {
+            String name = e.getKey();
+            if(name.startsWith(prefix)) {
+                props.setProperty(name.substring(prefix.length()), e.getValue());
+            } else if(name.startsWith("server.") == false && name.startsWith("agent.") == false) {
+                props.setProperty(name, e.getValue());
+            }
+        }
+        return props;
+    }
+
+    private int replySize() {
+        switch(mode) {
+            case "rr":
+                return response;
+            case "eof":
+                return 16;
+            default:
+                return payload;
+        }
+    }
+
+    /**
+     * One request on an idle connection.
+     */
+    private void touch(Socket s) throws IOException {
+        s.getOutputStream().write(new byte[payload]);
+        if(mode.equals("sink") == false && mode.equals("eof") == false) {
+            new DataInputStream(s.getInputStream()).readFully(new byte[replySize()]);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket ss = new ServerSocket(0, 1, LOOPBACK)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while(true) {
+            try(Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(LOOPBACK, port), 1000);
+                return;
+            } catch(IOException e) {
+                if(System.currentTimeMillis() > deadline) {
+                    throw new IOException("Port " + port + " not listening", e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static Thread startDaemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    // ---------------------------------------------------------------- backend
+
+    private void acceptBackend(ServerSocket backend) {
+        try {
+            while(true) {
+                Socket s = backend.accept();
+                startDaemon("Backend-" + s.getPort(), () -> serve(s));
+            }
+        } catch(IOException e) {
+            // closed at end of test
+        }
+    }
+
+    private void serve(Socket s) {
+        try(Socket socket = s) {
+            socket.setTcpNoDelay(true);
+            InputStream is = socket.getInputStream();
+            OutputStream os = socket.getOutputStream();
+            byte[] buf = new byte[Math.max(65536, payload)];
+            switch(mode) {
+                case "echo": {
+                    int len;
+                    while((len = is.read(buf)) >= 0) {
+                        os.write(buf, 0, len);
+                    }
+                    break;
+                }
+                case "sink": {
+                    int len;
+                    while((len = is.read(buf)) >= 0) {
+                        sinkBytes.add(len);
+                    }
+                    break;
+                }
+                case "eof": {
+                    CRC32 crc = new CRC32();
+                    long count = 0;
+                    int len;
+                    while((len = is.read(buf)) >= 0) {
+                        crc.update(buf, 0, len);
+                        count += len;
+                    }
+                    DataOutputStream out = new DataOutputStream(os);
+                    out.writeLong(count);
+                    out.writeLong(crc.getValue());
+                    out.flush();
+                    break;
+                }
+                default: {
+                    DataInputStream in = new DataInputStream(is);
+                    byte[] resp = new byte[response];
+                    while(true) {
+                        in.readFully(buf, 0, payload);
+                        os.write(resp);
+                    }
+                }
+            }
+        } catch(IOException e) {
+            // client closed
+        }
+    }
+
+    // ---------------------------------------------------------------- load generator
+
+    /**
+     * One connection of the load generator, reconnect on error or after {@link #reconnect} requests.
+     */
+    class Worker implements Runnable {
+        private final int id;
+        private final int port;
+        private final byte[] request;
+        private final byte[] reply;
+        final Samples connectNs = new Samples();
+        final Samples firstReplyNs = new Samples();
+        final Samples roundTripNs = new Samples();
+
+        Worker(int id, int port) {
+            this.id = id;
+            this.port = port;
+            this.request = new byte[payload];
+            Arrays.fill(request, (byte)('a' + id % 26));
+            this.reply = new byte[replySize()];
+        }
+
+        @Override
+        public void run() {
+            while(running) {
+                long connectStart = System.nanoTime();
+                try(Socket socket = new Socket()) {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(LOOPBACK, port));
+                    record(connectNs, System.nanoTime() - connectStart);
+                    DataInputStream is = new DataInputStream(socket.getInputStream());
+                    OutputStream os = socket.getOutputStream();
+                    if(mode.equals("sink")) {
+                        while(running) {
+                            os.write(request);
+                        }
+                        break;
+                    }
+                    if(mode.equals("eof")) {
+                        sendAndShutdown(socket, is, os, connectStart);
+                        continue;
+                    }
+                    int count = 0;
+                    while(running && (reconnect <= 0 || count < reconnect)) {
+                        long t0 = System.nanoTime();
+                        os.write(request);
+                        is.readFully(reply);
+                        long t1 = System.nanoTime();
+                        if(count == 0) {
+                            // first reply proves the whole path is set up
+                            record(firstReplyNs, t1 - connectStart);
+                        }
+                        record(roundTripNs, t1 - t0);
+                        if(measuring) {
+                            requests.increment();
+                            sentBytes.add(request.length);
+                            receivedBytes.add(reply.length);
+                        }
+                        count++;
+                    }
+                } catch(IOException e) {
+                    if(running && measuring) {
+                        errors.increment();
+                    }
+                }
+            }
+        }
+
+        /**
+         * One request per connection: payload then end of stream, reply must match it.
+         */
+        private void sendAndShutdown(Socket socket, DataInputStream is, OutputStream os, long connectStart) throws IOException {
+            long t0 = System.nanoTime();
+            os.write(request);
+            socket.shutdownOutput();
+            is.readFully(reply);
+            long t1 = System.nanoTime();
+            record(firstReplyNs, t1 - connectStart);
+            record(roundTripNs, t1 - t0);
+            CRC32 crc = new CRC32();
+            crc.update(request);
+            ByteBuffer r = ByteBuffer.wrap(reply);
+            if(r.getLong() != request.length || r.getLong() != crc.getValue()) {
+                throw new IOException("Data lost before end of stream");
+            }
+            if(measuring) {
+                requests.increment();
+                sentBytes.add(request.length);
+                receivedBytes.add(reply.length);
+            }
+        }
+
+        private void record(Samples samples, long ns) {
+            if(measuring) {
+                samples.add(ns);
+            }
+        }
+    }
+
+    /**
+     * Latencies recorded by one worker thread.
+     */
+    static class Samples {
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        void add(long v) {
+            if(size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = v;
+        }
+
+        static long[] merge(List<Samples> list) {
+            int total = 0;
+            for(Samples s : list) {
+                total += s.size;
+            }
+            long[] all = new long[total];
+            int pos = 0;
+            for(Samples s : list) {
+                System.arraycopy(s.values, 0, all, pos, s.size);
+                pos += s.size;
+            }
+            Arrays.sort(all);
+            return all;
+        }
+    }
+
+    // ---------------------------------------------------------------- report
+
+    private void report(long elapsedNs, long sunk) {
+        double seconds = elapsedNs / 1e9;
+        List<Samples> connects = new ArrayList<>();
+        List<Samples> firstReplies = new ArrayList<>();
+        List<Samples> roundTrips = new ArrayList<>();
+        for(Worker w : workers) {
+            connects.add(w.connectNs);
+            firstReplies.add(w.firstReplyNs);
+            roundTrips.add(w.roundTripNs);
+        }
+        long[] connect = Samples.merge(connects);
+        long[] firstReply = Samples.merge(firstReplies);
+        long[] roundTrip = Samples.merge(roundTrips);
+
+        System.out.printf(Locale.ROOT, "duration: %.1fs%n", seconds);
+        if(mode.equals("sink")) {
+            System.out.printf(Locale.ROOT, "throughput: %.1f MB/s%n", sunk / seconds / 1e6);
+        } else {
+            System.out.printf(Locale.ROOT, "requests: %d (%.0f/s) errors: %d%n", requests.sum(), requests.sum() / seconds, errors.sum());
+            System.out.printf(Locale.ROOT, "throughput: %.1f MB/s sent, %.1f MB/s received%n",
+                    sentBytes.sum() / seconds / 1e6, receivedBytes.sum() / seconds / 1e6);
+        }
+        System.out.println("connect:     " + (connect.length > 0 ? percentiles(connect) : "n=0 (connected during warm up, see reconnect)"));
+        if(mode.equals("sink") == false) {
+            System.out.println("first reply: " + percentiles(firstReply));
+            System.out.println("round trip:  " + percentiles(roundTrip));
+        }
+    }
+
+    private static String percentiles(long[] sorted) {
+        if(sorted.length == 0) {
+            return "n=0";
+        }
+        return String.format(Locale.ROOT, "n=%d p50=%s p99=%s p999=%s max=%s", sorted.length,
+                micros(percentile(sorted, 0.50)), micros(percentile(sorted, 0.99)),
+                micros(percentile(sorted, 0.999)), micros(sorted[sorted.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int i = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+    }
+
+    private static String micros(long ns) {
+        return String.format(Locale.ROOT, "%.1fus", ns / 1e3);
+    }
+}
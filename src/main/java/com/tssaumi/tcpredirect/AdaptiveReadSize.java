@@ -0,0 +1,68 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Size of the next read buffer of one direction, adapted to the data read so far. Used by one thread only.<BR>
+ * Start from the smallest size class of {@link BufferPool}, go one class up whenever a read fills the buffer
+ * (up to the buffer size of the connection), one class down after {@link #SHRINK_AFTER} reads in a row
+ * that would fit in the smaller class.<BR>
+ * A blocking read holds its buffer until data arrives, so after a read that waited longer than
+ * {@link Config#bufferIdleMs} and emptied the socket, the next read uses the smallest class:
+ * a sporadic connection (e.g. idle member of a DB pool) then waits with a few hundred bytes only.
+ * When that read fills the buffer, the class learned before is used again at once.
+ */
+public class AdaptiveReadSize {
+
+    private static final int SHRINK_AFTER = 2;
+
+    private final int maxIndex;
+    private int index;
+    private int smallReads = 0;
+    private boolean probe = false;
+
+    /**
+     * @param maxSize buffer size of the connection, rounded up to a size class.
+     */
+    public AdaptiveReadSize(int maxSize) {
+        this.maxIndex = BufferPool.classIndex(maxSize);
+        this.index = (Config.bufferAdaptive ? 0 : maxIndex);
+    }
+
+    /**
+     * Minimum size of the next read buffer.
+     */
+    public int next() {
+        return BufferPool.SIZE_CLASSES[probe ? 0 : index];
+    }
+
+    /**
+     * Record result of a read.
+     * @param capacity size of the buffer read into.
+     * @param len bytes read.
+     * @param waitedNs time blocked in read, 0 if not known.
+     */
+    public void record(int capacity, int len, long waitedNs) {
+        if(Config.bufferAdaptive == false) {
+            return;
+        }
+        if(len >= capacity) {
+            // more data likely waiting
+            if(probe) {
+                probe = false;
+            } else if(index < maxIndex) {
+                index++;
+            }
+            smallReads = 0;
+            return;
+        }
+        if(index > 0 && len <= BufferPool.SIZE_CLASSES[index - 1]) {
+            if(++smallReads >= SHRINK_AFTER) {
+                index--;
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+        long idleMs = Config.bufferIdleMs;
+        probe = (idleMs > 0 && waitedNs >= idleMs * 1_000_000L);
+    }
+}
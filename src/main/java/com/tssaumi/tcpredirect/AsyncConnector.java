@@ -0,0 +1,287 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking upstream connect, all in progress connects are served by a single selector thread.<BR>
+ * When a host has several addresses, the next address is tried every stagger interval
+ * (or at once when an attempt fails) while earlier attempts keep going, the first connected wins
+ * and the others are closed. Whole race is bound by a timeout.
+ */
+@Slf4j
+public class AsyncConnector {
+
+    private static volatile AsyncConnector instance = null;
+
+    public static AsyncConnector getInstance() throws IOException {
+        AsyncConnector connector = instance;
+        if(connector == null) {
+            synchronized(AsyncConnector.class) {
+                connector = instance;
+                if(connector == null) {
+                    connector = new AsyncConnector();
+                    instance = connector;
+                }
+            }
+        }
+        return connector;
+    }
+
+    /**
+     * Connect to host:port, resolved by {@link Resolver}.
+     * @return blocking socket created from channel.
+     */
+    public static Socket connect(String host, int port, long dnsTtlMs, long staggerMs, long timeoutMs) throws IOException {
+        InetAddress[] addresses = Resolver.resolve(host, dnsTtlMs);
+        CompletableFuture<SocketChannel> future = getInstance().connect(addresses, port, staggerMs, timeoutMs);
+        try {
+            // race is timed out by the connector, wait a little longer
+            return future.get(timeoutMs + 1000L, TimeUnit.MILLISECONDS).socket();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Fail to connect " + host + ":" + port, e.getCause());
+        } catch(InterruptedException | TimeoutException e) {
+            future.whenComplete((ch, ex) -> closeQuietly(ch));
+            throw new SocketTimeoutException("Connect timeout " + host + ":" + port);
+        }
+    }
+
+    /**
+     * Attempts to the addresses of one host.
+     */
+    private class Race {
+        final InetAddress[] addresses;
+        final int port;
+        final long staggerNs;
+        final long deadlineNs;
+        final CompletableFuture<SocketChannel> result = new CompletableFuture<>();
+        final List<SocketChannel> attempts = new ArrayList<>();
+        int next = 0;
+        long nextStartNs = 0L;
+        IOException lastError = null;
+        SocketChannel winner = null;
+        boolean done = false;	// won, failed or timed out
+
+        Race(InetAddress[] addresses, int port, long staggerMs, long timeoutMs) {
+            this.addresses = addresses;
+            this.port = port;
+            this.staggerNs = staggerMs * 1_000_000L;
+            this.deadlineNs = System.nanoTime() + timeoutMs * 1_000_000L;
+        }
+
+        /**
+         * Start attempt to next address. Called by selector thread.
+         */
+        void startNext(long now) {
+            InetAddress address = addresses[next++];
+            nextStartNs = now + staggerNs;
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                if(ch.connect(new InetSocketAddress(address, port))) {
+                    win(ch);
+                    return;
+                }
+                ch.register(selector, SelectionKey.OP_CONNECT, this);
+                attempts.add(ch);
+            } catch(IOException e) {
+                closeQuietly(ch);
+                attemptFailed(address, e);
+            }
+        }
+
+        void attemptFailed(Object address, IOException e) {
+            log.debug("Connect {}:{} failed: {}", address, port, e.toString());
+            lastError = e;
+            if(attempts.isEmpty() && next >= addresses.length) {
+                finish(null, lastError);
+            } else if(next < addresses.length) {
+                // don't wait for stagger interval
+                nextStartNs = 0L;
+            }
+        }
+
+        void win(SocketChannel ch) {
+            for(SocketChannel other : attempts) {
+                if(other != ch) {
+                    closeQuietly(other);
+                }
+            }
+            attempts.clear();
+            finish(ch, null);
+        }
+
+        void finish(SocketChannel ch, IOException error) {
+            done = true;
+            races.remove(this);
+            if(ch == null) {
+                for(SocketChannel other : attempts) {
+                    closeQuietly(other);
+                }
+                attempts.clear();
+                result.completeExceptionally(error);
+            } else {
+                winners.add(this);
+                winner = ch;
+            }
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Race> pending = new ConcurrentLinkedQueue<>();
+    // accessed by selector thread only
+    private final List<Race> races = new ArrayList<>();
+    private final List<Race> winners = new ArrayList<>();
+
+    private AsyncConnector() throws IOException {
+        selector = Selector.open();
+        Thread t = new Thread(this::run, "AsyncConnector");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Race connects to addresses in order, started staggerMs apart.
+     * @return channel in blocking mode, or completed exceptionally.
+     */
+    public CompletableFuture<SocketChannel> connect(InetAddress[] addresses, int port, long staggerMs, long timeoutMs) {
+        Race race = new Race(addresses, port, staggerMs, timeoutMs);
+        if(addresses.length == 0) {
+            race.result.completeExceptionally(new IOException("No address to connect"));
+            return race.result;
+        }
+        pending.add(race);
+        selector.wakeup();
+        return race.result;
+    }
+
+    private void run() {
+        while(true) {
+            try {
+                long now = System.nanoTime();
+                long waitNs = Long.MAX_VALUE;
+                for(Race race : new ArrayList<>(races)) {
+                    if(now - race.deadlineNs >= 0) {
+                        race.finish(null, new SocketTimeoutException("Connect timeout, port " + race.port + " addresses " + List.of(race.addresses)));
+                        continue;
+                    }
+                    if(race.next < race.addresses.length && now - race.nextStartNs >= 0) {
+                        race.startNext(now);
+                    }
+                    if(races.contains(race)) {
+                        waitNs = Math.min(waitNs, race.deadlineNs - now);
+                        if(race.next < race.addresses.length) {
+                            waitNs = Math.min(waitNs, race.nextStartNs - now);
+                        }
+                    }
+                }
+                completeWinners();
+
+                if(pending.isEmpty() == false) {
+                    // wakeup() of connect() may be consumed by selectNow() of completeWinners()
+                    selector.selectNow();
+                } else if(waitNs == Long.MAX_VALUE) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1L, waitNs / 1_000_000L));
+                }
+
+                Race race;
+                while((race = pending.poll()) != null) {
+                    races.add(race);
+                    race.startNext(System.nanoTime());
+                }
+
+                processSelected();
+                completeWinners();
+            } catch(Exception e) {
+                log.error("Unexpected exception in async connector", e);
+            }
+        }
+    }
+
+    private void processSelected() {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while(it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Race race = (Race)key.attachment();
+            SocketChannel ch = (SocketChannel)key.channel();
+            if(key.isValid() == false || race.done || race.attempts.contains(ch) == false) {
+                // other attempt of the race selected at the same time already won (and closed this one)
+                continue;
+            }
+            try {
+                if(ch.finishConnect()) {
+                    race.attempts.remove(ch);
+                    race.win(ch);
+                }
+            } catch(IOException e) {
+                race.attempts.remove(ch);
+                closeQuietly(ch);
+                race.attemptFailed(ch, e);
+            }
+        }
+    }
+
+    /**
+     * Winner's key must be deregistered before switching back to blocking mode.
+     */
+    private void completeWinners() throws IOException {
+        while(winners.isEmpty() == false) {
+            for(Race race : winners) {
+                SelectionKey key = race.winner.keyFor(selector);
+                if(key != null) {
+                    key.cancel();
+                }
+            }
+            selector.selectNow();	// flush cancelled keys
+            for(Race race : winners) {
+                try {
+                    race.winner.configureBlocking(true);
+                    if(race.result.complete(race.winner) == false) {
+                        closeQuietly(race.winner);
+                    }
+                } catch(IOException e) {
+                    closeQuietly(race.winner);
+                    race.result.completeExceptionally(e);
+                }
+            }
+            winners.clear();
+            // keys selected by selectNow()
+            processSelected();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        if(ch == null) {
+            return;
+        }
+        try {
+            ch.close();
+        } catch(IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side: one host:port serving a channel. A channel may have several, picked by {@link LoadBalancer}.<BR>
+ * A backend failed to connect {@link RedirectTarget#ejectFailures} times in a row (by clients or health check)
+ * is ejected for {@link RedirectTarget#ejectMs}, or until a connect succeed.
+ */
+@Slf4j
+public class Backend {
+    public final RedirectTarget target;
+    public final String host;
+    public final int port;
+    public final int weight;
+
+    /**
+     * Runtime pool of sockets to this backend, created by {@link TCPRedirectServer#start()}. Null if disabled.
+     */
+    public volatile TargetConnectionPool pool = null;
+
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+    @Getter private final AtomicLong totalConnections = new AtomicLong(0);
+    @Getter private final AtomicLong totalFailures = new AtomicLong(0);
+
+    private volatile boolean up = true;
+    private volatile long retryAtNs = 0L;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+
+    /**
+     * Smooth weighted round robin state, guarded by {@link RedirectTarget#lbLock}.
+     */
+    int currentWeight = 0;
+
+    public Backend(RedirectTarget target, String host, int port, int weight) {
+        this.target = target;
+        this.host = host;
+        this.port = port;
+        this.weight = Math.max(1, weight);
+    }
+
+    /**
+     * Up, or ejected long enough to give it another try.
+     */
+    public boolean isAvailable() {
+        return up || (System.nanoTime() - retryAtNs) >= 0;
+    }
+
+    public boolean isUp() {
+        return up;
+    }
+
+    /**
+     * Time (System.nanoTime()) this backend may be tried again if ejected.
+     */
+    long getRetryAtNs() {
+        return retryAtNs;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Connection assigned to this backend.
+     */
+    void acquired() {
+        activeConnections.incrementAndGet();
+        totalConnections.incrementAndGet();
+    }
+
+    /**
+     * Connection assigned to this backend closed, or failed to connect.
+     */
+    void release() {
+        activeConnections.decrementAndGet();
+    }
+
+    void failed(Exception e) {
+        totalFailures.incrementAndGet();
+        if(consecutiveFailures.incrementAndGet() < target.ejectFailures && up) {
+            log.warn("Backend {} of channel {} failed to connect ({} in a row): {}", this, target.channel, consecutiveFailures.get(), e.toString());
+            return;
+        }
+        retryAtNs = System.nanoTime() + target.ejectMs * 1_000_000L;
+        if(up) {
+            up = false;
+            log.warn("Backend {} of channel {} ejected: {}", this, target.channel, e.toString());
+        }
+    }
+
+    void succeeded() {
+        consecutiveFailures.set(0);
+        if(up == false) {
+            up = true;
+            log.info("Backend {} of channel {} is up again.", this, target.channel);
+        }
+    }
+
+    /**
+     * Connect within {@link RedirectTarget#connectTimeoutMs}, racing all addresses of host.
+     */
+    Socket connect() throws IOException {
+        return AsyncConnector.connect(host, port, target.dnsTtlMs, target.connectStaggerMs, target.connectTimeoutMs);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port + (weight != 1 ? "(w" + weight + ")" : "");
+    }
+}
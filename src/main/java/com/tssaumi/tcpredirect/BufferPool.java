@@ -0,0 +1,265 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size classed pool of read buffers shared by all connections.<BR>
+ * A buffer is filled by the READ side, passed through the queue as is, and
+ * released by the WRITE side once written. No copy and no allocation in steady state.<BR>
+ * <BR>
+ * Buffers are sliced from slabs of {@link #SLAB_SIZE} bytes and never freed.
+ * Threads acquiring and releasing the same buffers (NIO event loops, see {@link #useThreadCache()}) keep released buffers
+ * in a small per-thread cache first, others return them to the global free list of its size class at once:
+ * in the thread engine the WRITE thread releasing a buffer never acquires one, a cache there would only hold buffers.
+ * Set {@link Config#bufferLeakDetection} to log buffers collected by GC without release.
+ */
+@Slf4j
+public class BufferPool {
+
+    /**
+     * Buffer sizes, acquire() returns the smallest class fit the requested size.
+     */
+    public static final int[] SIZE_CLASSES = {512, 4096, 16384, 40960};
+
+    /**
+     * Default read buffer size. (largest class)
+     */
+    public static final int BUF_SIZE = 40960;	// 40K
+
+    private static final int SLAB_SIZE = 512 * 1024;	// 512K
+
+    private static final SizeClass[] heapClasses = new SizeClass[SIZE_CLASSES.length];
+    private static final SizeClass[] directClasses = new SizeClass[SIZE_CLASSES.length];
+    static {
+        for(int i=0; i < SIZE_CLASSES.length; i++) {
+            heapClasses[i] = new SizeClass(SIZE_CLASSES[i], false);
+            directClasses[i] = new SizeClass(SIZE_CLASSES[i], true);
+        }
+    }
+
+    private static final AtomicLong liveBuffers = new AtomicLong(0);
+    private static final AtomicLong liveBytes = new AtomicLong(0);
+    private static final AtomicLong peakLiveBytes = new AtomicLong(0);
+    private static final AtomicLong allocatedBytes = new AtomicLong(0);
+
+    private static final ThreadLocal<Boolean> cacheThread = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    /**
+     * Buffers of one size, heap or direct.
+     */
+    static class SizeClass {
+        private final int size;
+        private final boolean direct;
+        private final int buffersPerSlab;
+
+        private final Queue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<ArrayDeque<PooledBuffer>> cache = ThreadLocal.withInitial(ArrayDeque::new);
+        private final ReentrantLock slabLock = new ReentrantLock();
+
+        private final AtomicLong allocated = new AtomicLong(0);
+        private final AtomicLong live = new AtomicLong(0);
+        private final AtomicLong peakLive = new AtomicLong(0);
+
+        SizeClass(int size, boolean direct) {
+            this.size = size;
+            this.direct = direct;
+            this.buffersPerSlab = Math.max(1, SLAB_SIZE / size);
+        }
+
+        private boolean cacheEnabled() {
+            return Config.bufferThreadCache > 0 && cacheThread.get();
+        }
+
+        PooledBuffer acquire() {
+            PooledBuffer b = null;
+            if(cacheEnabled()) {
+                b = cache.get().pollLast();
+            }
+            if(b == null) {
+                b = free.poll();
+            }
+            if(b == null) {
+                b = allocateSlab();
+            }
+            b.acquired(Config.bufferLeakDetection);
+
+            long curLive = live.incrementAndGet();
+            updatePeak(peakLive, curLive);
+            liveBuffers.incrementAndGet();
+            updatePeak(peakLiveBytes, liveBytes.addAndGet(size));
+            return b;
+        }
+
+        void recycle(PooledBuffer b) {
+            live.decrementAndGet();
+            liveBuffers.decrementAndGet();
+            liveBytes.addAndGet(-size);
+            if(cacheEnabled()) {
+                ArrayDeque<PooledBuffer> local = cache.get();
+                if(local.size() < Config.bufferThreadCache) {
+                    local.addLast(b);
+                    return;
+                }
+            }
+            free.offer(b);
+        }
+
+        private PooledBuffer allocateSlab() {
+            slabLock.lock();
+            try {
+                PooledBuffer b = free.poll();
+                if(b != null) {
+                    return b;	// released while waiting for lock
+                }
+                ByteBuffer slab = direct ? ByteBuffer.allocateDirect(size * buffersPerSlab) : ByteBuffer.allocate(size * buffersPerSlab);
+                for(int i=0; i < buffersPerSlab; i++) {
+                    slab.limit((i + 1) * size).position(i * size);
+                    PooledBuffer pb = new PooledBuffer(slab.slice(), this);
+                    if(b == null) {
+                        b = pb;
+                    } else {
+                        free.offer(pb);
+                    }
+                }
+                allocated.addAndGet(buffersPerSlab);
+                allocatedBytes.addAndGet((long)size * buffersPerSlab);
+                log.debug("New slab allocated. size={} direct={} buffers={}", size, direct, buffersPerSlab);
+                return b;
+            } finally {
+                slabLock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long all = allocated.get();
+            long curLive = live.get();
+            return "[" + size + (direct ? "D" : "H") + " live=" + curLive + " free=" + (all - curLive) + " peak=" + peakLive.get() + "]";
+        }
+
+        void flushThreadCache() {
+            ArrayDeque<PooledBuffer> local = cache.get();
+            PooledBuffer b;
+            while((b = local.pollLast()) != null) {
+                free.offer(b);
+            }
+            cache.remove();
+        }
+    }
+
+    /**
+     * Cache buffers released by current thread for its next acquire, see {@link Config#bufferThreadCache}.
+     * For long running threads which acquire and release buffers, not for virtual threads.
+     */
+    public static void useThreadCache() {
+        cacheThread.set(Boolean.TRUE);
+    }
+
+    /**
+     * Move buffers cached by current thread to global free list.
+     * Must be called before a thread using the pool ends, otherwise its cached buffers are lost.
+     */
+    public static void flushThreadCache() {
+        for(SizeClass c : heapClasses) {
+            c.flushThreadCache();
+        }
+        for(SizeClass c : directClasses) {
+            c.flushThreadCache();
+        }
+    }
+
+    private static void updatePeak(AtomicLong peak, long value) {
+        long cur;
+        while(value > (cur = peak.get())) {
+            if(peak.compareAndSet(cur, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Index in {@link #SIZE_CLASSES} of the smallest class not less than minSize (or the largest class).
+     */
+    public static int classIndex(int minSize) {
+        for(int i=0; i < SIZE_CLASSES.length; i++) {
+            if(SIZE_CLASSES[i] >= minSize) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    private static SizeClass classFor(int minSize, boolean direct) {
+        SizeClass[] classes = direct ? directClasses : heapClasses;
+        for(SizeClass c : classes) {
+            if(c.size >= minSize) {
+                return c;
+            }
+        }
+        return classes[classes.length - 1];
+    }
+
+    /**
+     * Borrow a cleared buffer of {@link #BUF_SIZE}.
+     * @param direct direct buffer (for channel I/O), otherwise heap buffer backed by an array (for stream I/O).
+     */
+    public static PooledBuffer acquire(boolean direct) {
+        return acquire(BUF_SIZE, direct);
+    }
+
+    /**
+     * Borrow a cleared buffer of the smallest size class not less than minSize (or the largest class).
+     */
+    public static PooledBuffer acquire(int minSize, boolean direct) {
+        return classFor(minSize, direct).acquire();
+    }
+
+    /**
+     * Number of buffers borrowed and not yet released.
+     */
+    public static long getLiveBuffers() {
+        return liveBuffers.get();
+    }
+
+    public static long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    public static long getPeakLiveBytes() {
+        return peakLiveBytes.get();
+    }
+
+    /**
+     * Total bytes of slabs allocated, i.e. live + free.
+     */
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public static long getFreeBytes() {
+        return allocatedBytes.get() - liveBytes.get();
+    }
+
+    /**
+     * Usage of every size class, for logging.
+     */
+    public static String getStats() {
+        List<String> list = new ArrayList<>();
+        for(SizeClass c : heapClasses) {
+            list.add(c.toString());
+        }
+        for(SizeClass c : directClasses) {
+            list.add(c.toString());
+        }
+        return "BufferPool live=" + liveBytes.get() + " free=" + getFreeBytes() + " peak=" + peakLiveBytes.get() + " " + String.join(" ", list);
+    }
+}
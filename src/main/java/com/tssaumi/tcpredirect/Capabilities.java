@@ -0,0 +1,103 @@
+package com.tssaumi.tcpredirect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per connection features, offered by both sides in hand shake v2 and agreed with {@link #negotiate}.<BR>
+ * Encoded as [ID 1 byte][VALUE int], unknown IDs are skipped so new features can be added without a new version.
+ */
+public class Capabilities {
+
+    public static final byte ID_BUFFER_SIZE = 1;
+    public static final byte ID_COMPRESSION = 2;
+    public static final byte ID_KEEPALIVE = 3;
+
+    /**
+     * Encoded size of one capability.
+     */
+    public static final int ENCODED_SIZE = 5;
+    private static final int COUNT = 3;
+
+    public static final int COMPRESSION_NONE = 0;
+    /**
+     * Raw deflate with sync flush on idle, see {@link Compressor}.
+     */
+    public static final int COMPRESSION_DEFLATE = 1;
+
+    /**
+     * Read buffer size of forwarding. Agreed: the smaller one.
+     */
+    public int bufferSize = BufferPool.BUF_SIZE;
+    /**
+     * Compression of agent to server leg. Agreed: same on both sides, otherwise none.
+     */
+    public int compression = COMPRESSION_NONE;
+    /**
+     * SO_KEEPALIVE of agent to server leg. Agreed: requested by any side.
+     */
+    public boolean keepAlive = false;
+
+    public static Capabilities of(RedirectTarget target) {
+        Capabilities caps = new Capabilities();
+        caps.bufferSize = target.bufferSize;
+        caps.keepAlive = target.keepAlive;
+        caps.compression = target.compression;
+        return caps;
+    }
+
+    /**
+     * Same result on both sides for the same pair of offers.
+     */
+    public static Capabilities negotiate(Capabilities agent, Capabilities server) {
+        Capabilities caps = new Capabilities();
+        caps.bufferSize = Math.min(agent.bufferSize, server.bufferSize);
+        caps.compression = (agent.compression == server.compression ? agent.compression : COMPRESSION_NONE);
+        caps.keepAlive = agent.keepAlive || server.keepAlive;
+        return caps;
+    }
+
+    int encodedSize() {
+        return 1 + COUNT * ENCODED_SIZE;
+    }
+
+    /**
+     * [COUNT 1 byte]([ID 1 byte][VALUE int])...
+     */
+    void encode(ByteBuffer buf) {
+        buf.put((byte)COUNT);
+        buf.put(ID_BUFFER_SIZE).putInt(bufferSize);
+        buf.put(ID_COMPRESSION).putInt(compression);
+        buf.put(ID_KEEPALIVE).putInt(keepAlive ? 1 : 0);
+    }
+
+    /**
+     * Decode capabilities (without the count byte), missing ones keep default.
+     */
+    static Capabilities decode(ByteBuffer buf, int count) {
+        Capabilities caps = new Capabilities();
+        for(int i=0; i < count; i++) {
+            byte id = buf.get();
+            int value = buf.getInt();
+            switch(id) {
+                case ID_BUFFER_SIZE:
+                    caps.bufferSize = Math.max(BufferPool.SIZE_CLASSES[0], Math.min(BufferPool.BUF_SIZE, value));
+                    break;
+                case ID_COMPRESSION:
+                    caps.compression = value;
+                    break;
+                case ID_KEEPALIVE:
+                    caps.keepAlive = (value != 0);
+                    break;
+                default:
+                    // unknown capability of newer peer
+                    break;
+            }
+        }
+        return caps;
+    }
+
+    @Override
+    public String toString() {
+        return "Caps[buf=" + bufferSize + " compression=" + compression + " keepAlive=" + keepAlive + "]";
+    }
+}
@@ -0,0 +1,250 @@
+package com.tssaumi.tcpredirect;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of all connections of a channel, shared by all forwarding engines.<BR>
+ * Forwarding threads only add to striped counters ({@link LongAdder}), never lock or wait for each other.
+ * Gauges (active connections, queued bytes) are computed from the live connections when read.
+ */
+public class ChannelMetrics implements ChannelMetricsMBean {
+
+    /**
+     * Connections without channel, e.g. simple forwarding.
+     */
+    public static final String NO_CHANNEL = "-";
+
+    /**
+     * Upper bounds of connection duration histogram, in seconds.
+     */
+    public static final double[] DURATION_BUCKETS = {0.1, 1, 10, 60, 600, 3600, 86400};
+
+    /**
+     * Upper bounds of write (flush) size histogram, in bytes.
+     */
+    public static final long[] BATCH_BUCKETS = {512, 4096, 16384, 65536, 262144, 1048576};
+
+    private static final ConcurrentHashMap<String, ChannelMetrics> all = new ConcurrentHashMap<>();
+
+    private final String channel;
+    private final Set<LiveConnection> live = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder totalConnections = new LongAdder();
+    final LongAdder clientReadBytes = new LongAdder();
+    final LongAdder serverReadBytes = new LongAdder();
+    final LongAdder skippedBytes = new LongAdder();
+    final LongAdder idleTimeouts = new LongAdder();
+    final LongAdder shapingWaitNs = new LongAdder();
+    final LongAdder captureBytes = new LongAdder();
+    final LongAdder captureDrops = new LongAdder();
+    final LongAdder captureDroppedBytes = new LongAdder();
+
+    private final LongAdder[] durationCounts = new LongAdder[DURATION_BUCKETS.length + 1];	// last one = +Inf
+    private final LongAdder durationSumMs = new LongAdder();
+
+    private final LongAdder[] flushCounts = new LongAdder[FlushPolicy.Reason.values().length];
+    private final LongAdder[] batchCounts = new LongAdder[BATCH_BUCKETS.length + 1];	// last one = +Inf
+    private final LongAdder batchSumBytes = new LongAdder();
+
+    private ChannelMetrics(String channel) {
+        this.channel = channel;
+        for(int i=0; i < durationCounts.length; i++) {
+            durationCounts[i] = new LongAdder();
+        }
+        for(int i=0; i < flushCounts.length; i++) {
+            flushCounts[i] = new LongAdder();
+        }
+        for(int i=0; i < batchCounts.length; i++) {
+            batchCounts[i] = new LongAdder();
+        }
+        MetricsServer.registerMBean(this, "Channel", channel);
+    }
+
+    /**
+     * Counters of the channel, kept for the whole life of the process.
+     */
+    public static ChannelMetrics of(String channel) {
+        return all.computeIfAbsent(channel == null ? NO_CHANNEL : channel, ChannelMetrics::new);
+    }
+
+    public static Collection<ChannelMetrics> getAll() {
+        return all.values();
+    }
+
+    void opened(LiveConnection conn) {
+        totalConnections.increment();
+        live.add(conn);
+    }
+
+    void closed(LiveConnection conn) {
+        if(live.remove(conn) == false) {
+            return;
+        }
+        long durationMs = System.currentTimeMillis() - conn.getStartTimeMs();
+        durationSumMs.add(durationMs);
+        int i = 0;
+        while(i < DURATION_BUCKETS.length && durationMs > DURATION_BUCKETS[i] * 1000) {
+            i++;
+        }
+        durationCounts[i].increment();
+    }
+
+    /**
+     * Count one write of gathered data, see {@link FlushPolicy}.
+     */
+    void flushed(FlushPolicy.Reason reason, long bytes) {
+        flushCounts[reason.ordinal()].increment();
+        batchSumBytes.add(bytes);
+        int i = 0;
+        while(i < BATCH_BUCKETS.length && bytes > BATCH_BUCKETS[i]) {
+            i++;
+        }
+        batchCounts[i].increment();
+    }
+
+    @Override
+    public String getChannel() {
+        return channel;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return live.size();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+
+    @Override
+    public long getClientReadBytes() {
+        return clientReadBytes.sum();
+    }
+
+    @Override
+    public long getServerReadBytes() {
+        return serverReadBytes.sum();
+    }
+
+    @Override
+    public long getSkippedBytes() {
+        return skippedBytes.sum();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    @Override
+    public long getShapingWaitMs() {
+        return shapingWaitNs.sum() / 1_000_000L;
+    }
+
+    @Override
+    public long getCaptureBytes() {
+        return captureBytes.sum();
+    }
+
+    @Override
+    public long getCaptureDrops() {
+        return captureDrops.sum();
+    }
+
+    @Override
+    public long getCaptureDroppedBytes() {
+        return captureDroppedBytes.sum();
+    }
+
+    @Override
+    public long getQueueBytes() {
+        long total = 0;
+        for(LiveConnection conn : live) {
+            total += conn.getQueueBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Closed connections per duration bucket, not cumulative. Last one is over the largest bound.
+     */
+    public long[] getDurationCounts() {
+        long[] counts = new long[durationCounts.length];
+        for(int i=0; i < counts.length; i++) {
+            counts[i] = durationCounts[i].sum();
+        }
+        return counts;
+    }
+
+    public long getDurationSumMs() {
+        return durationSumMs.sum();
+    }
+
+    @Override
+    public double getAverageDurationSeconds() {
+        long count = 0;
+        for(LongAdder c : durationCounts) {
+            count += c.sum();
+        }
+        return (count == 0 ? 0 : durationSumMs.sum() / 1000.0 / count);
+    }
+
+    /**
+     * Writes per {@link FlushPolicy.Reason}, by ordinal.
+     */
+    public long[] getFlushCounts() {
+        long[] counts = new long[flushCounts.length];
+        for(int i=0; i < counts.length; i++) {
+            counts[i] = flushCounts[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Writes per size bucket, not cumulative. Last one is over the largest bound.
+     */
+    public long[] getBatchCounts() {
+        long[] counts = new long[batchCounts.length];
+        for(int i=0; i < counts.length; i++) {
+            counts[i] = batchCounts[i].sum();
+        }
+        return counts;
+    }
+
+    public long getBatchSumBytes() {
+        return batchSumBytes.sum();
+    }
+
+    @Override
+    public long getFlushes() {
+        long count = 0;
+        for(LongAdder c : flushCounts) {
+            count += c.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public double getAverageBatchBytes() {
+        long count = getFlushes();
+        return (count == 0 ? 0 : (double)batchSumBytes.sum() / count);
+    }
+
+    public Collection<LiveConnection> getLive() {
+        return live;
+    }
+
+    @Override
+    public String[] getLiveConnections() {
+        long now = System.currentTimeMillis();
+        return live.stream()
+                .map(c -> "#" + c.getUid() + " " + c.getClientAddress() + " >>><<< " + c.getServerAddress()
+                        + " in=" + c.getClientReadBytes() + " out=" + c.getServerReadBytes()
+                        + " queue=" + c.getQueueBytes() + " age=" + (now - c.getStartTimeMs()) + "ms")
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,39 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * JMX view of {@link ChannelMetrics}, registered as "com.tssaumi.tcpredirect:type=Channel,name=CHANNEL".
+ */
+public interface ChannelMetricsMBean {
+
+    String getChannel();
+
+    int getActiveConnections();
+
+    long getTotalConnections();
+
+    long getClientReadBytes();
+
+    long getServerReadBytes();
+
+    long getSkippedBytes();
+
+    long getIdleTimeouts();
+
+    long getShapingWaitMs();
+
+    long getCaptureBytes();
+
+    long getCaptureDrops();
+
+    long getCaptureDroppedBytes();
+
+    long getQueueBytes();
+
+    double getAverageDurationSeconds();
+
+    long getFlushes();
+
+    double getAverageBatchBytes();
+
+    String[] getLiveConnections();
+}
@@ -6,63 +6,306 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
+/**
+ * Agent side:<BR>
+ * Connect to redirect server, hand shake with channel ID of the target, then forward the accepted socket.
+ */
 @Slf4j
 public class ClientHandShakeThread extends HandShakeThread {
 
-    public ClientHandShakeThread(Socket socket, RedirectTarget target) {
+    protected String serverHost = null;
+    protected int serverPort = -1;
+    protected ServerConnectionPool pool = null;
+
+    /**
+     * Data sent by redirect server right after a pipelined version 2 response (not flipped), written to client first. Or null.
+     */
+    private PooledBuffer serverEarlyData = null;
+
+    public ClientHandShakeThread(Socket socket, RedirectTarget target, String serverHost, int serverPort) {
         super(socket);
         this.target = target;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * @param pool idle sockets to take before connect, or null.
+     */
+    public ClientHandShakeThread(Socket socket, RedirectTarget target, String serverHost, int serverPort, ServerConnectionPool pool) {
+        this(socket, target, serverHost, serverPort);
+        this.pool = pool;
+    }
+
+    @Override
+    public void run() {
+        try {
+            IdleSocketPool.ReadySocket ready = (pool != null ? pool.borrow() : null);
+            if(ready != null) {
+                log.debug("Socket {}: use pooled socket {}", socket, ready.socket);
+                Forwarders.start(nextUid(), socket, ready.socket, ready.earlyData, ForwardOptions.of(target, ready.caps, TCPFwd.TYPE.SERVER, null));
+                return;
+            }
+            PooledBuffer clientEarlyData = null;
+            if(target.handshakePipelined && target.compression == Capabilities.COMPRESSION_NONE) {
+                // send client data already arrived together with hand shake request (compression not agreed yet).
+                // client may have shut down output already, forwarding pass the end of stream on
+                clientEarlyData = Util.readAvailable(socket, null, false);
+            }
+            Socket serverSocket = connect(clientEarlyData);
+            PooledBuffer early = serverEarlyData;
+            serverEarlyData = null;
+            Forwarders.start(nextUid(), socket, serverSocket, early, ForwardOptions.of(target, caps, TCPFwd.TYPE.SERVER, null));
+        } catch(Exception e) {
+            if(serverEarlyData != null) {
+                serverEarlyData.release();
+                serverEarlyData = null;
+            }
+            log.error("Fail hand shake with redirect server! Drop socket: {}", socket, e);
+            SocketKiller.killSocket(socket, null, null);
+        }
     }
 
+    /**
+     * Connect to redirect server and hand shake with channel ID of target.
+     * @return socket ready for forwarding.
+     */
+    protected Socket connect() throws IOException {
+        return connect(null);
+    }
+
+    /**
+     * @param clientEarlyData data to send right after request in pipelined mode (not flipped, released here), or null.
+     */
+    protected Socket connect(PooledBuffer clientEarlyData) throws IOException {
+        Socket serverSocket = null;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            serverSocket = AsyncConnector.connect(serverHost, serverPort, target.dnsTtlMs, target.connectStaggerMs, target.connectTimeoutMs);
+            is = serverSocket.getInputStream();
+            os = serverSocket.getOutputStream();
+            if(target.handshakePipelined) {
+                PooledBuffer data = clientEarlyData;
+                clientEarlyData = null;
+                sendRequest(serverSocket.getChannel(), data);
+            }
+            handShake(serverSocket, is, os);
+            return serverSocket;
+        } catch(IOException e) {
+            if(serverSocket != null) {
+                SocketKiller.killSocket(serverSocket, is, os);
+            }
+            throw e;
+        } finally {
+            if(clientEarlyData != null) {
+                clientEarlyData.release();
+            }
+        }
+    }
+
+    /**
+     * Send pre-encoded request and client data in a single write, so they leave in the same segment.
+     */
+    private void sendRequest(SocketChannel ch, PooledBuffer clientEarlyData) throws IOException {
+        try {
+            ByteBuffer[] vec = new ByteBuffer[clientEarlyData == null ? 1 : 2];
+            vec[0] = ByteBuffer.wrap(target.request);
+            if(clientEarlyData != null) {
+                clientEarlyData.buffer().flip();
+                vec[1] = clientEarlyData.buffer();
+            }
+            while(vec[vec.length - 1].hasRemaining()) {
+                ch.write(vec);
+            }
+        } finally {
+            if(clientEarlyData != null) {
+                clientEarlyData.release();
+            }
+        }
+    }
+
+    /**
+     * Send request (unless already sent in pipelined mode) and read response.<BR>
+     * Version 1 pipelined: no response. Version 2: response always, capabilities negotiated.
+     * Pipelined with a client, client data is relayed to the server meanwhile, see {@link #relayUntilResponse(Socket, long)}.
+     */
+    @Override
     protected void handShake(Socket socket, InputStream is, OutputStream os) throws IOException {
         long startTime = System.nanoTime();
 
-        socket.setSoTimeout(Constants.MAX_HAND_SHAKE_IDLE_MS);
+        socket.setSoTimeout(Config.handshakeTimeoutMs);
 
-        // send request message
-        byte[] reqMsg = new byte[Constants.HAND_SHAKE_MSG_SIZE];
-        Arrays.fill(reqMsg, (byte)0x20);
-        byte[] channelBytes = target.channel.getBytes(StandardCharsets.UTF_8);
-        for(int i=0; i < channelBytes.length; i++) {
-            reqMsg[i] = channelBytes[i];
+        if(target.handshakePipelined == false) {
+            os.write(target.request);
+            os.flush();
         }
-        reqMsg[reqMsg.length - 1] = Constants.HAND_SHAKE_MSG_DELIMITER;
 
-        os.write(reqMsg);
-        os.flush();
-
-        // wait for message, which is fixed 50 byte length;
-        byte[] respMsg = new byte[Constants.HAND_SHAKE_MSG_SIZE];
-        int readSize = 0;
-        while(readSize < Constants.HAND_SHAKE_MSG_SIZE) {
-            long curTime = System.nanoTime();
-            if((curTime - startTime) > Constants.MAX_HAND_SHAKE_IDLE_MS * 1_000_000L) {
-                // timeout!
-                log.error("Timeout during hand shaking. Elapsed Time({})", Util.elapsedTimeUs(startTime, curTime));
-                throw new IOException("Timeout during hand shaking. Elapsed Time("+Util.elapsedTimeUs(startTime, curTime)+")");
-            }
-            int len = is.read(reqMsg, readSize, reqMsg.length - readSize);
-            if(len < 0) {
-                // end of stream detetced!
-                throw new IOException("Read "+len+" from input stream during hand shaking.");
+        if(target.handshakeVersion == HandShakeFrame.VERSION_2) {
+            if(canRelay(socket)) {
+                serverEarlyData = relayUntilResponse(socket, startTime);
             } else {
-                readSize += len;
+                readResponseV2(socket, is, startTime);
+            }
+        } else {
+            this.caps = target.capsV1;
+            if(target.handshakePipelined == false) {
+                readResponseV1(socket, is, startTime);
             }
         }
-        // check request message
-        if(readSize != Constants.HAND_SHAKE_MSG_SIZE) {
-            // invalid request message size
-            throw new IOException("Invalid response message size: size="+readSize);
+        if(caps.keepAlive) {
+            socket.setKeepAlive(true);
         }
+
+        socket.setSoTimeout(0);
+    }
+
+    private void readResponseV1(Socket socket, InputStream is, long startTime) throws IOException {
+        // wait for message, which is fixed 50 byte length;
+        byte[] respMsg = new byte[Constants.HAND_SHAKE_MSG_SIZE];
+        readFully(is, respMsg, 0, respMsg.length, startTime);
         if(respMsg[Constants.HAND_SHAKE_MSG_SIZE - 1] != Constants.HAND_SHAKE_MSG_DELIMITER) {
             // Invalid request message delimiter
             throw new IOException("Invalid response message. Delimiter: "+respMsg[Constants.HAND_SHAKE_MSG_SIZE - 1]);
         }
         log.info("Socket {}: Hand shaking OK!", socket);
+    }
 
-        socket.setSoTimeout(0);
+    /**
+     * Response: [MAGIC][VERSION][STATUS][CAPABILITIES]
+     */
+    private void readResponseV2(Socket socket, InputStream is, long startTime) throws IOException {
+        byte[] header = new byte[HandShakeFrame.HEADER_SIZE];
+        readFully(is, header, 0, header.length, startTime);
+        int capCount = checkResponseV2(ByteBuffer.wrap(header));
+        byte[] capBytes = new byte[capCount * Capabilities.ENCODED_SIZE];
+        readFully(is, capBytes, 0, capBytes.length, startTime);
+        Capabilities serverCaps = Capabilities.decode(ByteBuffer.wrap(capBytes), capCount);
+        this.caps = Capabilities.negotiate(target.caps, serverCaps);
+        log.info("Socket {}: Hand shaking OK! version=2 {}", socket, caps);
+    }
+
+    /**
+     * Check header of version 2 response at position of buf.
+     * @return count of capabilities following the header.
+     */
+    private int checkResponseV2(ByteBuffer buf) throws IOException {
+        int pos = buf.position();
+        if(buf.get(pos) != HandShakeFrame.MAGIC) {
+            throw new IOException("Redirect server does not support hand shake version 2, set handshake.version=1 for channel "+target.channel);
+        }
+        if(buf.get(pos + 2) != HandShakeFrame.STATUS_OK) {
+            throw new IOException("Hand shake rejected by redirect server. channel="+target.channel+" status="+buf.get(pos + 2)+" version="+buf.get(pos + 1));
+        }
+        return buf.get(pos + 3) & 0xFF;
+    }
+
+    /**
+     * Client data can go to the server before the response: pipelined, a client to read from (not pool),
+     * and no compression asked, so data is sent as is whatever is agreed.
+     */
+    private boolean canRelay(Socket serverSocket) {
+        return target.handshakePipelined && this.socket != null && target.compression == Capabilities.COMPRESSION_NONE
+                && this.socket.getChannel() != null && serverSocket.getChannel() != null;
+    }
+
+    /**
+     * Pipelined version 2: relay data of client to redirect server while waiting for the response, so it does not wait for a round trip.
+     * Nothing from the server reach the client before the response is read and checked.
+     * @return data of server after the response (not flipped), or null.
+     */
+    private PooledBuffer relayUntilResponse(Socket serverSocket, long startTime) throws IOException {
+        SocketChannel client = this.socket.getChannel();
+        SocketChannel server = serverSocket.getChannel();
+        PooledBuffer up = BufferPool.acquire(Config.directBuffers);		// client >>> server, flipped
+        PooledBuffer down = BufferPool.acquire(Config.directBuffers);	// response and data after it, not flipped
+        up.buffer().flip();
+        try {
+            int responseSize;
+            try(Selector selector = Selector.open()) {
+                client.configureBlocking(false);
+                server.configureBlocking(false);
+                SelectionKey clientKey = client.register(selector, SelectionKey.OP_READ);
+                SelectionKey serverKey = server.register(selector, SelectionKey.OP_READ);
+                responseSize = -1;
+                while(responseSize < 0 || down.buffer().position() < responseSize) {
+                    long waitMs = Config.handshakeTimeoutMs - (System.nanoTime() - startTime) / 1_000_000L;
+                    if(waitMs <= 0) {
+                        throw new IOException("Timeout during hand shaking. Elapsed Time("+Util.elapsedTimeUs(startTime, System.nanoTime())+")");
+                    }
+                    selector.select(waitMs);
+                    selector.selectedKeys().clear();
+                    if(serverKey.isValid() && server.read(down.buffer()) < 0) {
+                        throw new IOException("End of stream from redirect server during hand shaking.");
+                    }
+                    if(responseSize < 0 && down.buffer().position() >= HandShakeFrame.HEADER_SIZE) {
+                        responseSize = HandShakeFrame.HEADER_SIZE + checkResponseV2(down.buffer().duplicate().flip()) * Capabilities.ENCODED_SIZE;
+                    }
+                    if(up.buffer().hasRemaining()) {
+                        server.write(up.buffer());
+                    }
+                    if(up.buffer().hasRemaining() == false && clientKey.isValid()) {
+                        up.buffer().clear();
+                        int len = client.read(up.buffer());
+                        up.buffer().flip();
+                        if(len < 0) {
+                            // forwarding read end of stream again
+                            clientKey.cancel();
+                        } else if(len > 0) {
+                            server.write(up.buffer());
+                        }
+                    }
+                    // read client again once written, server channel is always read
+                    serverKey.interestOps(up.buffer().hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    if(clientKey.isValid()) {
+                        clientKey.interestOps(up.buffer().hasRemaining() ? 0 : SelectionKey.OP_READ);
+                    }
+                }
+            } finally {
+                // deregistered by close of selector
+                if(client.isOpen()) {
+                    client.configureBlocking(true);
+                }
+                if(server.isOpen()) {
+                    server.configureBlocking(true);
+                }
+            }
+            while(up.buffer().hasRemaining()) {
+                server.write(up.buffer());
+            }
+
+            ByteBuffer in = down.buffer();
+            in.flip();
+            int capCount = in.get(3) & 0xFF;
+            Capabilities serverCaps = Capabilities.decode(in.position(HandShakeFrame.HEADER_SIZE), capCount);
+            this.caps = Capabilities.negotiate(target.caps, serverCaps);
+            log.info("Socket {}: Hand shaking OK! version=2 pipelined {}", serverSocket, caps);
+            in.position(responseSize);
+            in.compact();
+            if(in.position() == 0) {
+                // released below
+                return null;
+            }
+            PooledBuffer early = down;
+            down = null;
+            return early;
+        } finally {
+            up.release();
+            if(down != null) {
+                down.release();
+            }
+        }
+    }
+
+    /**
+     * Features agreed in the last hand shake.
+     */
+    Capabilities getCaps() {
+        return caps;
     }
 }
@@ -4,15 +4,64 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.net.Socket;
 
+/**
+ * Agent side listener of a single channel.
+ */
 @Slf4j
 public class ClientPortListener extends PortListener {
 
     protected String channelId = null;
-    public ClientPortListener(String channelId, String bindAddr, int localPort) {
-        super("Ch:"+channelId, bindAddr, localPort);
-        this.channelId = channelId;
+    protected RedirectTarget target = null;
+    protected String serverHost = null;
+    protected int serverPort = -1;
+    protected MuxClient muxClient = null;
+    protected ServerConnectionPool pool = null;
+
+    /**
+     * @param muxClient tunnels to redirect server, or null to connect to redirect server for every socket.
+     */
+    public ClientPortListener(RedirectTarget target, String serverHost, int serverPort, MuxClient muxClient) {
+        super("Ch:"+target.channel, target.host, target.port);
+        this.channelId = target.channel;
+        this.target = target;
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.muxClient = muxClient;
+        if(muxClient == null && target.poolMinIdle > 0) {
+            pool = new ServerConnectionPool(target, serverHost, serverPort);
+            pool.start();
+        }
+    }
+
+    public RedirectTarget getTarget() {
+        return target;
+    }
+
+    /**
+     * Also close idle sockets of the pool, connections already forwarding are not affected.
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if(pool != null) {
+            pool.stop();
+        }
     }
 
     protected void handShake(Socket socket) {
+        if(muxClient != null) {
+            // connect of a tunnel and OPEN frame may block, never in accept thread
+            HandShakeExecutor.getInstance().execute(socket, () -> {
+                try {
+                    muxClient.open(target, socket);
+                } catch(Exception e) {
+                    log.error("Fail to open stream of channel {}! Drop socket: {}", channelId, socket, e);
+                    SocketKiller.killSocket(socket, null, null);
+                }
+            }, stats);
+            return;
+        }
+        ClientHandShakeThread hs = new ClientHandShakeThread(socket, target, serverHost, serverPort, pool);
+        HandShakeExecutor.getInstance().execute(socket, hs, stats);
     }
 }
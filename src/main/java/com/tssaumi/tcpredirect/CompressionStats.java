@@ -0,0 +1,68 @@
+package com.tssaumi.tcpredirect;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compression counters of a channel, summed over all its connections.<BR>
+ * Time is measured around deflate/inflate calls only, which are pure CPU work.
+ */
+public class CompressionStats {
+
+    // raw >>> compressed, written to the other side
+    final LongAdder deflateInBytes = new LongAdder();
+    final LongAdder deflateOutBytes = new LongAdder();
+    final LongAdder deflateNanos = new LongAdder();
+
+    // compressed >>> raw, read from the other side
+    final LongAdder inflateInBytes = new LongAdder();
+    final LongAdder inflateOutBytes = new LongAdder();
+    final LongAdder inflateNanos = new LongAdder();
+
+    public long getDeflateInBytes() {
+        return deflateInBytes.sum();
+    }
+
+    public long getDeflateOutBytes() {
+        return deflateOutBytes.sum();
+    }
+
+    public long getDeflateNanos() {
+        return deflateNanos.sum();
+    }
+
+    public long getInflateInBytes() {
+        return inflateInBytes.sum();
+    }
+
+    public long getInflateOutBytes() {
+        return inflateOutBytes.sum();
+    }
+
+    public long getInflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    /**
+     * Compressed size / raw size, 0 if nothing compressed.
+     */
+    static double ratio(long raw, long compressed) {
+        return raw == 0 ? 0.0 : (double)compressed / raw;
+    }
+
+    /**
+     * One line summary, e.g. "deflate 1,000,000 >>> 250,000 (ratio 0.250, 12,345us)".
+     */
+    static String format(String name, long in, long out, long nanos, boolean deflate) {
+        DecimalFormat df = new DecimalFormat("#,##0");
+        DecimalFormat rf = new DecimalFormat("0.000");
+        double ratio = (deflate ? ratio(in, out) : ratio(out, in));
+        return name + " " + df.format(in) + " >>> " + df.format(out) + " (ratio " + rf.format(ratio) + ", " + df.format(nanos / 1000L) + "us)";
+    }
+
+    @Override
+    public String toString() {
+        return format("deflate", getDeflateInBytes(), getDeflateOutBytes(), getDeflateNanos(), true)
+                + ", " + format("inflate", getInflateInBytes(), getInflateOutBytes(), getInflateNanos(), false);
+    }
+}
@@ -0,0 +1,117 @@
+package com.tssaumi.tcpredirect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate one direction of a connection (raw data >>> agent-server leg).<BR>
+ * Output is flushed with SYNC_FLUSH only when asked, i.e. when the WRITE side has nothing more queued or the stream ends,
+ * so a busy stream get a better ratio and an interactive one is not delayed.
+ */
+public class Compressor {
+
+    /**
+     * Write compressed bytes to the socket.
+     */
+    public interface Sink {
+        void write(ByteBuffer buf) throws IOException;
+    }
+
+    private final Deflater deflater;
+    private final CompressionStats stats;
+    private final PooledBuffer out;
+    // input given since last flush, may be held by deflater
+    private boolean pending = false;
+
+    // statics of this connection
+    private volatile long accumIn = 0;
+    private volatile long accumOut = 0;
+    private volatile long accumNanos = 0;
+
+    public Compressor(int level, CompressionStats stats, boolean direct) {
+        this.deflater = new Deflater(level, true);	// raw deflate, no zlib header
+        this.stats = stats;
+        this.out = BufferPool.acquire(direct);
+    }
+
+    /**
+     * Compress remaining bytes of the buffers, full output is written to sink.
+     * @param flush sync flush, all input is written to sink on return.
+     */
+    public void compress(ByteBuffer[] bufs, int count, boolean flush, Sink sink) throws IOException {
+        long inBytes = 0;
+        for(int i=0; i < count; i++) {
+            ByteBuffer in = bufs[i];
+            inBytes += in.remaining();
+            deflater.setInput(in);
+            while(deflater.needsInput() == false) {
+                deflate(Deflater.NO_FLUSH, sink);
+            }
+        }
+        pending = pending || inBytes > 0;
+        accumIn += inBytes;
+        stats.deflateInBytes.add(inBytes);
+        if(flush) {
+            flush(sink);
+        }
+    }
+
+    /**
+     * Sync flush input held by deflater to sink, e.g. at end of stream after a batch compressed without flush.
+     * Nothing is written if all input was flushed already.
+     */
+    public void flush(Sink sink) throws IOException {
+        if(pending == false) {
+            return;
+        }
+        // until deflater has no more output
+        while(deflate(Deflater.SYNC_FLUSH, sink)) {
+        }
+        ByteBuffer buf = out.buffer();
+        if(buf.position() > 0) {
+            writeOut(sink);
+        }
+        pending = false;
+    }
+
+    /**
+     * @return true if output buffer was filled up, i.e. more output may be pending.
+     */
+    private boolean deflate(int flushMode, Sink sink) throws IOException {
+        ByteBuffer buf = out.buffer();
+        long start = System.nanoTime();
+        deflater.deflate(buf, flushMode);
+        long nanos = System.nanoTime() - start;
+        accumNanos += nanos;
+        stats.deflateNanos.add(nanos);
+        if(buf.hasRemaining() == false) {
+            writeOut(sink);
+            return true;
+        }
+        return false;
+    }
+
+    private void writeOut(Sink sink) throws IOException {
+        ByteBuffer buf = out.buffer();
+        buf.flip();
+        int len = buf.remaining();
+        sink.write(buf);
+        buf.clear();
+        accumOut += len;
+        stats.deflateOutBytes.add(len);
+    }
+
+    /**
+     * Release native memory of deflater and the output buffer.
+     */
+    public void end() {
+        deflater.end();
+        out.release();
+    }
+
+    @Override
+    public String toString() {
+        return CompressionStats.format("deflate", accumIn, accumOut, accumNanos, true);
+    }
+}
@@ -0,0 +1,188 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Runtime settings shared by redirect server and agent.<BR>
+ * Values are loaded from the property file by {@link TCPRedirectServer#loadConfig()},
+ * fields keep their defaults when the property is absent.
+ */
+public class Config {
+
+    /**
+     * Forwarding engine used once hand shaking is completed.
+     */
+    public enum Engine {
+        /**
+         * {@link TCPFwd}: blocking I/O, READ and WRITE thread per socket.
+         */
+        THREAD,
+        /**
+         * {@link NioFwdEngine}: non-blocking I/O on a fixed set of event loop threads.
+         */
+        NIO
+    }
+
+    /**
+     * Property: fwd.engine = thread | nio (default thread)
+     */
+    public static volatile Engine engine = Engine.THREAD;
+
+    /**
+     * Property: nio.threads = number of event loop threads of NIO engine (default 0 = one per core)
+     */
+    public static volatile int nioThreads = 0;
+
+    /**
+     * Property: virtual.threads = Y | N (default N)<BR>
+     * Run forwarding, hand shaking and socket closing threads on virtual threads. Require Java 21+.
+     */
+    public static volatile boolean virtualThreads = false;
+
+    /**
+     * Property: direct.buffers = Y | N (default Y)<BR>
+     * Use direct buffers from {@link BufferPool} when reading from socket channel.
+     */
+    public static volatile boolean directBuffers = true;
+
+    /**
+     * Property: queue.max.bytes (default 4M)<BR>
+     * Max memory held by queued buffers of one direction of a connection. READ side stops when exceeded. 0 = unlimited.
+     */
+    public static volatile long queueMaxBytes = 4L * 1024 * 1024;
+
+    /**
+     * Property: memory.max.bytes (default 1/4 of max heap)<BR>
+     * Max memory held by queued buffers of all connections. See {@link MemoryBudget}. 0 = unlimited.
+     */
+    public static volatile long memoryMaxBytes = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * Property: buffer.thread.cache (default 32)<BR>
+     * Max free buffers per size class cached by each NIO event loop thread, see {@link BufferPool#useThreadCache()}. 0 = disabled.
+     */
+    public static volatile int bufferThreadCache = 32;
+
+    /**
+     * Property: buffer.leak.detection = Y | N (default N)<BR>
+     * Record where every buffer is acquired and log buffers collected by GC without release. For debug only.
+     */
+    public static volatile boolean bufferLeakDetection = false;
+
+    /**
+     * Property: buffer.adaptive = Y | N (default Y)<BR>
+     * Size read buffers of each connection by the data read, from the smallest size class up to the buffer size of the channel.
+     * See {@link AdaptiveReadSize}. N = always read with the buffer size of the channel.
+     */
+    public static volatile boolean bufferAdaptive = true;
+
+    /**
+     * Property: buffer.idle.ms (default 1000)<BR>
+     * After a read that waited longer than this, the next read of the connection use the smallest buffer. 0 = disabled.
+     */
+    public static volatile long bufferIdleMs = 1000L;
+
+    /**
+     * Property (agent): mux.enabled = Y | N (default N)<BR>
+     * Carry all accepted connections as streams of a few persistent tunnels to redirect server. See {@link MuxClient}.
+     */
+    public static volatile boolean muxEnabled = false;
+
+    /**
+     * Property (agent): mux.tunnels (default 2)<BR>
+     * Number of tunnels to redirect server.
+     */
+    public static volatile int muxTunnels = 2;
+
+    /**
+     * Property: mux.window.bytes (default 256K)<BR>
+     * Flow control window of each stream received, i.e. max bytes the peer may send not yet written here.
+     * Announced to the peer when a tunnel starts, data sent follow the window of the peer.
+     */
+    public static volatile int muxWindowBytes = 256 * 1024;
+
+    /**
+     * Property: listen.backlog (default 1024)<BR>
+     * Accept queue length of listening sockets, also capped by net.core.somaxconn of the OS.
+     */
+    public static volatile int listenBacklog = 1024;
+
+    /**
+     * Property: accept.threads (default 1)<BR>
+     * Threads accepting connections of each listening port.
+     */
+    public static volatile int acceptThreads = 1;
+
+    /**
+     * Property: accept.reuseport = Y | N (default N)<BR>
+     * Each accept thread has its own listening socket bound with SO_REUSEPORT, the kernel spread new connections among them.
+     * Ignored if not supported by the OS.
+     */
+    public static volatile boolean acceptReusePort = false;
+
+    /**
+     * Property: listener.stats.interval.ms (default 60000)<BR>
+     * Interval of logging {@link ListenerStats}. 0 = disabled.
+     */
+    public static volatile long listenerStatsIntervalMs = 60000L;
+
+    /**
+     * Property: handshake.max.inflight (default 1024)<BR>
+     * Max hand shakes (including connect to target) running at once, also the max number of hand shake threads.
+     * Sockets accepted over the limit are reset at once, see {@link HandShakeExecutor}.
+     */
+    public static volatile int handshakeMaxInFlight = 1024;
+
+    /**
+     * Property: handshake.max.per.source (default 64 on agent, 0 on server)<BR>
+     * Max hand shakes running at once from the same source address. Loopback clients are not limited. 0 = unlimited.
+     */
+    public static volatile int handshakeMaxPerSource = 0;
+    public static final int AGENT_MAX_PER_SOURCE = 64;
+
+    /**
+     * Property: handshake.timeout.ms (default {@link Constants#MAX_HAND_SHAKE_IDLE_MS})<BR>
+     * Max time to receive the complete hand shake message.
+     */
+    public static volatile int handshakeTimeoutMs = Constants.MAX_HAND_SHAKE_IDLE_MS;
+
+    /**
+     * Property: metrics.port (default 0)<BR>
+     * HTTP port of Prometheus metrics endpoint (GET /metrics), see {@link MetricsServer}. 0 = disabled.
+     */
+    public static volatile int metricsPort = 0;
+
+    /**
+     * Property: metrics.bind.addr (default 127.0.0.1)<BR>
+     * Bind address of metrics endpoint.
+     */
+    public static volatile String metricsBindAddr = "127.0.0.1";
+
+    /**
+     * Property: link.rate (default 0 = no limit)<BR>
+     * Egress bytes per second to the other end of tcp-redirect, shared by channels by weight, see {@link LinkScheduler}.
+     */
+    public static volatile long linkRate = 0L;
+
+    /**
+     * Property: closer.threads (default 2)<BR>
+     * Threads closing sockets of all connections, see {@link SocketKiller}.
+     */
+    public static volatile int closerThreads = 2;
+
+    /**
+     * Property: closer.queue.size (default 65536)<BR>
+     * Closes queued to closer threads, a close gets its own thread when full.
+     */
+    public static volatile int closerQueueSize = 65536;
+
+    /**
+     * Property: closer.linger.threads (default 16)<BR>
+     * Threads for closes waiting for SO_LINGER, queued separately (up to closer.queue.size).
+     */
+    public static volatile int closerLingerThreads = 16;
+
+    /**
+     * Property: config.reload = Y | N (default Y)<BR>
+     * Reload channels when the property file changes or on SIGHUP, see {@link ConfigReloader}.
+     */
+    public static volatile boolean configReload = true;
+}
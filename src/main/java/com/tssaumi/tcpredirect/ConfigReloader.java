@@ -0,0 +1,129 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reload channels of a running server or agent, see {@link TCPRedirectServer#reload(Properties)}.<BR>
+ * Triggered by a change of the property file (directory watched, editors often replace the file)
+ * or by SIGHUP where the JVM supports it. Invalid properties are logged and the running channels kept.
+ */
+@Slf4j
+public class ConfigReloader implements Runnable {
+
+    /**
+     * Wait for more changes before reading, a file is often written in several steps.
+     */
+    private static final long SETTLE_MS = 500L;
+
+    private final TCPRedirectServer server;
+    private final Path file;
+
+    private ConfigReloader(TCPRedirectServer server, Path file) {
+        this.server = server;
+        this.file = file;
+    }
+
+    /**
+     * Watch the property file of server (or agent) and listen to SIGHUP.
+     */
+    public static void start(TCPRedirectServer server, String fileName) {
+        ConfigReloader reloader = new ConfigReloader(server, Paths.get(fileName).toAbsolutePath());
+        Thread t = new Thread(reloader, "ConfigReloader");
+        t.setDaemon(true);
+        t.start();
+        reloader.handleSignal();
+    }
+
+    /**
+     * sun.misc.Signal is not a standard API: loaded by reflection (no compiler warning), reload by file change only if not available.
+     */
+    private void handleSignal() {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+            Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[] {handlerClass}, (proxy, method, args) -> {
+                if("handle".equals(method.getName())) {
+                    log.info("SIGHUP received, reload {}", file);
+                    reload();
+                    return null;
+                }
+                // Object methods of the proxy
+                return method.invoke(this, args);
+            });
+            Object signal = signalClass.getConstructor(String.class).newInstance("HUP");
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+        } catch(Throwable e) {
+            log.warn("Reload on SIGHUP not supported, reload on change of {} only. {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Read the property file and apply it. Serialized by {@link TCPRedirectServer#reload(Properties)}.
+     */
+    void reload() {
+        try {
+            Properties props = new Properties();
+            try(InputStream is = Files.newInputStream(file)) {
+                props.load(is);
+            }
+            server.reload(props);
+        } catch(Exception e) {
+            log.error("Fail to reload {}, running channels are not changed.", file, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        Path dir = file.getParent();
+        Path name = file.getFileName();
+        try(WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            log.info("Watching {} for configuration change.", file);
+            while(true) {
+                WatchKey key = watcher.take();
+                boolean changed = pollChanged(key, name);
+                if(changed == false) {
+                    continue;
+                }
+                // settle, then drop events of the same change
+                while((key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null) {
+                    pollChanged(key, name);
+                }
+                log.info("{} changed, reload.", file);
+                reload();
+            }
+        } catch(InterruptedException | ClosedWatchServiceException e) {
+            log.info("Stop watching {}", file);
+        } catch(Exception e) {
+            log.error("Fail to watch {}, reload on SIGHUP only.", file, e);
+        }
+    }
+
+    /**
+     * Events of key concern the property file. Key is reset.
+     */
+    private static boolean pollChanged(WatchKey key, Path name) {
+        boolean changed = false;
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -19,4 +19,17 @@ public class Constants {
      * Delimiter of hand shaking message. (0x03 STX)
      */
     public static final byte HAND_SHAKE_MSG_DELIMITER = 0x03;
+
+    /**
+     * Reserved channel ID requesting a multiplexed tunnel (see {@link MuxTunnel}).<BR>
+     * '#' is not allowed in channel ID, so never conflict with configured channels.
+     */
+    public static final String MUX_CHANNEL_ID = "#MUX";
+
+    /**
+     * Hand shake request flag, appended to channel ID after a space.<BR>
+     * Client start sending data right after the request without waiting for response,
+     * server send no response and close the socket on error.
+     */
+    public static final String HAND_SHAKE_FLAG_PIPELINED = "PIPELINED";
 }
@@ -0,0 +1,91 @@
+package com.tssaumi.tcpredirect;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflate one direction of a connection (agent-server leg >>> raw data), see {@link Compressor}.
+ */
+public class Decompressor {
+
+    /**
+     * Take a filled and flipped buffer from {@link BufferPool}.
+     */
+    public interface Sink {
+        void put(PooledBuffer buf) throws Exception;
+    }
+
+    private final Inflater inflater = new Inflater(true);	// raw deflate, no zlib header
+    private final CompressionStats stats;
+    private final int bufferSize;
+    private final boolean direct;
+
+    // statics of this connection
+    private volatile long accumIn = 0;
+    private volatile long accumOut = 0;
+    private volatile long accumNanos = 0;
+
+    public Decompressor(CompressionStats stats, int bufferSize, boolean direct) {
+        this.stats = stats;
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Inflate all remaining bytes of input, output buffers are handed to sink.
+     */
+    public void decompress(ByteBuffer in, Sink sink) throws Exception {
+        int inBytes = in.remaining();
+        inflater.setInput(in);
+        while(true) {
+            PooledBuffer pooled = BufferPool.acquire(bufferSize, direct);
+            ByteBuffer buf = pooled.buffer();
+            int len;
+            long start = System.nanoTime();
+            try {
+                len = inflater.inflate(buf);
+            } catch(DataFormatException e) {
+                pooled.release();
+                throw new IOException("Invalid compressed data", e);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                accumNanos += nanos;
+                stats.inflateNanos.add(nanos);
+            }
+            boolean full = (buf.hasRemaining() == false);
+            if(len > 0) {
+                buf.flip();
+                accumOut += len;
+                stats.inflateOutBytes.add(len);
+                sink.put(pooled);
+            } else {
+                pooled.release();
+            }
+            if(full) {
+                continue;	// more output may be pending
+            }
+            if(inflater.needsInput() || inflater.finished()) {
+                break;
+            }
+            if(len == 0) {
+                throw new IOException("Unexpected state of inflater. needsDictionary=" + inflater.needsDictionary());
+            }
+        }
+        accumIn += inBytes;
+        stats.inflateInBytes.add(inBytes);
+    }
+
+    /**
+     * Release native memory of inflater.
+     */
+    public void end() {
+        inflater.end();
+    }
+
+    @Override
+    public String toString() {
+        return CompressionStats.format("inflate", accumIn, accumOut, accumNanos, false);
+    }
+}
@@ -0,0 +1,105 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * When the WRITE side of a connection writes the data gathered so far, per channel.<BR>
+ * Shared by both forwarding engines: the thread engine gathers queued buffers into one gathering write,
+ * the NIO engine keeps reading into the buffer of the direction before writing it.<BR>
+ * Each write is counted in {@link ChannelMetrics} with its {@link Reason} and size.
+ */
+public class FlushPolicy {
+
+    public enum Mode {
+        /**
+         * Write whatever already read, never wait. For interactive protocols, with TCP_NODELAY.
+         */
+        IMMEDIATE,
+        /**
+         * Wait until {@link #size} bytes gathered, at most {@link #delayNs} after the first byte. For bulk transfer.
+         */
+        SIZE,
+        /**
+         * Gather everything read within {@link #delayNs} after the first byte, like Nagle with a bounded delay.
+         */
+        TIME
+    }
+
+    /**
+     * Why the gathered data was written.
+     */
+    public enum Reason {
+        /**
+         * Nothing more read (immediate).
+         */
+        EMPTY,
+        /**
+         * Size threshold reached.
+         */
+        SIZE,
+        /**
+         * Delay after first byte expired.
+         */
+        TIME,
+        /**
+         * No room to gather more (gather array or buffer full).
+         */
+        FULL,
+        /**
+         * Source side closed.
+         */
+        CLOSE;
+
+        final String label = name().toLowerCase();
+    }
+
+    public static final int DEFAULT_SIZE = 40960;	// 40K
+    public static final long DEFAULT_DELAY_US = 200L;
+
+    public static final FlushPolicy DEFAULT = new FlushPolicy(Mode.IMMEDIATE, DEFAULT_SIZE, DEFAULT_DELAY_US);
+
+    public final Mode mode;
+    /**
+     * Max bytes of one write (immediate), or bytes to wait for (size). Not used by time.
+     */
+    public final int size;
+    public final long delayNs;
+
+    public FlushPolicy(Mode mode, int size, long delayUs) {
+        this.mode = mode;
+        this.size = size;
+        this.delayNs = delayUs * 1000L;
+    }
+
+    /**
+     * Wait for more data when nothing more read at the moment.
+     */
+    boolean waits() {
+        return mode != Mode.IMMEDIATE;
+    }
+
+    /**
+     * Enough bytes gathered for one write.
+     */
+    boolean isFull(long bytes) {
+        return mode != Mode.TIME && bytes >= size;
+    }
+
+    /**
+     * Time left to wait for more data, <= 0 to write now.
+     * @param firstNs System.nanoTime() when the first byte of the gathered data was read.
+     */
+    long remainingNs(long firstNs, long now) {
+        return mode == Mode.IMMEDIATE ? 0L : delayNs - (now - firstNs);
+    }
+
+    @Override
+    public String toString() {
+        switch(mode) {
+            case SIZE:
+                return "Flush[size " + size + " bytes, max " + delayNs / 1000 + "us]";
+            case TIME:
+                return "Flush[time " + delayNs / 1000 + "us]";
+            default:
+                return "Flush[immediate]";
+        }
+    }
+}
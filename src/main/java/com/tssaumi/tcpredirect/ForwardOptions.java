@@ -0,0 +1,83 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Per connection options of forwarding, taken by both engines ({@link TCPFwd}, {@link NioFwd}).<BR>
+ * Built from the channel with {@link #of}, defaults are plain forwarding without any channel feature.
+ */
+public class ForwardOptions {
+
+    /**
+     * Channel of the connection, its socket options are applied to both sockets. Null = none.
+     */
+    public RedirectTarget target = null;
+    /**
+     * Read buffer size, rounded to a size class of {@link BufferPool}.
+     */
+    public int bufferSize = BufferPool.BUF_SIZE;
+    /**
+     * Counters of the channel.
+     */
+    public ChannelMetrics metrics = ChannelMetrics.of(null);
+    /**
+     * When data read is written to the other side.
+     */
+    public FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    /**
+     * Close connection without traffic for this long, see {@link IdleReaper}. 0 = never.
+     */
+    public long idleTimeoutMs = 0L;
+    /**
+     * End of stream from one side shut down output of the other side only, connection is closed when both directions ended.
+     * Otherwise end of stream close both sides at once.
+     */
+    public boolean halfClose = false;
+    /**
+     * Rate limits of writes to side {@link Shaper#side}, or null.
+     */
+    public Shaper shaper = null;
+    /**
+     * Tap of data read from both sides, or null.
+     */
+    public PayloadCapture capture = null;
+    /**
+     * Side connected to the other end of tcp-redirect (agent-server leg), deflate data written to it and inflate data read from it.
+     * Null = no compression. Thread engine only.
+     */
+    public TCPFwd.TYPE compressedSide = null;
+    public CompressionStats compressionStats = null;
+    public int compressionLevel = 0;
+    /**
+     * Called once when connection closed, or null.
+     */
+    public Runnable onClose = null;
+
+    /**
+     * @param target channel of the connection, or null for defaults.
+     * @param caps features agreed in hand shake, or null for default.
+     * @param tunnelSide side connected to the other end of tcp-redirect (agent-server leg).
+     * @param onClose called once when forwarding stopped, or null.
+     */
+    public static ForwardOptions of(RedirectTarget target, Capabilities caps, TCPFwd.TYPE tunnelSide, Runnable onClose) {
+        ForwardOptions options = new ForwardOptions();
+        options.onClose = onClose;
+        if(caps != null) {
+            options.bufferSize = caps.bufferSize;
+        }
+        if(target == null) {
+            return options;
+        }
+        options.target = target;
+        options.metrics = target.getMetrics();
+        options.flushPolicy = target.flushPolicy;
+        options.idleTimeoutMs = target.idleTimeoutMs;
+        options.halfClose = target.halfClose;
+        options.shaper = (tunnelSide != null ? Shaper.of(target, tunnelSide) : null);
+        options.capture = target.getCapture();
+        if(caps != null && caps.compression == Capabilities.COMPRESSION_DEFLATE) {
+            options.compressedSide = tunnelSide;
+            options.compressionStats = target.compressionStats;
+            options.compressionLevel = target.compressionLevel;
+        }
+        return options;
+    }
+}
@@ -0,0 +1,47 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Start forwarding between two connected sockets with the engine selected by {@link Config#engine}.
+ */
+@Slf4j
+public class Forwarders {
+
+    public static void start(long uid, Socket clientSocket, Socket serverSocket) throws IOException {
+        start(uid, clientSocket, serverSocket, null);
+    }
+
+    /**
+     * @param serverEarlyData data already read from server socket (not flipped), or null. Written to client first.
+     */
+    public static void start(long uid, Socket clientSocket, Socket serverSocket, PooledBuffer serverEarlyData) throws IOException {
+        start(uid, clientSocket, serverSocket, serverEarlyData, new ForwardOptions());
+    }
+
+    /**
+     * @param options per connection options, see {@link ForwardOptions#of}.
+     */
+    public static void start(long uid, Socket clientSocket, Socket serverSocket, PooledBuffer serverEarlyData, ForwardOptions options) throws IOException {
+        if(options.target != null) {
+            options.target.configure(clientSocket);
+            options.target.configure(serverSocket);
+        }
+        if(options.compressedSide != null) {
+            // deflate is done by the thread engine only
+            new TCPFwd(uid, clientSocket, serverSocket, false, false, serverEarlyData, options);
+            return;
+        }
+        if(Config.engine == Config.Engine.NIO) {
+            if(clientSocket.getChannel() != null && serverSocket.getChannel() != null) {
+                NioFwdEngine.getInstance().forward(uid, clientSocket, serverSocket, serverEarlyData, options);
+                return;
+            }
+            log.warn("[#{}] Socket without channel, fallback to thread engine. client={} server={}", uid, clientSocket, serverSocket);
+        }
+        new TCPFwd(uid, clientSocket, serverSocket, false, false, serverEarlyData, options);
+    }
+}
@@ -0,0 +1,218 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run hand shakes of accepted sockets with admission control.<BR>
+ * At most {@link Config#handshakeMaxInFlight} hand shakes (including connect to the target) run at once,
+ * and at most {@link Config#handshakeMaxPerSource} of them from the same source address.
+ * Over the limit, the socket is rejected at once in the accept thread: closed with SO_LINGER 0 (RST),
+ * no thread, no buffer and no TIME_WAIT spent on it.<BR>
+ * Connects of streams opened in multiplexed tunnels run here too, within the same in-flight limit.
+ */
+@Slf4j
+public class HandShakeExecutor {
+
+    private static volatile HandShakeExecutor instance = null;
+
+    private final int maxInFlight;
+    private final int maxPerSource;
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<InetAddress, Integer> perSource = new ConcurrentHashMap<>();
+    /**
+     * Null with virtual threads, one virtual thread per hand shake is cheap.
+     */
+    private final ThreadPoolExecutor pool;
+
+    private final LongAdder rejectedBusy = new LongAdder();
+    private final LongAdder rejectedPerSource = new LongAdder();
+
+    private HandShakeExecutor() {
+        this.maxInFlight = Math.max(1, Config.handshakeMaxInFlight);
+        this.maxPerSource = Config.handshakeMaxPerSource;
+        this.inFlight = new Semaphore(maxInFlight);
+        if(Config.virtualThreads && Threads.isVirtualThreadSupported()) {
+            this.pool = null;
+        } else {
+            // as many threads as permits, so a task never waits in queue for long
+            AtomicLong threadCount = new AtomicLong(1);
+            this.pool = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "HandShake-" + threadCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            this.pool.allowCoreThreadTimeOut(true);
+        }
+        log.info("Hand shake executor: max.inflight={} max.per.source={} timeout={}ms",
+                maxInFlight, maxPerSource, Config.handshakeTimeoutMs);
+    }
+
+    public static HandShakeExecutor getInstance() {
+        HandShakeExecutor executor = instance;
+        if(executor == null) {
+            synchronized(HandShakeExecutor.class) {
+                executor = instance;
+                if(executor == null) {
+                    executor = new HandShakeExecutor();
+                    instance = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Run hand shake of the socket, or reject the socket if over limit.
+     * @param stats counters of the listener accepted the socket.
+     * @return false if rejected.
+     */
+    public boolean execute(Socket socket, Runnable handShake, ListenerStats stats) {
+        InetAddress source = getSource(socket);
+        if(acquireSource(source) == false) {
+            rejectedPerSource.increment();
+            reject(socket, stats, "max.per.source");
+            return false;
+        }
+        if(inFlight.tryAcquire() == false) {
+            releaseSource(source);
+            rejectedBusy.increment();
+            reject(socket, stats, "max.inflight");
+            return false;
+        }
+        try {
+            submit(handShake, source);
+        } catch(Throwable e) {
+            log.error("Fail to start hand shake! Drop socket: {}", socket, e);
+            reject(socket, stats, "error");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run connect of a stream opened in a multiplexed tunnel, counted in {@link Config#handshakeMaxInFlight}.
+     * No source limit, all streams come from the same agent.
+     * @return false if over limit, caller resets the stream.
+     */
+    public boolean execute(Runnable connect) {
+        if(inFlight.tryAcquire() == false) {
+            rejectedBusy.increment();
+            return false;
+        }
+        try {
+            submit(connect, null);
+        } catch(Throwable e) {
+            log.error("Fail to start stream connect!", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run task holding a permit (and the source), both released when done or if it cannot start.
+     */
+    private void submit(Runnable handShake, InetAddress source) {
+        Runnable task = () -> {
+            try {
+                handShake.run();
+            } finally {
+                inFlight.release();
+                releaseSource(source);
+            }
+        };
+        try {
+            if(pool != null) {
+                pool.execute(task);
+            } else {
+                Threads.start("HandShake", task);
+            }
+        } catch(Throwable e) {
+            inFlight.release();
+            releaseSource(source);
+            throw e;
+        }
+    }
+
+    /**
+     * Null (not limited) for loopback clients, i.e. local applications of agent.
+     */
+    private InetAddress getSource(Socket socket) {
+        if(maxPerSource <= 0) {
+            return null;
+        }
+        SocketAddress remote = socket.getRemoteSocketAddress();
+        if(remote instanceof InetSocketAddress) {
+            InetAddress addr = ((InetSocketAddress)remote).getAddress();
+            if(addr != null && addr.isLoopbackAddress() == false) {
+                return addr;
+            }
+        }
+        return null;
+    }
+
+    private boolean acquireSource(InetAddress source) {
+        if(source == null) {
+            return true;
+        }
+        if(perSource.merge(source, 1, Integer::sum) > maxPerSource) {
+            releaseSource(source);
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseSource(InetAddress source) {
+        if(source != null) {
+            perSource.computeIfPresent(source, (k, v) -> (v > 1 ? v - 1 : null));
+        }
+    }
+
+    /**
+     * Reset instead of graceful close, in the calling (accept) thread.
+     */
+    private static void reject(Socket socket, ListenerStats stats, String reason) {
+        if(stats != null) {
+            stats.rejected();
+        }
+        log.debug("Reject socket ({}): {}", reason, socket);
+        try {
+            socket.setSoLinger(true, 0);
+        } catch(IOException e) {
+            // closing anyway
+        }
+        try {
+            socket.close();
+        } catch(IOException e) {
+            log.debug("Fail to close rejected socket: {}", socket, e);
+        }
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getSourceCount() {
+        return perSource.size();
+    }
+
+    public long getRejectedBusy() {
+        return rejectedBusy.sum();
+    }
+
+    public long getRejectedPerSource() {
+        return rejectedPerSource.sum();
+    }
+}
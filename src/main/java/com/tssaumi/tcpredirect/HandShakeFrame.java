@@ -0,0 +1,99 @@
+package com.tssaumi.tcpredirect;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encoding of hand shake messages.<BR>
+ * <BR>
+ * Version 1 (text): [CHANNEL ID][ FLAG]...(padding space)[DELIMITER], fixed {@link Constants#HAND_SHAKE_MSG_SIZE} bytes.
+ * Response: [HOST:PORT](padding space)[DELIMITER].<BR>
+ * <BR>
+ * Version 2 (binary), first byte {@link #MAGIC} never starts a version 1 message:
+ * <UL>
+ *     <LI>Request: [MAGIC][VERSION][FLAGS][CHANNEL LENGTH][CHANNEL ID][CAPABILITIES]</LI>
+ *     <LI>Response: [MAGIC][VERSION][STATUS][CAPABILITIES]</LI>
+ * </UL>
+ * CAPABILITIES is encoded by {@link Capabilities}. Server send the response even for pipelined requests,
+ * agent read it before forwarding data from server.
+ */
+public class HandShakeFrame {
+
+    /**
+     * 0xFF is never valid in UTF-8, so it can't be the first byte of a version 1 request.
+     */
+    public static final byte MAGIC = (byte)0xFF;
+    public static final byte VERSION_1 = 1;
+    public static final byte VERSION_2 = 2;
+
+    /**
+     * Bytes before channel ID of request, and before capabilities of response.
+     */
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_CHANNEL_SIZE = 255;
+
+    public static final byte FLAG_PIPELINED = 0x01;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_UNKNOWN_CHANNEL = 1;
+    public static final byte STATUS_UNSUPPORTED_VERSION = 2;
+
+    private static final Capabilities NONE = new Capabilities();
+
+    static final byte[] RESPONSE_UNKNOWN_CHANNEL = encodeResponse(STATUS_UNKNOWN_CHANNEL, NONE);
+    static final byte[] RESPONSE_UNSUPPORTED_VERSION = encodeResponse(STATUS_UNSUPPORTED_VERSION, NONE);
+    static final byte[] RESPONSE_MUX_V1 = encodeV1(Constants.MUX_CHANNEL_ID);
+    static final byte[] RESPONSE_MUX_V2 = encodeResponse(STATUS_OK, NONE);
+    static final byte[] MUX_CHANNEL_BYTES = Constants.MUX_CHANNEL_ID.getBytes(StandardCharsets.UTF_8);
+    static final byte[] FLAG_PIPELINED_V1 = Constants.HAND_SHAKE_FLAG_PIPELINED.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Version 1 message, space padded with delimiter.
+     */
+    public static byte[] encodeV1(String msg) {
+        byte[] bytes = new byte[Constants.HAND_SHAKE_MSG_SIZE];
+        Arrays.fill(bytes, (byte)0x20);
+        byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
+        if(msgBytes.length > Constants.HAND_SHAKE_MSG_SIZE - 1) {
+            throw new IllegalArgumentException("Hand shake message too long: " + msg);
+        }
+        System.arraycopy(msgBytes, 0, bytes, 0, msgBytes.length);
+        bytes[bytes.length - 1] = Constants.HAND_SHAKE_MSG_DELIMITER;
+        return bytes;
+    }
+
+    public static byte[] encodeRequest(byte[] channel, int flags, Capabilities caps) {
+        if(channel.length > MAX_CHANNEL_SIZE) {
+            throw new IllegalArgumentException("Channel ID too long: " + channel.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + channel.length + caps.encodedSize());
+        buf.put(MAGIC).put(VERSION_2).put((byte)flags).put((byte)channel.length);
+        buf.put(channel);
+        caps.encode(buf);
+        return buf.array();
+    }
+
+    public static byte[] encodeResponse(byte status, Capabilities caps) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE - 1 + caps.encodedSize());
+        buf.put(MAGIC).put(VERSION_2).put(status);
+        caps.encode(buf);
+        return buf.array();
+    }
+
+    /**
+     * Index of first space in a version 1 message, i.e. end of channel ID.
+     */
+    static int channelEndV1(byte[] msg) {
+        for(int i=0; i < Constants.HAND_SHAKE_MSG_SIZE - 1; i++) {
+            if(msg[i] == 0x20) {
+                return i;
+            }
+        }
+        return Constants.HAND_SHAKE_MSG_SIZE - 1;
+    }
+
+    static boolean equals(byte[] a, byte[] msg, int off, int len) {
+        return a.length == len && Arrays.equals(a, 0, len, msg, off, off + len);
+    }
+}
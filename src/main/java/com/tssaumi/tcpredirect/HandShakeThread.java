@@ -6,32 +6,52 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Flow:
  * <OL>
- *     <LI>Client side send request message: [CHANNEL ID](padding space)</LI>
+ *     <LI>Client side send request message, version 1 or 2, see {@link HandShakeFrame}</LI>
+ *     <LI>Server side send pre-encoded response of the target (none for version 1 pipelined request)</LI>
  * </OL>
  */
 @Slf4j
-public class HandShakeThread extends Thread {
+public class HandShakeThread implements Runnable {
     protected Socket socket = null;
-    protected final AtomicLong connCount = new AtomicLong(1);
+    protected static final AtomicLong connCount = new AtomicLong(1);
 
     protected RedirectTarget target = null;
 
+    /**
+     * Server owning the channels, null on agent side.
+     */
+    protected TCPRedirectServer server = null;
+
+    /**
+     * Client requested a multiplexed tunnel instead of a single channel.
+     */
+    protected boolean muxTunnel = false;
+
+    /**
+     * Features agreed in hand shake, default for version 1.
+     */
+    protected Capabilities caps = null;
+
     public HandShakeThread(Socket socket) {
         this.socket = socket;
     }
 
+    public HandShakeThread(Socket socket, TCPRedirectServer server) {
+        this.socket = socket;
+        this.server = server;
+    }
+
     @Override
     public void run() {
         InputStream is = null;
         OutputStream os = null;
-        Socket serverSocket = null;
         try {
             is = socket.getInputStream();
             os = socket.getOutputStream();
@@ -39,11 +59,16 @@ public class HandShakeThread extends Thread {
             // hand shaking
             handShake(socket, is, os);
 
+            if(muxTunnel) {
+                MuxTunnel tunnel = new MuxTunnel(nextUid(), socket, server);
+                tunnel.start();
+                return;
+            }
+
             // start redirecting ...
-            serverSocket = new Socket(target.host, target.port);
-            log.info("Server connected: {}", serverSocket);
-            long uid = connCount.getAndIncrement();
-            TCPFwd tcpFwd = new TCPFwd(uid, socket, serverSocket, false, false);
+            IdleSocketPool.ReadySocket ready = LoadBalancer.connect(target);
+            log.info("Server connected: {} backend={} active={}", ready.socket, ready.backend, ready.backend.getActiveConnections());
+            Forwarders.start(nextUid(), socket, ready.socket, ready.earlyData, ForwardOptions.of(target, caps, TCPFwd.TYPE.CLIENT, ready.backend::release));
 
         } catch(Exception e) {
             log.error("Fail hand shake with client! Drop socket: {}", socket, e);
@@ -51,63 +76,149 @@ public class HandShakeThread extends Thread {
         }
     }
 
-    protected RedirectTarget getTarget(String channelId) {
-        return TCPRedirectServer.getTarget(channelId);
+    /**
+     * Unique ID of connection, for logging.
+     */
+    static long nextUid() {
+        return connCount.getAndIncrement();
+    }
+
+    protected RedirectTarget getTarget(byte[] buf, int off, int len) {
+        return server.getTarget(buf, off, len);
     }
 
     protected void handShake(Socket socket, InputStream is, OutputStream os) throws IOException {
         long startTime = System.nanoTime();
 
-        socket.setSoTimeout(Constants.MAX_HAND_SHAKE_IDLE_MS);
+        socket.setSoTimeout(Config.handshakeTimeoutMs);
 
-        // wait for message, which is fixed 50 byte length;
+        // first byte tell the version
         byte[] reqMsg = new byte[Constants.HAND_SHAKE_MSG_SIZE];
-        int readSize = 0;
-        while(readSize < Constants.HAND_SHAKE_MSG_SIZE) {
-            long curTime = System.nanoTime();
-            if((curTime - startTime) > Constants.MAX_HAND_SHAKE_IDLE_MS * 1_000_000L) {
-                // timeout!
-                log.error("Timeout during hand shaking. Elapsed Time({})", Util.elapsedTimeUs(startTime, curTime));
-                throw new IOException("Timeout during hand shaking. Elapsed Time("+Util.elapsedTimeUs(startTime, curTime)+")");
-            }
-            int len = is.read(reqMsg, readSize, reqMsg.length - readSize);
-            if(len < 0) {
-                // end of stream detetced!
-                throw new IOException("Read "+len+" from input stream during hand shaking.");
-            } else {
-                readSize += len;
-            }
+        readFully(is, reqMsg, 0, 1, startTime);
+        if(reqMsg[0] == HandShakeFrame.MAGIC) {
+            handShakeV2(socket, is, os, reqMsg, startTime);
+        } else {
+            handShakeV1(socket, is, os, reqMsg, startTime);
         }
-        // check request message
-        if(readSize != Constants.HAND_SHAKE_MSG_SIZE) {
-            // invalid request message size
-            throw new IOException("Invalid request message size: size="+readSize);
+        if(caps != null && caps.keepAlive) {
+            socket.setKeepAlive(true);
         }
+
+        socket.setSoTimeout(0);
+    }
+
+    /**
+     * Request: [CHANNEL ID][ FLAG]...(padding space)[DELIMITER], fixed 50 byte length. First byte already read.
+     */
+    private void handShakeV1(Socket socket, InputStream is, OutputStream os, byte[] reqMsg, long startTime) throws IOException {
+        readFully(is, reqMsg, 1, Constants.HAND_SHAKE_MSG_SIZE - 1, startTime);
         if(reqMsg[Constants.HAND_SHAKE_MSG_SIZE - 1] != Constants.HAND_SHAKE_MSG_DELIMITER) {
             // Invalid request message delimiter
             throw new IOException("Invalid request message. Delimiter: "+reqMsg[Constants.HAND_SHAKE_MSG_SIZE - 1]);
         }
-        String reqMsgStr = new String(reqMsg, 0, Constants.HAND_SHAKE_MSG_SIZE - 1, StandardCharsets.UTF_8);
-        String channelId = reqMsgStr.trim();
-        log.info("Socket {}: Channel ID: {}", socket, channelId);
+        int channelEnd = HandShakeFrame.channelEndV1(reqMsg);
+        boolean pipelined = false;
+        int pos = channelEnd;
+        while(pos < Constants.HAND_SHAKE_MSG_SIZE - 1) {
+            if(reqMsg[pos] == 0x20) {
+                pos++;
+                continue;
+            }
+            int end = pos;
+            while(end < Constants.HAND_SHAKE_MSG_SIZE - 1 && reqMsg[end] != 0x20) {
+                end++;
+            }
+            if(HandShakeFrame.equals(HandShakeFrame.FLAG_PIPELINED_V1, reqMsg, pos, end - pos)) {
+                pipelined = true;
+            } else {
+                throw new IOException("Invalid hand shake flag: "+new String(reqMsg, pos, end - pos, StandardCharsets.UTF_8));
+            }
+            pos = end;
+        }
+
+        if(HandShakeFrame.equals(HandShakeFrame.MUX_CHANNEL_BYTES, reqMsg, 0, channelEnd)) {
+            log.info("Socket {}: Channel ID: {} version=1", socket, Constants.MUX_CHANNEL_ID);
+            this.muxTunnel = true;
+            writeResponse(os, HandShakeFrame.RESPONSE_MUX_V1);
+            return;
+        }
 
-        this.target = getTarget(channelId);
+        this.target = getTarget(reqMsg, 0, channelEnd);
         if(target == null) {
             // invalid channel ID
-            throw new IOException("Invalid channel ID: "+channelId);
+            throw new IOException("Invalid channel ID: "+new String(reqMsg, 0, channelEnd, StandardCharsets.UTF_8));
         }
+        this.caps = target.capsV1;
+        log.info("Socket {}: Channel ID: {} version=1 pipelined={}", socket, target.channel, pipelined);
 
-        byte[] respBytes = new byte[Constants.HAND_SHAKE_MSG_SIZE];
-        Arrays.fill(respBytes, (byte)0x20);
-        byte[] addrBytes = ("" + target.host + ":" + target.port).getBytes(StandardCharsets.UTF_8);
-        for(int i=0; i < addrBytes.length; i++) {
-            respBytes[i] = addrBytes[i];
+        if(pipelined == false) {
+            writeResponse(os, target.responseV1);
         }
-        respBytes[respBytes.length - 1] = Constants.HAND_SHAKE_MSG_DELIMITER;
-        os.write(respBytes, 0, Constants.HAND_SHAKE_MSG_SIZE);
-        os.flush();
+    }
 
-        socket.setSoTimeout(0);
+    /**
+     * Request: [MAGIC][VERSION][FLAGS][CHANNEL LENGTH][CHANNEL ID][CAPABILITIES]. Magic already read.
+     */
+    private void handShakeV2(Socket socket, InputStream is, OutputStream os, byte[] reqMsg, long startTime) throws IOException {
+        readFully(is, reqMsg, 1, HandShakeFrame.HEADER_SIZE - 1, startTime);
+        if(reqMsg[1] != HandShakeFrame.VERSION_2) {
+            writeResponse(os, HandShakeFrame.RESPONSE_UNSUPPORTED_VERSION);
+            throw new IOException("Unsupported hand shake version: "+reqMsg[1]);
+        }
+        boolean pipelined = (reqMsg[2] & HandShakeFrame.FLAG_PIPELINED) != 0;
+        int channelLen = reqMsg[3] & 0xFF;
+
+        // channel ID and capability count, usually fit in the 50 bytes
+        byte[] body = (channelLen + 1 <= reqMsg.length ? reqMsg : new byte[channelLen + 1]);
+        readFully(is, body, 0, channelLen + 1, startTime);
+        int capCount = body[channelLen] & 0xFF;
+        byte[] capBytes = new byte[capCount * Capabilities.ENCODED_SIZE];
+        readFully(is, capBytes, 0, capBytes.length, startTime);
+        Capabilities agentCaps = Capabilities.decode(ByteBuffer.wrap(capBytes), capCount);
+
+        if(HandShakeFrame.equals(HandShakeFrame.MUX_CHANNEL_BYTES, body, 0, channelLen)) {
+            log.info("Socket {}: Channel ID: {} version=2", socket, Constants.MUX_CHANNEL_ID);
+            this.muxTunnel = true;
+            writeResponse(os, HandShakeFrame.RESPONSE_MUX_V2);
+            return;
+        }
+
+        this.target = getTarget(body, 0, channelLen);
+        if(target == null) {
+            writeResponse(os, HandShakeFrame.RESPONSE_UNKNOWN_CHANNEL);
+            throw new IOException("Invalid channel ID: "+new String(body, 0, channelLen, StandardCharsets.UTF_8));
+        }
+        this.caps = Capabilities.negotiate(agentCaps, target.caps);
+        log.info("Socket {}: Channel ID: {} version=2 pipelined={} {}", socket, target.channel, pipelined, caps);
+
+        // always respond in version 2, pipelined agent read it before forwarding data from server
+        writeResponse(os, target.responseV2);
+    }
+
+    /**
+     * Read exactly len bytes, fail if hand shake take longer than {@link Config#handshakeTimeoutMs}.
+     */
+    protected static void readFully(InputStream is, byte[] buf, int off, int len, long startTime) throws IOException {
+        int readSize = 0;
+        while(readSize < len) {
+            long curTime = System.nanoTime();
+            if((curTime - startTime) > Config.handshakeTimeoutMs * 1_000_000L) {
+                // timeout!
+                log.error("Timeout during hand shaking. Elapsed Time({})", Util.elapsedTimeUs(startTime, curTime));
+                throw new IOException("Timeout during hand shaking. Elapsed Time("+Util.elapsedTimeUs(startTime, curTime)+")");
+            }
+            int n = is.read(buf, off + readSize, len - readSize);
+            if(n < 0) {
+                // end of stream detetced!
+                throw new IOException("Read "+n+" from input stream during hand shaking.");
+            }
+            readSize += n;
+        }
+    }
+
+    private void writeResponse(OutputStream os, byte[] resp) throws IOException {
+        os.write(resp);
+        os.flush();
     }
 
 }
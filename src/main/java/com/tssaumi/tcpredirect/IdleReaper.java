@@ -0,0 +1,187 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Close connections without traffic for the idle timeout of their channel.<BR>
+ * One hashed timer wheel served by a single thread for all connections. Forwarding threads only write
+ * their activity time, nothing is rescheduled on traffic: when an entry expires the wheel looks at the
+ * last activity, closes the connection or puts the entry back at last activity + timeout.<BR>
+ * Entries are added and cancelled through queues drained by the wheel thread, so the wheel itself needs no lock.
+ */
+@Slf4j
+public class IdleReaper {
+
+    private static final long TICK_NS = 100_000_000L;	// 100 ms
+    private static final int WHEEL_SIZE = 512;	// one turn = 51.2 s, longer timeouts wait for their turn
+
+    /**
+     * Connection watched by the reaper.
+     */
+    public interface Watched {
+        /**
+         * System.nanoTime() of the latest read or write of any side.
+         */
+        long getLastActivityNs();
+
+        /**
+         * Called by the wheel thread once idle timeout expired, must not block.
+         */
+        void closeIdle(long idleMs);
+    }
+
+    /**
+     * Handle of a watched connection, see {@link #cancel(Entry)}.
+     */
+    public static class Entry {
+        private final Watched conn;
+        private final long timeoutNs;
+        private volatile boolean cancelled = false;
+
+        // wheel thread only
+        private long deadlineTick = 0L;
+        private int slot = -1;	// -1 = not linked
+        private Entry prev = null;
+        private Entry next = null;
+
+        private Entry(Watched conn, long timeoutNs) {
+            this.conn = conn;
+            this.timeoutNs = timeoutNs;
+        }
+    }
+
+    private static volatile IdleReaper instance = null;
+
+    static IdleReaper getInstance() {
+        IdleReaper reaper = instance;
+        if(reaper == null) {
+            synchronized(IdleReaper.class) {
+                reaper = instance;
+                if(reaper == null) {
+                    reaper = new IdleReaper();
+                    instance = reaper;
+                }
+            }
+        }
+        return reaper;
+    }
+
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+
+    // wheel thread only
+    private final Entry[] wheel = new Entry[WHEEL_SIZE];
+    private final long startNs = System.nanoTime();
+    private long tick = 0L;
+
+    private IdleReaper() {
+        Thread t = new Thread(this::run, "IdleReaper");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Watch a connection. Return null (nothing to cancel) if timeoutMs <= 0.
+     */
+    public static Entry watch(Watched conn, long timeoutMs) {
+        if(timeoutMs <= 0) {
+            return null;
+        }
+        Entry e = new Entry(conn, timeoutMs * 1_000_000L);
+        IdleReaper reaper = getInstance();
+        reaper.added.add(e);
+        return e;
+    }
+
+    /**
+     * Stop watching a closed connection, so it is not referenced until its timeout. Null is ignored.
+     */
+    public static void cancel(Entry e) {
+        if(e == null || e.cancelled) {
+            return;
+        }
+        e.cancelled = true;
+        getInstance().cancelled.add(e);
+    }
+
+    private void run() {
+        while(true) {
+            try {
+                long wait;
+                while((wait = startNs + (tick + 1) * TICK_NS - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                tick++;
+
+                Entry e;
+                while((e = cancelled.poll()) != null) {
+                    unlink(e);
+                }
+                while((e = added.poll()) != null) {
+                    if(e.cancelled == false) {
+                        schedule(e, e.conn.getLastActivityNs() + e.timeoutNs);
+                    }
+                }
+                expire();
+            } catch(Exception ex) {
+                log.error("Unexpected exception in idle reaper", ex);
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        int slot = (int)(tick % WHEEL_SIZE);
+        Entry e = wheel[slot];
+        while(e != null) {
+            Entry next = e.next;
+            if(e.deadlineTick <= tick) {
+                unlink(e);
+                long idleNs = now - e.conn.getLastActivityNs();
+                if(idleNs >= e.timeoutNs) {
+                    try {
+                        e.conn.closeIdle(idleNs / 1_000_000L);
+                    } catch(Exception ex) {
+                        log.error("Fail to close idle connection {}", e.conn, ex);
+                    }
+                } else {
+                    schedule(e, now - idleNs + e.timeoutNs);
+                }
+            }
+            e = next;
+        }
+    }
+
+    private void schedule(Entry e, long deadlineNs) {
+        long deadlineTick = (deadlineNs - startNs + TICK_NS - 1) / TICK_NS;
+        e.deadlineTick = Math.max(tick + 1, deadlineTick);
+        e.slot = (int)(e.deadlineTick % WHEEL_SIZE);
+        e.prev = null;
+        e.next = wheel[e.slot];
+        if(e.next != null) {
+            e.next.prev = e;
+        }
+        wheel[e.slot] = e;
+    }
+
+    private void unlink(Entry e) {
+        if(e.slot < 0) {
+            return;
+        }
+        if(e.prev != null) {
+            e.prev.next = e.next;
+        } else {
+            wheel[e.slot] = e.next;
+        }
+        if(e.next != null) {
+            e.next.prev = e.prev;
+        }
+        e.prev = null;
+        e.next = null;
+        e.slot = -1;
+    }
+}
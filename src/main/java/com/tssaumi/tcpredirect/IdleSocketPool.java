@@ -0,0 +1,218 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idle sockets of a channel connected in advance, so accepted client get one immediately.<BR>
+ * Pool is refilled to {@link RedirectTarget#poolMinIdle} in background, sockets older than
+ * {@link RedirectTarget#poolMaxAgeMs} or closed by peer are dropped before handed out.<BR>
+ * Each client finding the pool empty raises the size kept by one, up to {@link RedirectTarget#poolMaxIdle},
+ * each socket expired unused lowers it again by one, down to min idle.<BR>
+ * Every pool has its own refiller thread, a channel with an unreachable target does not delay the others.
+ */
+@Slf4j
+public abstract class IdleSocketPool {
+
+    private static final long REFILL_INTERVAL_MS = 1000L;
+
+    /**
+     * Socket ready for forwarding.
+     */
+    public static class ReadySocket {
+        public final Socket socket;
+        /**
+         * Data already sent by target (e.g. greeting), not flipped. Or null.
+         */
+        public PooledBuffer earlyData = null;
+        /**
+         * Features agreed in hand shake with redirect server, or null.
+         */
+        public Capabilities caps = null;
+        /**
+         * (server) Backend connected to, or null.
+         */
+        public Backend backend = null;
+        final long createTimeNs = System.nanoTime();
+
+        public ReadySocket(Socket socket) {
+            this.socket = socket;
+        }
+
+        void discard() {
+            if(earlyData != null) {
+                earlyData.release();
+                earlyData = null;
+            }
+            SocketKiller.killSocket(socket, null, null);
+        }
+    }
+
+    protected final RedirectTarget target;
+
+    /**
+     * Connect one socket at a time.
+     */
+    private final ScheduledExecutorService refiller;
+
+    private final ConcurrentLinkedDeque<ReadySocket> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+    private final AtomicBoolean refilling = new AtomicBoolean(false);
+    /**
+     * Idle sockets kept above min idle, raised by clients finding the pool empty.
+     */
+    private final AtomicInteger extraIdle = new AtomicInteger(0);
+    private volatile ScheduledFuture<?> refillTask = null;
+    private volatile boolean stopped = false;
+
+    protected IdleSocketPool(RedirectTarget target) {
+        this.target = target;
+        this.refiller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "PoolRefiller-" + target.channel);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * False to stop connecting new sockets, e.g. backend is down.
+     */
+    protected boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * Open a new socket ready for forwarding. Called by refiller thread.
+     */
+    protected abstract ReadySocket connect() throws Exception;
+
+    public void start() {
+        refillTask = refiller.scheduleWithFixedDelay(this::refill, 0, REFILL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        log.info("{} started. minIdle={} maxIdle={} maxAge={}ms", this,
+                target.poolMinIdle, target.poolMaxIdle, target.poolMaxAgeMs);
+    }
+
+    /**
+     * Stop refilling and close idle sockets, e.g. channel removed by reload. Sockets already borrowed are not affected.
+     */
+    public void stop() {
+        stopped = true;
+        ScheduledFuture<?> task = refillTask;
+        if(task != null) {
+            task.cancel(false);
+        }
+        // close idle sockets, then let the thread end
+        requestRefill();
+        refiller.shutdown();
+        log.info("{} stopped.", this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " of channel " + target.channel;
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Take a live idle socket, newest first. Return null if pool is empty.
+     */
+    public ReadySocket borrow() {
+        ReadySocket ready;
+        try {
+            while((ready = idle.pollLast()) != null) {
+                idleCount.decrementAndGet();
+                if(isUsable(ready)) {
+                    return ready;
+                }
+                ready.discard();
+            }
+            // keep one more next time
+            extraIdle.updateAndGet(n -> Math.min(n + 1, target.poolMaxIdle - target.poolMinIdle));
+            return null;
+        } finally {
+            requestRefill();
+        }
+    }
+
+    private void requestRefill() {
+        try {
+            refiller.execute(this::refill);
+        } catch(RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private boolean isExpired(ReadySocket ready) {
+        return (System.nanoTime() - ready.createTimeNs) > target.poolMaxAgeMs * 1_000_000L;
+    }
+
+    private boolean isUsable(ReadySocket ready) {
+        if(isExpired(ready)) {
+            return false;
+        }
+        try {
+            ready.earlyData = Util.readAvailable(ready.socket, ready.earlyData);
+            return true;
+        } catch(Exception e) {
+            log.debug("Drop pooled socket closed by peer: {}", ready.socket);
+            return false;
+        }
+    }
+
+    /**
+     * Drop expired or dead idle sockets, then connect until min idle plus extra reached. Run on refiller thread.
+     */
+    private void refill() {
+        if(refilling.compareAndSet(false, true) == false) {
+            return;
+        }
+        try {
+            // take out before check, never probe a socket being borrowed
+            int count = idleCount.get();
+            for(int i=0; i < count; i++) {
+                ReadySocket ready = idle.pollFirst();
+                if(ready == null) {
+                    break;
+                }
+                if(isUsable(ready)) {
+                    idle.addLast(ready);
+                } else {
+                    if(isExpired(ready)) {
+                        // not needed for a whole max age, keep one less
+                        extraIdle.updateAndGet(n -> Math.max(n - 1, 0));
+                    }
+                    idleCount.decrementAndGet();
+                    ready.discard();
+                }
+            }
+            if(stopped) {
+                ReadySocket ready;
+                while((ready = idle.pollFirst()) != null) {
+                    idleCount.decrementAndGet();
+                    ready.discard();
+                }
+                return;
+            }
+            while(idleCount.get() < target.poolMinIdle + extraIdle.get() && isEnabled()) {
+                idle.addLast(connect());
+                idleCount.incrementAndGet();
+            }
+        } catch(Exception e) {
+            log.error("Fail to refill {}", this, e);
+        } finally {
+            refilling.set(false);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Weighted fair sharing of {@link Config#linkRate} (egress to the other end of tcp-redirect) between channels.<BR>
+ * Every 100 ms the bytes and waits of each channel are looked at:
+ * <UL>
+ * <LI>A channel that did not wait for its share may send up to its guaranteed share, link rate * weight / total weight,
+ *     so a quiet interactive channel gets its data out at once.</LI>
+ * <LI>Channels that waited (bulk) share what the others did not use, by weight, at least their guaranteed share.</LI>
+ * </UL>
+ * Only rates of the channel buckets are changed here, writers never wait for this thread.
+ */
+@Slf4j
+public class LinkScheduler {
+
+    private static final long TICK_MS = 100L;
+
+    /**
+     * Rate limits of a channel, shared by its connections.
+     */
+    public static class Share {
+        final String channel;
+        final int weight;
+        /**
+         * rate.limit of channel, or null.
+         */
+        private final TokenBucket limit;
+        /**
+         * Share of link rate, or null without link.rate.
+         */
+        private final TokenBucket link;
+        private final LongAdder linkBytes = new LongAdder();
+        private final LongAdder linkWaits = new LongAdder();
+
+        // scheduler thread only
+        private long lastBytes = 0L;
+        private long lastWaits = 0L;
+
+        Share(String channel, int weight, TokenBucket limit, TokenBucket link) {
+            this.channel = channel;
+            this.weight = weight;
+            this.limit = limit;
+            this.link = link;
+        }
+
+        long take(long bytes, long now) {
+            long waitNs = 0L;
+            if(limit != null) {
+                waitNs = limit.take(bytes, now);
+            }
+            if(link != null) {
+                linkBytes.add(bytes);
+                long linkWaitNs = link.take(bytes, now);
+                if(linkWaitNs > 0) {
+                    linkWaits.increment();
+                    waitNs = Math.max(waitNs, linkWaitNs);
+                }
+            }
+            return waitNs;
+        }
+
+        /**
+         * Current rate of channel (bytes per second), 0 if not limited.
+         */
+        public long getRate() {
+            long rate = (link != null ? link.getRate() : 0L);
+            if(limit != null && (rate == 0 || limit.getRate() < rate)) {
+                rate = limit.getRate();
+            }
+            return rate;
+        }
+    }
+
+    private static volatile LinkScheduler instance = null;
+
+    static LinkScheduler getInstance() {
+        LinkScheduler scheduler = instance;
+        if(scheduler == null) {
+            synchronized(LinkScheduler.class) {
+                scheduler = instance;
+                if(scheduler == null) {
+                    scheduler = new LinkScheduler();
+                    instance = scheduler;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    private long lastTickNs = System.nanoTime();
+
+    private LinkScheduler() {
+        Thread t = new Thread(this::run, "LinkScheduler");
+        t.setDaemon(true);
+        t.start();
+        log.info("Link scheduler started. link.rate={} bytes/s", Config.linkRate);
+    }
+
+    /**
+     * Rate limits of a channel, or null if channel has no limit and no link.rate.
+     */
+    static Share share(RedirectTarget target) {
+        TokenBucket limit = (target.rateLimit > 0 ? new TokenBucket(target.rateLimit, target.rateBurst) : null);
+        TokenBucket link = null;
+        if(Config.linkRate > 0) {
+            // whole link until first tick
+            link = new TokenBucket(Config.linkRate, target.rateBurst);
+            getInstance();
+        }
+        if(limit == null && link == null) {
+            return null;
+        }
+        return new Share(target.channel, Math.max(1, target.rateWeight), limit, link);
+    }
+
+    private void run() {
+        while(true) {
+            try {
+                Thread.sleep(TICK_MS);
+                tick();
+            } catch(InterruptedException e) {
+                return;
+            } catch(Exception e) {
+                log.error("Unexpected exception in link scheduler", e);
+            }
+        }
+    }
+
+    private void tick() {
+        long linkRate = Config.linkRate;
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNs) / 1e9;
+        lastTickNs = now;
+
+        List<Share> shares = new ArrayList<>();
+        for(RedirectTarget target : TCPRedirectServer.getAllTargets()) {
+            Share s = target.peekShare();
+            if(s != null && s.link != null && shares.contains(s) == false) {
+                shares.add(s);
+            }
+        }
+        if(shares.isEmpty() || seconds <= 0) {
+            return;
+        }
+        double totalWeight = 0;
+        for(Share s : shares) {
+            totalWeight += s.weight;
+        }
+
+        // bandwidth left by channels not waiting, to share between waiting ones
+        double spare = linkRate;
+        double waitingWeight = 0;
+        boolean[] waiting = new boolean[shares.size()];
+        for(int i=0; i < shares.size(); i++) {
+            Share s = shares.get(i);
+            long bytes = s.linkBytes.sum();
+            long waits = s.linkWaits.sum();
+            double used = (bytes - s.lastBytes) / seconds;
+            waiting[i] = (waits != s.lastWaits);
+            s.lastBytes = bytes;
+            s.lastWaits = waits;
+            double guaranteed = linkRate * s.weight / totalWeight;
+            if(waiting[i]) {
+                waitingWeight += s.weight;
+            } else {
+                spare -= Math.min(used, guaranteed);
+            }
+        }
+        for(int i=0; i < shares.size(); i++) {
+            Share s = shares.get(i);
+            double guaranteed = linkRate * s.weight / totalWeight;
+            double rate = (waiting[i] ? Math.max(guaranteed, spare * s.weight / waitingWeight) : guaranteed);
+            s.link.setRate((long)rate);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accept counters of a listening port ({@link PortListener} or {@link ClientPortListener}).<BR>
+ * Accept rate is sampled every second. All listeners are logged every {@link Config#listenerStatsIntervalMs}
+ * together with the accept queue length of the port and the host wide listen overflows, see {@link NetStat}.
+ */
+@Slf4j
+public class ListenerStats implements ListenerStatsMBean {
+
+    private static final long SAMPLE_INTERVAL_MS = 1000L;
+
+    private static final List<ListenerStats> all = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean started = new AtomicBoolean(false);
+    private static final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ListenerStats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @Getter private final String name;
+    @Getter private final int port;
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder acceptErrors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    // updated by sampler thread
+    private long lastAccepted = 0;
+    @Getter private volatile long acceptRate = 0;	// per second
+    @Getter private volatile long peakAcceptRate = 0;
+
+    ListenerStats(String name, int port) {
+        this.name = name;
+        this.port = port;
+        all.add(this);
+        MetricsServer.registerMBean(this, "Listener", name);
+        start();
+    }
+
+    private static void start() {
+        if(started.compareAndSet(false, true) == false) {
+            return;
+        }
+        sampler.scheduleAtFixedRate(ListenerStats::sampleAll, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if(Config.listenerStatsIntervalMs > 0) {
+            sampler.scheduleAtFixedRate(ListenerStats::logAll, Config.listenerStatsIntervalMs, Config.listenerStatsIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static List<ListenerStats> getAll() {
+        return all;
+    }
+
+    void accepted() {
+        accepted.increment();
+    }
+
+    void acceptFailed() {
+        acceptErrors.increment();
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void remove() {
+        all.remove(this);
+        MetricsServer.unregisterMBean("Listener", name);
+    }
+
+    @Override
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getAcceptErrors() {
+        return acceptErrors.sum();
+    }
+
+    /**
+     * Accepted sockets reset by admission control of {@link HandShakeExecutor}.
+     */
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Connections waiting in the accept queue of the port now, -1 if unknown.
+     */
+    @Override
+    public int getAcceptQueueLength() {
+        return NetStat.getAcceptQueueLength(port);
+    }
+
+    private static void sampleAll() {
+        for(ListenerStats stats : all) {
+            long cur = stats.getAccepted();
+            long rate = (cur - stats.lastAccepted) * 1000L / SAMPLE_INTERVAL_MS;
+            stats.lastAccepted = cur;
+            stats.acceptRate = rate;
+            if(rate > stats.peakAcceptRate) {
+                stats.peakAcceptRate = rate;
+            }
+        }
+    }
+
+    private static void logAll() {
+        long overflows = NetStat.getListenOverflows();
+        for(ListenerStats stats : all) {
+            log.info("{} port={} accepted={} rate={}/s peak={}/s errors={} rejected={} queue={} listenOverflows(host)={}",
+                    stats.name, stats.port, stats.getAccepted(), stats.acceptRate, stats.peakAcceptRate,
+                    stats.getAcceptErrors(), stats.getRejected(), stats.getAcceptQueueLength(), overflows);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * JMX view of {@link ListenerStats}, registered as "com.tssaumi.tcpredirect:type=Listener,name=LISTENER".
+ */
+public interface ListenerStatsMBean {
+
+    String getName();
+
+    int getPort();
+
+    long getAccepted();
+
+    long getAcceptErrors();
+
+    long getRejected();
+
+    long getAcceptRate();
+
+    long getPeakAcceptRate();
+
+    int getAcceptQueueLength();
+}
@@ -0,0 +1,34 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Counters of a connection being forwarded, read by {@link ChannelMetrics} while the connection is live.<BR>
+ * Implementations update them from a single thread (or event loop) without lock, readers see volatile values.
+ */
+public interface LiveConnection {
+
+    long getUid();
+
+    String getClientAddress();
+
+    String getServerAddress();
+
+    /**
+     * System.currentTimeMillis() when forwarding started.
+     */
+    long getStartTimeMs();
+
+    /**
+     * Bytes read from client, i.e. client >>> server.
+     */
+    long getClientReadBytes();
+
+    /**
+     * Bytes read from server, i.e. client <<< server.
+     */
+    long getServerReadBytes();
+
+    /**
+     * Bytes read and not yet written, both directions.
+     */
+    long getQueueBytes();
+}
@@ -0,0 +1,155 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side: pick a {@link Backend} of a channel for each connection, and check health of backends in background.<BR>
+ * Ejected backends are skipped, so hand shaking never wait for the connect timeout of a dead host more than once.
+ * When all backends are ejected, the one ejected first is still tried (fail open), a channel is never refused without a connect.
+ */
+@Slf4j
+public class LoadBalancer {
+
+    public enum Policy {
+        /**
+         * Fewest active connections per weight.
+         */
+        LEAST_CONN,
+        /**
+         * Smooth weighted round robin.
+         */
+        ROUND_ROBIN
+    }
+
+    private static final int HEALTH_CHECK_THREADS = 2;
+
+    private static final ScheduledExecutorService checker = Executors.newScheduledThreadPool(HEALTH_CHECK_THREADS, r -> {
+        Thread t = new Thread(r, "HealthCheck");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Pick an available backend not tried yet, and count the connection on it.
+     * For the first try of a connection with all backends ejected, the one ejected first. Return null if none.
+     */
+    static Backend select(RedirectTarget target, List<Backend> tried) {
+        target.lbLock.lock();
+        try {
+            Backend best = null;
+            if(target.lbPolicy == Policy.ROUND_ROBIN) {
+                int total = 0;
+                for(Backend b : target.backends) {
+                    if(tried.contains(b) || b.isAvailable() == false) {
+                        continue;
+                    }
+                    b.currentWeight += b.weight;
+                    total += b.weight;
+                    if(best == null || b.currentWeight > best.currentWeight) {
+                        best = b;
+                    }
+                }
+                if(best != null) {
+                    best.currentWeight -= total;
+                }
+            } else {
+                // rotate start, so equally loaded backends take turns
+                int n = target.backends.size();
+                int start = (n == 0 ? 0 : Math.floorMod(target.lbCounter++, n));
+                for(int i=0; i < n; i++) {
+                    Backend b = target.backends.get((start + i) % n);
+                    if(tried.contains(b) || b.isAvailable() == false) {
+                        continue;
+                    }
+                    // active/weight < best.active/best.weight
+                    if(best == null || (long)b.getActiveConnections() * best.weight < (long)best.getActiveConnections() * b.weight) {
+                        best = b;
+                    }
+                }
+            }
+            if(best == null && tried.isEmpty()) {
+                // all ejected: fail open, retry the one to be retried soonest
+                for(Backend b : target.backends) {
+                    if(best == null || b.getRetryAtNs() - best.getRetryAtNs() < 0) {
+                        best = b;
+                    }
+                }
+            }
+            if(best != null) {
+                best.acquired();
+            }
+            return best;
+        } finally {
+            target.lbLock.unlock();
+        }
+    }
+
+    /**
+     * Get a socket to a backend of target, pooled or newly connected.
+     * Failed backend is ejected and the next one tried.<BR>
+     * Caller must call {@link Backend#release()} of {@link IdleSocketPool.ReadySocket#backend} when the connection closed.
+     */
+    static IdleSocketPool.ReadySocket connect(RedirectTarget target) throws IOException {
+        List<Backend> tried = new ArrayList<>(1);
+        IOException lastError = null;
+        Backend b;
+        while((b = select(target, tried)) != null) {
+            tried.add(b);
+            IdleSocketPool.ReadySocket ready = (b.pool != null ? b.pool.borrow() : null);
+            if(ready == null) {
+                try {
+                    Socket socket = b.connect();
+                    b.succeeded();
+                    ready = new IdleSocketPool.ReadySocket(socket);
+                } catch(IOException e) {
+                    b.release();
+                    b.failed(e);
+                    lastError = e;
+                    continue;
+                }
+            }
+            ready.backend = b;
+            return ready;
+        }
+        throw new IOException("No available backend of channel " + target.channel + " " + target.backends, lastError);
+    }
+
+    /**
+     * Start background TCP connect check of every backend of target, every {@link RedirectTarget#healthCheckIntervalMs}.
+     */
+    static void startHealthCheck(RedirectTarget target) {
+        for(Backend b : target.backends) {
+            target.healthChecks.add(checker.scheduleWithFixedDelay(() -> check(b),
+                    target.healthCheckIntervalMs, target.healthCheckIntervalMs, TimeUnit.MILLISECONDS));
+        }
+        log.info("Health check of channel {} started. backends={} interval={}ms", target.channel, target.backends, target.healthCheckIntervalMs);
+    }
+
+    /**
+     * Cancel health check of a channel removed by reload.
+     */
+    static void stopHealthCheck(RedirectTarget target) {
+        for(ScheduledFuture<?> f : target.healthChecks) {
+            f.cancel(false);
+        }
+        target.healthChecks.clear();
+    }
+
+    private static void check(Backend b) {
+        try {
+            b.connect().close();
+            b.succeeded();
+        } catch(Exception e) {
+            b.failed(e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.tssaumi.tcpredirect;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide budget of memory held by queued buffers of all {@link TCPFwd}, and buffers retained for {@link PayloadCapture}.<BR>
+ * When the budget is exhausted, READ sides stop reading (so TCP flow control push back on senders)
+ * until usage drop below 3/4 of the limit.
+ */
+public class MemoryBudget {
+
+    private static final AtomicLong usedBytes = new AtomicLong(0);
+    private static final AtomicInteger throttledConnections = new AtomicInteger(0);
+
+    /**
+     * Memory (buffer capacity) held by all queues now.
+     */
+    public static long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Number of connections with at least one READ side stopped by backpressure now.
+     */
+    public static int getThrottledConnections() {
+        return throttledConnections.get();
+    }
+
+    static void add(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    static void remove(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    static boolean isExhausted() {
+        long limit = Config.memoryMaxBytes;
+        return limit > 0 && usedBytes.get() >= limit;
+    }
+
+    static boolean canResume() {
+        long limit = Config.memoryMaxBytes;
+        return limit <= 0 || usedBytes.get() < limit / 4 * 3;
+    }
+
+    static void throttled() {
+        throttledConnections.incrementAndGet();
+    }
+
+    static void resumed() {
+        throttledConnections.decrementAndGet();
+    }
+}
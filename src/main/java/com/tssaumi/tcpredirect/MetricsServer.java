@@ -0,0 +1,338 @@
+package com.tssaumi.tcpredirect;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Expose metrics of channels, listeners, backends, hand shakes, buffers and socket closer:
+ * <UL>
+ *     <LI>JMX: MBeans under "com.tssaumi.tcpredirect", always registered</LI>
+ *     <LI>HTTP: GET /metrics in Prometheus text format, on {@link Config#metricsPort}</LI>
+ * </UL>
+ * All values are read on request, nothing is collected in background.
+ */
+@Slf4j
+public class MetricsServer {
+
+    private static final String DOMAIN = "com.tssaumi.tcpredirect";
+    private static final String PREFIX = "tcpredirect_";
+
+    private static volatile HttpServer server = null;
+
+    /**
+     * Start HTTP endpoint if {@link Config#metricsPort} configured. Called once on start up.
+     */
+    public static synchronized void start() {
+        if(Config.metricsPort <= 0 || server != null) {
+            return;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(Config.metricsBindAddr, Config.metricsPort), 0);
+            http.createContext("/metrics", MetricsServer::handle);
+            http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "MetricsServer");
+                t.setDaemon(true);
+                return t;
+            }));
+            http.start();
+            server = http;
+            log.info("Metrics endpoint started. http://{}:{}/metrics", Config.metricsBindAddr, Config.metricsPort);
+        } catch(IOException e) {
+            log.error("Fail to start metrics endpoint on {}:{}", Config.metricsBindAddr, Config.metricsPort, e);
+        }
+    }
+
+    static void registerMBean(Object mbean, String type, String name) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, name);
+            if(mbs.isRegistered(objectName)) {
+                mbs.unregisterMBean(objectName);
+            }
+            mbs.registerMBean(mbean, objectName);
+        } catch(Exception e) {
+            log.warn("Fail to register MBean {} {}", type, name, e);
+        }
+    }
+
+    static void unregisterMBean(String type, String name) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(type, name);
+            if(mbs.isRegistered(objectName)) {
+                mbs.unregisterMBean(objectName);
+            }
+        } catch(Exception e) {
+            log.warn("Fail to unregister MBean {} {}", type, name, e);
+        }
+    }
+
+    private static ObjectName objectName(String type, String name) throws Exception {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if("GET".equals(exchange.getRequestMethod()) == false) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } catch(Exception e) {
+            log.error("Fail to serve metrics request from {}", exchange.getRemoteAddress(), e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * All metrics in Prometheus text exposition format.
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+
+        // channels
+        header(sb, "connections_active", "gauge", "Connections being forwarded.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "connections_active", labels("channel", m.getChannel()), m.getActiveConnections());
+        }
+        header(sb, "connections_total", "counter", "Connections started forwarding.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "connections_total", labels("channel", m.getChannel()), m.getTotalConnections());
+        }
+        header(sb, "read_bytes_total", "counter", "Bytes read from client or server side.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "read_bytes_total", labels("channel", m.getChannel(), "side", "client"), m.getClientReadBytes());
+            sample(sb, "read_bytes_total", labels("channel", m.getChannel(), "side", "server"), m.getServerReadBytes());
+        }
+        header(sb, "skipped_bytes_total", "counter", "Bytes read and thrown away.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "skipped_bytes_total", labels("channel", m.getChannel()), m.getSkippedBytes());
+        }
+        header(sb, "idle_timeouts_total", "counter", "Connections closed by idle.timeout.ms.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "idle_timeouts_total", labels("channel", m.getChannel()), m.getIdleTimeouts());
+        }
+        header(sb, "shaping_wait_seconds_total", "counter", "Time writes waited for rate limits.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "shaping_wait_seconds_total", labels("channel", m.getChannel()), m.getShapingWaitMs() / 1000.0);
+        }
+        header(sb, "capture_bytes_total", "counter", "Bytes written to payload capture file.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "capture_bytes_total", labels("channel", m.getChannel()), m.getCaptureBytes());
+        }
+        header(sb, "capture_dropped_total", "counter", "Chunks not captured because capture writer was behind.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "capture_dropped_total", labels("channel", m.getChannel()), m.getCaptureDrops());
+        }
+        header(sb, "capture_dropped_bytes_total", "counter", "Bytes not captured because capture writer was behind.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "capture_dropped_bytes_total", labels("channel", m.getChannel()), m.getCaptureDroppedBytes());
+        }
+        header(sb, "queue_bytes", "gauge", "Bytes read and not yet written.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            sample(sb, "queue_bytes", labels("channel", m.getChannel()), m.getQueueBytes());
+        }
+        header(sb, "connection_duration_seconds", "histogram", "Duration of closed connections.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            long[] counts = m.getDurationCounts();
+            long cumulative = 0;
+            for(int i=0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = (i < ChannelMetrics.DURATION_BUCKETS.length ? format(ChannelMetrics.DURATION_BUCKETS[i]) : "+Inf");
+                sample(sb, "connection_duration_seconds_bucket", labels("channel", m.getChannel(), "le", le), cumulative);
+            }
+            sample(sb, "connection_duration_seconds_sum", labels("channel", m.getChannel()), m.getDurationSumMs() / 1000.0);
+            sample(sb, "connection_duration_seconds_count", labels("channel", m.getChannel()), cumulative);
+        }
+        header(sb, "flushes_total", "counter", "Writes of gathered data by reason, see flush.policy.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            long[] counts = m.getFlushCounts();
+            for(FlushPolicy.Reason r : FlushPolicy.Reason.values()) {
+                sample(sb, "flushes_total", labels("channel", m.getChannel(), "reason", r.label), counts[r.ordinal()]);
+            }
+        }
+        header(sb, "flush_batch_bytes", "histogram", "Bytes per write of gathered data.");
+        for(ChannelMetrics m : ChannelMetrics.getAll()) {
+            long[] counts = m.getBatchCounts();
+            long cumulative = 0;
+            for(int i=0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = (i < ChannelMetrics.BATCH_BUCKETS.length ? Long.toString(ChannelMetrics.BATCH_BUCKETS[i]) : "+Inf");
+                sample(sb, "flush_batch_bytes_bucket", labels("channel", m.getChannel(), "le", le), cumulative);
+            }
+            sample(sb, "flush_batch_bytes_sum", labels("channel", m.getChannel()), m.getBatchSumBytes());
+            sample(sb, "flush_batch_bytes_count", labels("channel", m.getChannel()), cumulative);
+        }
+
+        // compression and backends of channels
+        List<RedirectTarget> targets = TCPRedirectServer.getAllTargets();
+        header(sb, "compression_bytes_total", "counter", "Bytes in and out of deflate and inflate.");
+        for(RedirectTarget t : targets) {
+            CompressionStats c = t.compressionStats;
+            sample(sb, "compression_bytes_total", labels("channel", t.channel, "op", "deflate", "stage", "in"), c.getDeflateInBytes());
+            sample(sb, "compression_bytes_total", labels("channel", t.channel, "op", "deflate", "stage", "out"), c.getDeflateOutBytes());
+            sample(sb, "compression_bytes_total", labels("channel", t.channel, "op", "inflate", "stage", "in"), c.getInflateInBytes());
+            sample(sb, "compression_bytes_total", labels("channel", t.channel, "op", "inflate", "stage", "out"), c.getInflateOutBytes());
+        }
+        header(sb, "compression_seconds_total", "counter", "CPU time of deflate and inflate.");
+        for(RedirectTarget t : targets) {
+            CompressionStats c = t.compressionStats;
+            sample(sb, "compression_seconds_total", labels("channel", t.channel, "op", "deflate"), c.getDeflateNanos() / 1e9);
+            sample(sb, "compression_seconds_total", labels("channel", t.channel, "op", "inflate"), c.getInflateNanos() / 1e9);
+        }
+        header(sb, "rate_limit_bytes_per_second", "gauge", "Current egress rate limit of channel, incl. share of link.rate.");
+        for(RedirectTarget t : targets) {
+            LinkScheduler.Share share = t.peekShare();
+            if(share != null) {
+                sample(sb, "rate_limit_bytes_per_second", labels("channel", t.channel), share.getRate());
+            }
+        }
+        header(sb, "backend_up", "gauge", "1 if backend is not ejected.");
+        for(RedirectTarget t : targets) {
+            for(Backend b : t.backends) {
+                sample(sb, "backend_up", backendLabels(t, b), b.isUp() ? 1 : 0);
+            }
+        }
+        header(sb, "backend_connections_active", "gauge", "Connections to backend being forwarded.");
+        for(RedirectTarget t : targets) {
+            for(Backend b : t.backends) {
+                sample(sb, "backend_connections_active", backendLabels(t, b), b.getActiveConnections());
+            }
+        }
+        header(sb, "backend_connections_total", "counter", "Connections made to backend.");
+        for(RedirectTarget t : targets) {
+            for(Backend b : t.backends) {
+                sample(sb, "backend_connections_total", backendLabels(t, b), b.getTotalConnections().get());
+            }
+        }
+        header(sb, "backend_failures_total", "counter", "Failed connects to backend.");
+        for(RedirectTarget t : targets) {
+            for(Backend b : t.backends) {
+                sample(sb, "backend_failures_total", backendLabels(t, b), b.getTotalFailures().get());
+            }
+        }
+
+        // listeners
+        header(sb, "listener_accepted_total", "counter", "Accepted connections.");
+        for(ListenerStats s : ListenerStats.getAll()) {
+            sample(sb, "listener_accepted_total", listenerLabels(s), s.getAccepted());
+        }
+        header(sb, "listener_accept_errors_total", "counter", "Failed accepts.");
+        for(ListenerStats s : ListenerStats.getAll()) {
+            sample(sb, "listener_accept_errors_total", listenerLabels(s), s.getAcceptErrors());
+        }
+        header(sb, "listener_rejected_total", "counter", "Accepted connections reset by hand shake admission control.");
+        for(ListenerStats s : ListenerStats.getAll()) {
+            sample(sb, "listener_rejected_total", listenerLabels(s), s.getRejected());
+        }
+        header(sb, "listener_accept_rate", "gauge", "Accepted connections per second.");
+        for(ListenerStats s : ListenerStats.getAll()) {
+            sample(sb, "listener_accept_rate", listenerLabels(s), s.getAcceptRate());
+        }
+        header(sb, "listener_accept_queue_length", "gauge", "Connections waiting in accept queue, -1 if unknown.");
+        for(ListenerStats s : ListenerStats.getAll()) {
+            sample(sb, "listener_accept_queue_length", listenerLabels(s), s.getAcceptQueueLength());
+        }
+        header(sb, "host_listen_overflows_total", "counter", "Accept queue overflows of all listening sockets of the host, -1 if unknown.");
+        sample(sb, "host_listen_overflows_total", "", NetStat.getListenOverflows());
+
+        // hand shakes
+        HandShakeExecutor hs = HandShakeExecutor.getInstance();
+        header(sb, "handshakes_inflight", "gauge", "Hand shakes running.");
+        sample(sb, "handshakes_inflight", "", hs.getInFlight());
+        header(sb, "handshakes_rejected_total", "counter", "Connections reset by hand shake admission control.");
+        sample(sb, "handshakes_rejected_total", labels("reason", "max_inflight"), hs.getRejectedBusy());
+        sample(sb, "handshakes_rejected_total", labels("reason", "max_per_source"), hs.getRejectedPerSource());
+
+        // buffers
+        header(sb, "buffer_live_bytes", "gauge", "Bytes of pooled buffers in use.");
+        sample(sb, "buffer_live_bytes", "", BufferPool.getLiveBytes());
+        header(sb, "buffer_peak_live_bytes", "gauge", "Peak bytes of pooled buffers in use.");
+        sample(sb, "buffer_peak_live_bytes", "", BufferPool.getPeakLiveBytes());
+        header(sb, "buffer_allocated_bytes", "gauge", "Bytes of buffer slabs allocated, in use or free.");
+        sample(sb, "buffer_allocated_bytes", "", BufferPool.getAllocatedBytes());
+        header(sb, "buffer_live_count", "gauge", "Pooled buffers in use.");
+        sample(sb, "buffer_live_count", "", BufferPool.getLiveBuffers());
+        header(sb, "queue_memory_bytes", "gauge", "Memory held by queued buffers of all connections, payload capture included.");
+        sample(sb, "queue_memory_bytes", "", MemoryBudget.getUsedBytes());
+        header(sb, "throttled_connections", "gauge", "Connections with reading stopped by backpressure.");
+        sample(sb, "throttled_connections", "", MemoryBudget.getThrottledConnections());
+
+        // socket closer
+        header(sb, "socket_close_queue_length", "gauge", "Socket closes queued to closer threads.");
+        sample(sb, "socket_close_queue_length", "", SocketKiller.getQueueLength());
+        header(sb, "socket_close_overflows_total", "counter", "Socket closes on their own thread because the closer queue was full, or without linger because the linger queue was full.");
+        sample(sb, "socket_close_overflows_total", "", SocketKiller.getOverflows());
+        header(sb, "socket_close_seconds", "histogram", "Time from socket close queued to closed.");
+        long[] closeCounts = SocketKiller.getLatencyCounts();
+        long closeCumulative = 0;
+        for(int i=0; i < closeCounts.length; i++) {
+            closeCumulative += closeCounts[i];
+            String le = (i < SocketKiller.LATENCY_BUCKETS.length ? format(SocketKiller.LATENCY_BUCKETS[i]) : "+Inf");
+            sample(sb, "socket_close_seconds_bucket", labels("le", le), closeCumulative);
+        }
+        sample(sb, "socket_close_seconds_sum", "", SocketKiller.getLatencySumNs() / 1e9);
+        sample(sb, "socket_close_seconds_count", "", closeCumulative);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(PREFIX).append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long)value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String backendLabels(RedirectTarget t, Backend b) {
+        return labels("channel", t.channel, "backend", b.host + ":" + b.port);
+    }
+
+    private static String listenerLabels(ListenerStats s) {
+        return labels("listener", s.getName(), "port", Integer.toString(s.getPort()));
+    }
+
+    /**
+     * {k1="v1",k2="v2"} from alternate names and values.
+     */
+    private static String labels(String... kv) {
+        StringBuilder sb = new StringBuilder("{");
+        for(int i=0; i + 1 < kv.length; i+=2) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            sb.append(kv[i]).append("=\"").append(escape(kv[i+1])).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
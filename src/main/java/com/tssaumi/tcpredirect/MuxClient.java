@@ -0,0 +1,88 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Agent side: a few persistent {@link MuxTunnel} to redirect server shared by all channels.<BR>
+ * Accepted sockets become streams of the tunnel with least streams. Closed tunnels are reconnected on demand.
+ */
+@Slf4j
+public class MuxClient {
+
+    private final String serverHost;
+    private final int serverPort;
+    private final AtomicReferenceArray<MuxTunnel> tunnels;
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private static final RedirectTarget MUX_TARGET = new RedirectTarget();
+    static {
+        MUX_TARGET.channel = Constants.MUX_CHANNEL_ID;
+        MUX_TARGET.encodeHandShakeFrames();
+    }
+
+    public MuxClient(String serverHost, int serverPort, int numTunnels) {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.tunnels = new AtomicReferenceArray<>(Math.max(1, numTunnels));
+    }
+
+    /**
+     * Open a stream of target channel for accepted socket. Called by hand shake thread, may connect a tunnel.
+     */
+    public void open(RedirectTarget target, Socket socket) throws IOException {
+        MuxTunnel tunnel = selectTunnel();
+        tunnel.openStream(target, socket);
+    }
+
+    private MuxTunnel selectTunnel() throws IOException {
+        MuxTunnel best = null;
+        for(int i=0; i < tunnels.length(); i++) {
+            MuxTunnel t = tunnels.get(i);
+            if(t == null || t.isClosed()) {
+                best = null;
+                break;	// fill empty slot first
+            }
+            if(best == null || t.getStreamCount() < best.getStreamCount()) {
+                best = t;
+            }
+        }
+        if(best != null) {
+            return best;
+        }
+
+        connectLock.lock();
+        try {
+            for(int i=0; i < tunnels.length(); i++) {
+                MuxTunnel t = tunnels.get(i);
+                if(t == null || t.isClosed()) {
+                    t = connect();
+                    tunnels.set(i, t);
+                    return t;
+                }
+            }
+            return tunnels.get(0);
+        } finally {
+            connectLock.unlock();
+        }
+    }
+
+    private MuxTunnel connect() throws IOException {
+        ClientHandShakeThread hs = new ClientHandShakeThread(null, MUX_TARGET, serverHost, serverPort);
+        Socket socket = hs.connect();
+        MuxTunnel tunnel = new MuxTunnel(HandShakeThread.nextUid(), socket, null);
+        try {
+            tunnel.start();
+            // first stream must not exceed window of server
+            tunnel.awaitPeerWindow(Config.handshakeTimeoutMs);
+        } catch(IOException e) {
+            tunnel.close();
+            throw e;
+        }
+        return tunnel;
+    }
+}
@@ -0,0 +1,418 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One forwarded connection inside a {@link MuxTunnel}.<BR>
+ * READ thread: local socket >>> DATA frames, blocked while send window is used up.<BR>
+ * WRITE thread: DATA frames >>> local socket, return window to peer after written.<BR>
+ * End of stream of the local socket is sent as FIN, data of peer is still written until its FIN (or RST) arrives.
+ * Peer FIN shuts down output to the local socket once pending data written (half close),
+ * or closes it if half close is disabled. The stream is closed when FIN was sent and received.
+ */
+@Slf4j
+public class MuxStream implements LiveConnection {
+
+    private static final PooledBuffer FIN_SIGNAL = PooledBuffer.unpooled(ByteBuffer.allocate(0));
+
+    private final MuxTunnel tunnel;
+    private final int streamId;
+    private final long uid;
+    private final ChannelMetrics metrics;
+    private final Shaper shaper;
+    private final PayloadCapture capture;
+    private final boolean halfClose;
+    private final long startTimeMs = System.currentTimeMillis();
+
+    private volatile Socket socket = null;
+    private SocketChannel ch = null;
+    private String localAddress = null;
+
+    // tunnel >>> local socket
+    private final LinkedBlockingQueue<PooledBuffer> inbound = new LinkedBlockingQueue<>();
+    private final AtomicLong inboundBytes = new AtomicLong(0);
+
+    // local socket >>> tunnel
+    private final ReentrantLock windowLock = new ReentrantLock();
+    private final Condition windowOpen = windowLock.newCondition();
+    private long sendWindow;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean finSent = new AtomicBoolean(false);
+    // FIN sent, FIN received and written: closed at 2
+    private final AtomicInteger directionsDone = new AtomicInteger(0);
+    private final AtomicReference<Runnable> onClose = new AtomicReference<>();
+
+    // statics
+    private volatile long accumReadBytes = 0;	// read from local socket, sent to tunnel
+    private volatile long accumWriteBytes = 0;	// received from tunnel, written to local socket
+
+    /**
+     * @param metrics counters of the channel.
+     * @param shaper rate limits of data sent to tunnel, or null.
+     * @param capture tap of data read from local socket and received from tunnel, or null.
+     * @param halfClose on peer FIN shut down output to local socket and keep reading it, instead of closing it.
+     */
+    MuxStream(MuxTunnel tunnel, int streamId, long uid, ChannelMetrics metrics, Shaper shaper, PayloadCapture capture, boolean halfClose) {
+        this.tunnel = tunnel;
+        this.streamId = streamId;
+        this.uid = uid;
+        this.metrics = metrics;
+        this.shaper = shaper;
+        this.capture = capture;
+        this.halfClose = halfClose;
+        this.sendWindow = tunnel.getPeerWindow();
+    }
+
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * Local socket is the client on agent side, the server (target) on server side.
+     */
+    private LongAdder localReadCounter() {
+        return (tunnel.isServerSide() ? metrics.serverReadBytes : metrics.clientReadBytes);
+    }
+
+    private LongAdder tunnelReadCounter() {
+        return (tunnel.isServerSide() ? metrics.clientReadBytes : metrics.serverReadBytes);
+    }
+
+    private TCPFwd.TYPE localSide() {
+        return (tunnel.isServerSide() ? TCPFwd.TYPE.SERVER : TCPFwd.TYPE.CLIENT);
+    }
+
+    private TCPFwd.TYPE tunnelSide() {
+        return (tunnel.isServerSide() ? TCPFwd.TYPE.CLIENT : TCPFwd.TYPE.SERVER);
+    }
+
+    /**
+     * Start forwarding with local socket, i.e. accepted socket on agent or target socket on server.
+     */
+    void start(Socket localSocket) throws IOException {
+        start(localSocket, null);
+    }
+
+    /**
+     * @param earlyData data already read from local socket (not flipped), or null. Sent before any other data.
+     */
+    void start(Socket localSocket, PooledBuffer earlyData) throws IOException {
+        start(localSocket, earlyData, null);
+    }
+
+    /**
+     * @param onClose called once when stream closed, or null.
+     */
+    void start(Socket localSocket, PooledBuffer earlyData, Runnable onClose) throws IOException {
+        this.onClose.set(onClose);
+        this.socket = localSocket;
+        this.ch = localSocket.getChannel();
+        this.localAddress = localSocket.getRemoteSocketAddress().toString();
+        if(ch == null) {
+            if(earlyData != null) {
+                earlyData.release();
+            }
+            throw new IOException("Socket must be created from channel! socket="+localSocket);
+        }
+        if(closed.get()) {
+            // closed by peer before connected
+            if(earlyData != null) {
+                earlyData.release();
+            }
+            runOnClose();
+            SocketKiller.killSocket(localSocket, null, null);
+            return;
+        }
+        metrics.opened(this);
+        if(earlyData != null) {
+            try {
+                ByteBuffer buf = earlyData.buffer();
+                buf.flip();
+                int len = buf.remaining();
+                if(capture != null) {
+                    capture.tap(uid, localSide(), earlyData);
+                }
+                consumeWindow(len);
+                tunnel.writeFrame(MuxTunnel.DATA, streamId, buf);
+                accumReadBytes += len;
+                localReadCounter().add(len);
+            } finally {
+                earlyData.release();
+            }
+        }
+        Threads.start(""+uid+"-M(R)", this::readLoop);
+        Threads.start(""+uid+"-M(W)", this::writeLoop);
+    }
+
+    /**
+     * Called by tunnel READ thread.
+     */
+    void received(PooledBuffer data) {
+        if(inboundBytes.addAndGet(data.buffer().remaining()) > tunnel.getLocalWindow()) {
+            log.error("[#{}] Peer exceed flow control window! Reset stream.", uid);
+            data.release();
+            close(true);
+            return;
+        }
+        tunnelReadCounter().add(data.buffer().remaining());
+        if(capture != null) {
+            capture.tap(uid, tunnelSide(), data);
+        }
+        inbound.add(data);
+        if(closed.get()) {
+            drain();
+        }
+    }
+
+    void windowUpdate(int increment) {
+        windowLock.lock();
+        try {
+            sendWindow += increment;
+            windowOpen.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    void finReceived() {
+        inbound.add(FIN_SIGNAL);
+    }
+
+    /**
+     * Wait until window opened. Return available window, or 0 if closed.
+     */
+    private long awaitWindow() throws InterruptedException {
+        windowLock.lock();
+        try {
+            while(sendWindow <= 0 && closed.get() == false) {
+                windowOpen.await(100, TimeUnit.MILLISECONDS);
+            }
+            return closed.get() ? 0 : sendWindow;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void consumeWindow(int len) {
+        windowLock.lock();
+        try {
+            sendWindow -= len;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while(closed.get() == false) {
+                long window = awaitWindow();
+                if(window <= 0) {
+                    break;
+                }
+                PooledBuffer data = BufferPool.acquire(Config.directBuffers);
+                try {
+                    ByteBuffer buf = data.buffer();
+                    buf.limit((int)Math.min(window, buf.capacity()));
+                    int len = ch.read(buf);
+                    if(len < 0) {
+                        // connection closed! Data of peer still written until its FIN
+                        log.error("[#{}] READ {} bytes from {}! END OF STREAM detected!", uid, len, localAddress);
+                        sendFin();
+                        break;
+                    }
+                    if(len > 0) {
+                        buf.flip();
+                        if(capture != null) {
+                            capture.tap(uid, localSide(), data);
+                        }
+                        consumeWindow(len);
+                        if(shaper != null) {
+                            shaper.pace(len, closed);
+                        }
+                        tunnel.writeFrame(MuxTunnel.DATA, streamId, buf);
+                        accumReadBytes += len;
+                        localReadCounter().add(len);
+                    }
+                } finally {
+                    data.release();
+                }
+            }
+            if(finSent.get()) {
+                directionDone();
+            } else {
+                close(false);
+            }
+        } catch(Exception e) {
+            if(closed.get() == false) {
+                log.error("[#{}]Exception in READ! host={}", uid, localAddress, e);
+            }
+            close(true);
+        } finally {
+            BufferPool.flushThreadCache();
+        }
+        log.info("[#{}][THREAD END] Stop READ from: {}", uid, localAddress);
+    }
+
+    private void writeLoop() {
+        int unacked = 0;
+        try {
+            while(closed.get() == false) {
+                PooledBuffer data = inbound.take();
+                if(data == FIN_SIGNAL) {
+                    break;
+                }
+                try {
+                    ByteBuffer buf = data.buffer();
+                    int len = buf.remaining();
+                    inboundBytes.addAndGet(-len);
+                    while(buf.hasRemaining()) {
+                        ch.write(buf);
+                    }
+                    accumWriteBytes += len;
+                    unacked += len;
+                } finally {
+                    data.release();
+                }
+                // return window in batch, not for every frame
+                if(unacked >= tunnel.getLocalWindow() / 4 || inbound.isEmpty()) {
+                    tunnel.writeWindow(streamId, unacked);
+                    unacked = 0;
+                }
+            }
+            if(closed.get() == false) {
+                // FIN of peer, all its data written
+                if(halfClose) {
+                    socket.shutdownOutput();
+                    log.info("[#{}] Half close: output to {} shut down.", uid, localAddress);
+                    directionDone();
+                } else {
+                    sendFin();
+                    close(false);
+                }
+            }
+        } catch(Exception e) {
+            if(closed.get() == false) {
+                log.error("[#{}]Exception in WRITE! host={}", uid, localAddress, e);
+            }
+            close(true);
+        } finally {
+            BufferPool.flushThreadCache();
+        }
+        log.info("[#{}][THREAD END] Stop WRITE to: {}", uid, localAddress);
+    }
+
+    /**
+     * Send FIN once, local socket will not be read any more.
+     */
+    private void sendFin() throws IOException {
+        if(finSent.compareAndSet(false, true)) {
+            tunnel.writeFrame(MuxTunnel.FIN, streamId, null);
+        }
+    }
+
+    /**
+     * One direction ended gracefully, close when both did.
+     */
+    private void directionDone() {
+        if(directionsDone.incrementAndGet() >= 2) {
+            close(false);
+        }
+    }
+
+    private void drain() {
+        PooledBuffer data;
+        while((data = inbound.poll()) != null) {
+            data.release();
+        }
+    }
+
+    private void runOnClose() {
+        Runnable r = onClose.getAndSet(null);
+        if(r != null) {
+            r.run();
+        }
+    }
+
+    /**
+     * @param notifyPeer send RST to peer.
+     */
+    void close(boolean notifyPeer) {
+        if(closed.compareAndSet(false, true) == false) {
+            return;
+        }
+        tunnel.removeStream(streamId);
+        if(notifyPeer && tunnel.isClosed() == false) {
+            try {
+                tunnel.writeFrame(MuxTunnel.RST, streamId, null);
+            } catch(Exception e) {
+                log.warn("[#{}] Fail to reset stream {} of {}", uid, streamId, tunnel);
+            }
+        }
+
+        // log data before die
+        String tunnelAddress = tunnel + "/" + streamId;
+        long pending = inboundBytes.get();
+        if(tunnel.isServerSide()) {
+            log.info(TCPFwd.connectionInfo(uid, tunnelAddress, localAddress, pending, 0,
+                    accumWriteBytes + pending, accumWriteBytes, accumReadBytes, accumReadBytes));
+        } else {
+            log.info(TCPFwd.connectionInfo(uid, localAddress, tunnelAddress, 0, pending,
+                    accumReadBytes, accumReadBytes, accumWriteBytes + pending, accumWriteBytes));
+        }
+
+        metrics.closed(this);
+        windowUpdate(0);	// wake up READ thread
+        inbound.add(FIN_SIGNAL);	// wake up WRITE thread
+        drain();
+        runOnClose();
+        if(socket != null) {
+            SocketKiller.killSocket(socket, null, null);
+        }
+    }
+
+    @Override
+    public String getClientAddress() {
+        return (tunnel.isServerSide() ? tunnel + "/" + streamId : localAddress);
+    }
+
+    @Override
+    public String getServerAddress() {
+        return (tunnel.isServerSide() ? localAddress : tunnel + "/" + streamId);
+    }
+
+    @Override
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    @Override
+    public long getClientReadBytes() {
+        return (tunnel.isServerSide() ? accumWriteBytes + inboundBytes.get() : accumReadBytes);
+    }
+
+    @Override
+    public long getServerReadBytes() {
+        return (tunnel.isServerSide() ? accumReadBytes : accumWriteBytes + inboundBytes.get());
+    }
+
+    @Override
+    public long getQueueBytes() {
+        return inboundBytes.get();
+    }
+}
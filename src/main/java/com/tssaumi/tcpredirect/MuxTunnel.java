@@ -0,0 +1,326 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent connection between agent and redirect server carrying many {@link MuxStream}.<BR>
+ * Opened by a normal hand shake with channel ID {@link Constants#MUX_CHANNEL_ID}.<BR>
+ * <BR>
+ * Frame: [type(1)][stream ID(4)][length(4)][payload(length)]
+ * <UL>
+ *     <LI>OPEN: agent open a stream, payload = channel ID. Data may follow immediately.</LI>
+ *     <LI>DATA: payload = data, at most {@link BufferPool#BUF_SIZE} bytes.</LI>
+ *     <LI>WINDOW: no payload, length = bytes written by receiver, sender may send that much more.
+ *     Stream ID 0: initial window of every stream received by the sender, sent by both sides first when the tunnel starts.</LI>
+ *     <LI>FIN: no payload, sender stopped reading (end of stream). Receiver write pending data then shut down output
+ *     (or close with half close disabled), and keep sending until its own FIN. Stream ends when FIN went both ways.</LI>
+ *     <LI>RST: no payload, stream aborted. Receiver close immediately.</LI>
+ * </UL>
+ */
+@Slf4j
+public class MuxTunnel implements Runnable {
+
+    static final byte OPEN = 1;
+    static final byte DATA = 2;
+    static final byte WINDOW = 3;
+    static final byte FIN = 4;
+    static final byte RST = 5;
+
+    private static final int HEADER_SIZE = 9;
+    private static final int MAX_CHANNEL_SIZE = Constants.HAND_SHAKE_MSG_SIZE;
+
+    private final long tunnelId;
+    private final Socket socket;
+    private final SocketChannel ch;
+    private final boolean serverSide;
+    private final TCPRedirectServer server;
+    private final String remoteAddress;
+
+    private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ByteBuffer writeHeader = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private final ByteBuffer[] writeVec = new ByteBuffer[2];
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Window of each stream received here, announced to peer.
+     */
+    private final int localWindow = Config.muxWindowBytes;
+    /**
+     * Window of each stream sent from here, announced by peer. 0 until known.
+     */
+    private volatile int peerWindow = 0;
+    private final CountDownLatch peerWindowKnown = new CountDownLatch(1);
+
+    /**
+     * @param server redirect server, which accept OPEN and connect to its targets. Null on agent side.
+     */
+    public MuxTunnel(long tunnelId, Socket socket, TCPRedirectServer server) throws IOException {
+        this.tunnelId = tunnelId;
+        this.socket = socket;
+        this.ch = socket.getChannel();
+        this.server = server;
+        this.serverSide = (server != null);
+        this.remoteAddress = socket.getRemoteSocketAddress().toString();
+        if(ch == null) {
+            throw new IOException("Tunnel socket must be created from channel! socket="+socket);
+        }
+        socket.setKeepAlive(true);
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Announce window of streams, then start reading frames.
+     */
+    public void start() throws IOException {
+        writeWindow(0, localWindow);
+        Threads.start("Mux-"+tunnelId+"(R)", this);
+        log.info("[T#{}] Tunnel started. remote={}", tunnelId, remoteAddress);
+    }
+
+    public long getTunnelId() {
+        return tunnelId;
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    int getLocalWindow() {
+        return localWindow;
+    }
+
+    /**
+     * Initial send window of a stream. Server side it is known before any OPEN, frames are in order.
+     */
+    int getPeerWindow() {
+        int window = peerWindow;
+        return (window > 0 ? window : localWindow);
+    }
+
+    /**
+     * Agent side: wait for window of peer before opening streams.
+     */
+    void awaitPeerWindow(long timeoutMs) throws IOException {
+        try {
+            if(peerWindowKnown.await(timeoutMs, TimeUnit.MILLISECONDS) == false) {
+                throw new IOException("No window announced by peer within "+timeoutMs+"ms. tunnel="+this);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for window of peer. tunnel="+this);
+        }
+    }
+
+    /**
+     * Agent side: open a stream of channel for an accepted socket. Data start flowing without waiting for server.
+     */
+    public void openStream(RedirectTarget target, Socket localSocket) throws IOException {
+        int streamId = nextStreamId.getAndIncrement();
+        MuxStream stream = new MuxStream(this, streamId, HandShakeThread.nextUid(), target.getMetrics(), Shaper.of(target, null),
+                target.getCapture(), target.halfClose);
+        streams.put(streamId, stream);
+        writeFrame(OPEN, streamId, ByteBuffer.wrap(target.channelBytes));
+        stream.start(localSocket);
+    }
+
+    void removeStream(int streamId) {
+        streams.remove(streamId);
+    }
+
+    /**
+     * Write a frame, thread safe.
+     * @param payload null for frames without payload.
+     */
+    void writeFrame(byte type, int streamId, ByteBuffer payload) throws IOException {
+        writeFrame(type, streamId, payload == null ? 0 : payload.remaining(), payload);
+    }
+
+    void writeWindow(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW, streamId, increment, null);
+    }
+
+    private void writeFrame(byte type, int streamId, int length, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            writeHeader.clear();
+            writeHeader.put(type).putInt(streamId).putInt(length);
+            writeHeader.flip();
+            if(payload == null) {
+                while(writeHeader.hasRemaining()) {
+                    ch.write(writeHeader);
+                }
+            } else {
+                writeVec[0] = writeHeader;
+                writeVec[1] = payload;
+                while(payload.hasRemaining()) {
+                    ch.write(writeVec);
+                }
+                writeVec[1] = null;
+            }
+        } catch(IOException e) {
+            close();
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        while(buf.hasRemaining()) {
+            if(ch.read(buf) < 0) {
+                throw new EOFException("END OF STREAM detected!");
+            }
+        }
+    }
+
+    /**
+     * Read and dispatch frames.
+     */
+    public void run() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try {
+            while(closed.get() == false) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                byte type = header.get();
+                int streamId = header.getInt();
+                int length = header.getInt();
+
+                MuxStream stream = streams.get(streamId);
+                switch(type) {
+                    case OPEN:
+                        if(serverSide == false || length <= 0 || length > MAX_CHANNEL_SIZE) {
+                            throw new IOException("Invalid OPEN frame! length="+length);
+                        }
+                        ByteBuffer channelBytes = ByteBuffer.allocate(length);
+                        readFully(channelBytes);
+                        accept(streamId, new String(channelBytes.array(), StandardCharsets.UTF_8));
+                        break;
+                    case DATA:
+                        if(length <= 0 || length > BufferPool.BUF_SIZE) {
+                            throw new IOException("Invalid DATA frame! length="+length);
+                        }
+                        PooledBuffer data = BufferPool.acquire(length, Config.directBuffers);
+                        try {
+                            data.buffer().limit(length);
+                            readFully(data.buffer());
+                        } catch(IOException e) {
+                            data.release();
+                            throw e;
+                        }
+                        data.buffer().flip();
+                        if(stream != null) {
+                            stream.received(data);
+                        } else {
+                            data.release();	// stream closed already
+                        }
+                        break;
+                    case WINDOW:
+                        if(streamId == 0) {
+                            if(length <= 0) {
+                                throw new IOException("Invalid window of peer: "+length);
+                            }
+                            peerWindow = length;
+                            peerWindowKnown.countDown();
+                            log.info("[T#{}] Window of streams: local={} peer={}", tunnelId, localWindow, length);
+                        } else if(stream != null) {
+                            stream.windowUpdate(length);
+                        }
+                        break;
+                    case FIN:
+                        if(stream != null) {
+                            stream.finReceived();
+                        }
+                        break;
+                    case RST:
+                        if(stream != null) {
+                            stream.close(false);
+                        }
+                        break;
+                    default:
+                        throw new IOException("Invalid frame type: "+type);
+                }
+            }
+        } catch(Exception e) {
+            if(closed.get() == false) {
+                log.error("[T#{}] Exception in tunnel READ! remote={}", tunnelId, remoteAddress, e);
+            }
+        } finally {
+            BufferPool.flushThreadCache();
+            close();
+        }
+    }
+
+    /**
+     * Server side: OPEN received. Connect to target without blocking the tunnel,
+     * data arrive in the meantime are kept by the stream.
+     */
+    private void accept(int streamId, String channel) throws IOException {
+        RedirectTarget target = server.getTarget(channel);
+        if(target == null) {
+            log.error("[T#{}] Invalid channel ID: {}, reset stream {}", tunnelId, channel, streamId);
+            writeFrame(RST, streamId, null);
+            return;
+        }
+        MuxStream stream = new MuxStream(this, streamId, HandShakeThread.nextUid(), target.getMetrics(), Shaper.of(target, null),
+                target.getCapture(), target.halfClose);
+        streams.put(streamId, stream);
+        boolean started = HandShakeExecutor.getInstance().execute(() -> {
+            try {
+                IdleSocketPool.ReadySocket ready = LoadBalancer.connect(target);
+                log.info("[#{}] Server connected: {} channel={} backend={}", stream.getUid(), ready.socket, channel, ready.backend);
+                stream.start(ready.socket, ready.earlyData, ready.backend::release);
+            } catch(Exception e) {
+                log.error("[#{}] Fail to connect {}", stream.getUid(), target, e);
+                stream.close(true);
+            }
+        });
+        if(started == false) {
+            log.warn("[#{}] Too many connects in flight, reset stream {} of channel {}", stream.getUid(), streamId, channel);
+            stream.close(true);
+        }
+    }
+
+    public void close() {
+        if(closed.compareAndSet(false, true) == false) {
+            return;
+        }
+        for(MuxStream stream : streams.values()) {
+            stream.close(false);
+        }
+        SocketKiller.killSocket(socket, null, null);
+        log.info("[T#{}] Tunnel closed. remote={}", tunnelId, remoteAddress);
+    }
+
+    @Override
+    public String toString() {
+        return "mux#" + tunnelId + (serverSide ? "(S)" : "(C)") + remoteAddress;
+    }
+
+    boolean isServerSide() {
+        return serverSide;
+    }
+}
@@ -0,0 +1,96 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Read TCP listen counters of the OS (Linux /proc only). Return -1 when not available.
+ */
+@Slf4j
+public class NetStat {
+
+    private static final Path NETSTAT = Paths.get("/proc/net/netstat");
+    private static final Path[] TCP_TABLES = {Paths.get("/proc/net/tcp"), Paths.get("/proc/net/tcp6")};
+    private static final String LISTEN_STATE = "0A";
+
+    /**
+     * Times an accept queue of any listening socket of the host was full (TcpExt ListenOverflows).
+     * Host wide, the kernel does not count per socket.
+     */
+    public static long getListenOverflows() {
+        return getTcpExt("ListenOverflows");
+    }
+
+    /**
+     * SYNs dropped by listening sockets of the host, including overflows (TcpExt ListenDrops).
+     */
+    public static long getListenDrops() {
+        return getTcpExt("ListenDrops");
+    }
+
+    /**
+     * /proc/net/netstat has a header line and a value line for each group.
+     */
+    private static long getTcpExt(String name) {
+        if(Files.isReadable(NETSTAT) == false) {
+            return -1L;
+        }
+        try(BufferedReader br = Files.newBufferedReader(NETSTAT)) {
+            String header;
+            while((header = br.readLine()) != null) {
+                String values = br.readLine();
+                if(values == null) {
+                    break;
+                }
+                if(header.startsWith("TcpExt:") == false) {
+                    continue;
+                }
+                String[] names = header.trim().split(" +");
+                String[] nums = values.trim().split(" +");
+                for(int i=1; i < names.length && i < nums.length; i++) {
+                    if(names[i].equals(name)) {
+                        return Long.parseLong(nums[i]);
+                    }
+                }
+            }
+        } catch(IOException | NumberFormatException e) {
+            log.debug("Fail to read {}", NETSTAT, e);
+        }
+        return -1L;
+    }
+
+    /**
+     * Connections waiting to be accepted by listening sockets of the port (rx_queue of /proc/net/tcp),
+     * summed over all addresses and SO_REUSEPORT sockets.
+     */
+    public static int getAcceptQueueLength(int port) {
+        String portHex = String.format(":%04X", port);
+        int total = -1;
+        for(Path table : TCP_TABLES) {
+            if(Files.isReadable(table) == false) {
+                continue;
+            }
+            try(BufferedReader br = Files.newBufferedReader(table)) {
+                br.readLine();	// header
+                String line;
+                while((line = br.readLine()) != null) {
+                    // sl local_address rem_address st tx_queue:rx_queue ...
+                    String[] cols = line.trim().split(" +");
+                    if(cols.length < 5 || cols[1].endsWith(portHex) == false || LISTEN_STATE.equals(cols[3]) == false) {
+                        continue;
+                    }
+                    String rxQueue = cols[4].substring(cols[4].indexOf(':') + 1);
+                    total = Math.max(total, 0) + Integer.parseInt(rxQueue, 16);
+                }
+            } catch(IOException | RuntimeException e) {
+                log.debug("Fail to read {}", table, e);
+            }
+        }
+        return total;
+    }
+}
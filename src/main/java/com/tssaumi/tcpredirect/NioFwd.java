@@ -0,0 +1,448 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Forwarding of one client/server socket pair on a {@link NioFwdEngine} event loop.<BR>
+ * Each direction owns one buffer while it has data, acquired when the source is readable and
+ * released once everything is written, so an idle connection holds no buffer. Reading from a side stops while the buffer
+ * still has bytes not written to the other side, so a slow reader pushes back
+ * on the sender through TCP flow control.<BR>
+ * With a waiting {@link FlushPolicy}, data read is kept in the buffer until the policy allow writing,
+ * the delay is timed by the event loop (millisecond precision of the selector).<BR>
+ * With half close, end of stream from a side shut down output to the other side once the buffer is written,
+ * the connection is closed when both directions ended.<BR>
+ * Writes limited by a {@link Shaper} are resumed by the event loop when allowed, reading stops meanwhile.<BR>
+ * Data read is tapped by a {@link PayloadCapture} without copy, a buffer still held by it is never overwritten.
+ */
+@Slf4j
+public class NioFwd implements LiveConnection, IdleReaper.Watched {
+
+    private final long uid;
+    private final Runnable onClose;
+    private final ChannelMetrics metrics;
+    private final FlushPolicy flushPolicy;
+    private final long idleTimeoutMs;
+    private final boolean halfClose;
+    private final PayloadCapture capture;
+    private IdleReaper.Entry idleEntry = null;
+    private volatile long lastActivityNs = System.nanoTime();
+    private NioFwdEngine.EventLoop loop = null;
+    private final long startTimeMs = System.currentTimeMillis();
+    private final String clientAddress;
+    private final String serverAddress;
+
+    private final SocketChannel client;
+    private final SocketChannel server;
+    private SelectionKey clientKey = null;
+    private SelectionKey serverKey = null;
+
+    private final Pipe toServer;	// client >>> server
+    private final Pipe toClient;	// client <<< server
+
+    private boolean closeTriggered = false;
+
+    /**
+     * One direction of data flow.
+     */
+    class Pipe {
+        private PooledBuffer pooled = null;	// null while no data
+        private ByteBuffer buf = null;
+        private final AdaptiveReadSize readSize;
+        private SelectionKey srcKey = null;
+        private SelectionKey dstKey = null;
+        private final LongAdder readCounter;
+        private final TCPFwd.TYPE side;	// read from
+
+        // statics, written by event loop thread only
+        private volatile long accumInBytes = 0;
+        private volatile long accumOutBytes = 0;
+
+        /**
+         * Data read is waiting for the flush policy since firstNs.
+         */
+        private boolean deferred = false;
+        private long firstNs = 0L;
+
+        /**
+         * Source ended (half close), output of destination shut down once written (done).
+         */
+        private boolean endOfStream = false;
+        private boolean done = false;
+
+        /**
+         * Rate limits of destination, or null. Bytes at the head of buffer already taken from the shaper (paid),
+         * write waiting for the shaper since shapedNs.
+         */
+        private Shaper shaper = null;
+        private long paidBytes = 0L;
+        private boolean shaped = false;
+        private long shapedNs = 0L;
+
+        /**
+         * @param earlyData data already read from source (not flipped), or null.
+         * @param readCounter channel counter of bytes read from source.
+         * @param side source side.
+         */
+        Pipe(PooledBuffer earlyData, int bufferSize, LongAdder readCounter, TCPFwd.TYPE side) {
+            this.readSize = new AdaptiveReadSize(bufferSize);
+            this.readCounter = readCounter;
+            this.side = side;
+            if(earlyData != null) {
+                pooled = earlyData;
+                buf = pooled.buffer();
+                accumInBytes = buf.position();
+                readCounter.add(accumInBytes);
+                if(capture != null) {
+                    capture.tap(uid, side, pooled, 0, buf.position());
+                }
+            }
+        }
+
+        long getQueueBytes() {
+            return (buf != null ? buf.position() : 0);
+        }
+
+        void release() {
+            if(pooled != null) {
+                pooled.release();
+                pooled = null;
+                buf = null;
+            }
+        }
+
+        /**
+         * @return false if end of stream detected.
+         */
+        boolean read() throws IOException {
+            if(pooled == null) {
+                pooled = BufferPool.acquire(readSize.next(), Config.directBuffers);
+                buf = pooled.buffer();
+            }
+            int room = buf.remaining();
+            int start = buf.position();
+            int len = ((SocketChannel)srcKey.channel()).read(buf);
+            if(len < 0) {
+                return false;
+            }
+            if(capture != null && len > 0) {
+                capture.tap(uid, side, pooled, start, len);
+            }
+            readSize.record(room, len, 0L);
+            accumInBytes += len;
+            readCounter.add(len);
+            if(buf.hasRemaining() == false) {
+                flush(FlushPolicy.Reason.FULL);
+            } else if(flushPolicy.waits() == false) {
+                flush(FlushPolicy.Reason.EMPTY);
+            } else if(flushPolicy.isFull(buf.position())) {
+                flush(FlushPolicy.Reason.SIZE);
+            } else if(len > 0) {
+                long now = System.nanoTime();
+                if(deferred == false) {
+                    deferred = true;
+                    firstNs = now;
+                    loop.flushLater(this, firstNs, firstNs + flushPolicy.delayNs);
+                } else if(flushPolicy.remainingNs(firstNs, now) <= 0) {
+                    flush(FlushPolicy.Reason.TIME);
+                }
+            } else if(deferred == false) {
+                // spurious wake up
+                release();
+            }
+            return true;
+        }
+
+        /**
+         * Write gathered data now.
+         */
+        void flush(FlushPolicy.Reason reason) throws IOException {
+            deferred = false;
+            if(buf == null) {
+                return;
+            }
+            if(buf.position() > 0) {
+                metrics.flushed(reason, buf.position());
+            }
+            write();
+        }
+
+        /**
+         * Called by event loop when delay of data read since firstNs expired.
+         */
+        void flushDeferred(long firstNs) {
+            if(shaped && shapedNs == firstNs && closeTriggered == false) {
+                shaped = false;
+                try {
+                    write();
+                } catch(Exception e) {
+                    log.error("[#{}]Exception in forwarding! pipe={}", uid, this == toServer ? "client >>> server" : "client <<< server", e);
+                    closeDetected();
+                }
+                return;
+            }
+            if(deferred == false || this.firstNs != firstNs || closeTriggered) {
+                // written already
+                return;
+            }
+            try {
+                flush(FlushPolicy.Reason.TIME);
+            } catch(Exception e) {
+                log.error("[#{}]Exception in forwarding! pipe={}", uid, this == toServer ? "client >>> server" : "client <<< server", e);
+                closeDetected();
+            }
+        }
+
+        void write() throws IOException {
+            if(buf == null || shaped) {
+                return;
+            }
+            if(shaper != null && buf.position() > paidBytes) {
+                long unpaid = buf.position() - paidBytes;
+                paidBytes += unpaid;
+                long waitNs = shaper.take(unpaid);
+                if(waitNs > 0) {
+                    // rate limited, stop reading until written
+                    shaped = true;
+                    shapedNs = System.nanoTime();
+                    srcKey.interestOps(srcKey.interestOps() & ~SelectionKey.OP_READ);
+                    loop.flushLater(this, shapedNs, shapedNs + waitNs);
+                    return;
+                }
+            }
+            buf.flip();
+            int len = ((SocketChannel)dstKey.channel()).write(buf);
+            accumOutBytes += len;
+            paidBytes = Math.max(0L, paidBytes - len);
+            if(pooled.refCnt() > 1 && (buf.hasRemaining() || deferred)) {
+                // captured bytes still queued, never overwrite them: go on with a new buffer
+                PooledBuffer moved = BufferPool.acquire(buf.capacity(), Config.directBuffers);
+                moved.buffer().put(buf);
+                pooled.release();
+                pooled = moved;
+                buf = moved.buffer();
+            } else {
+                buf.compact();
+            }
+            if(buf.position() > 0) {
+                // peer not ready, wait for it before read more
+                srcKey.interestOps(srcKey.interestOps() & ~SelectionKey.OP_READ);
+                dstKey.interestOps(dstKey.interestOps() | SelectionKey.OP_WRITE);
+            } else {
+                if(deferred == false) {
+                    // nothing left, back to pool until source readable again
+                    release();
+                }
+                dstKey.interestOps(dstKey.interestOps() & ~SelectionKey.OP_WRITE);
+                if(endOfStream) {
+                    shutdown();
+                } else {
+                    srcKey.interestOps(srcKey.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * Source ended. Write what is left, then pass end of stream on.
+         */
+        void endOfStream() throws IOException {
+            endOfStream = true;
+            srcKey.interestOps(srcKey.interestOps() & ~SelectionKey.OP_READ);
+            if(deferred) {
+                flush(FlushPolicy.Reason.CLOSE);
+            } else if(getQueueBytes() == 0) {
+                shutdown();
+            }
+            // otherwise shut down when written
+        }
+
+        private void shutdown() throws IOException {
+            if(done) {
+                return;
+            }
+            done = true;
+            SocketChannel dst = (SocketChannel)dstKey.channel();
+            dst.shutdownOutput();
+            log.info("[#{}] Half close: output to {} shut down.", uid, dst == server ? serverAddress : clientAddress);
+            if(toServer.done && toClient.done) {
+                closeDetected();
+            }
+        }
+    }
+
+    /**
+     * @param serverEarlyData data already read from server socket (not flipped), or null.
+     * @param options per connection options, compression is ignored.
+     */
+    NioFwd(long uid, Socket clientSocket, Socket serverSocket, PooledBuffer serverEarlyData, ForwardOptions options) {
+        this.uid = uid;
+        this.onClose = options.onClose;
+        this.metrics = options.metrics;
+        this.flushPolicy = options.flushPolicy;
+        this.idleTimeoutMs = options.idleTimeoutMs;
+        this.halfClose = options.halfClose;
+        this.capture = options.capture;
+        this.toServer = new Pipe(null, options.bufferSize, metrics.clientReadBytes, TCPFwd.TYPE.CLIENT);
+        this.toClient = new Pipe(serverEarlyData, options.bufferSize, metrics.serverReadBytes, TCPFwd.TYPE.SERVER);
+        if(options.shaper != null) {
+            (options.shaper.side == TCPFwd.TYPE.CLIENT ? toClient : toServer).shaper = options.shaper;
+        }
+        this.client = clientSocket.getChannel();
+        this.server = serverSocket.getChannel();
+        this.clientAddress = clientSocket.getRemoteSocketAddress().toString();
+        this.serverAddress = serverSocket.getRemoteSocketAddress().toString();
+    }
+
+    /**
+     * Called by event loop thread.
+     */
+    void register(NioFwdEngine.EventLoop loop, Selector selector) {
+        this.loop = loop;
+        try {
+            client.configureBlocking(false);
+            server.configureBlocking(false);
+            clientKey = client.register(selector, SelectionKey.OP_READ, this);
+            serverKey = server.register(selector, SelectionKey.OP_READ, this);
+            toServer.srcKey = clientKey;
+            toServer.dstKey = serverKey;
+            toClient.srcKey = serverKey;
+            toClient.dstKey = clientKey;
+            metrics.opened(this);
+            idleEntry = IdleReaper.watch(this, idleTimeoutMs);
+            if(toClient.getQueueBytes() > 0) {
+                toClient.flush(FlushPolicy.Reason.EMPTY);
+            }
+            log.info("[#{}] Forwarding started. (Client) {} >>><<< {} (Server)", uid, clientAddress, serverAddress);
+        } catch(Exception e) {
+            log.error("Fail to start TCP Forwarding. client={} server={}", clientAddress, serverAddress, e);
+            closeDetected();
+        }
+    }
+
+    /**
+     * Called by event loop thread.
+     */
+    void handle(SelectionKey key) {
+        Pipe in = (key == clientKey ? toServer : toClient);
+        Pipe out = (key == clientKey ? toClient : toServer);
+        String host = (key == clientKey ? clientAddress : serverAddress);
+        lastActivityNs = System.nanoTime();
+        try {
+            if(key.isValid() && key.isWritable()) {
+                out.write();
+            }
+            if(key.isValid() && key.isReadable()) {
+                if(in.read() == false) {
+                    // connection closed!
+                    log.error("[#{}] READ -1 bytes from {}! END OF STREAM detected!", uid, host);
+                    if(halfClose) {
+                        in.endOfStream();
+                    } else {
+                        if(in.deferred) {
+                            in.flush(FlushPolicy.Reason.CLOSE);
+                        }
+                        closeDetected();
+                    }
+                }
+            }
+        } catch(Exception e) {
+            log.error("[#{}]Exception in forwarding! host={}", uid, host, e);
+            closeDetected();
+        }
+    }
+
+    private void closeDetected() {
+        if(closeTriggered) {
+            return;
+        }
+        closeTriggered = true;
+        IdleReaper.cancel(idleEntry);
+        log.info(TCPFwd.connectionInfo(uid, clientAddress, serverAddress,
+                toServer.getQueueBytes(), toClient.getQueueBytes(),
+                toServer.accumInBytes, toServer.accumOutBytes,
+                toClient.accumInBytes, toClient.accumOutBytes));
+        metrics.closed(this);
+        close();
+    }
+
+    private void close() {
+        if(clientKey != null) {
+            clientKey.cancel();
+        }
+        if(serverKey != null) {
+            serverKey.cancel();
+        }
+        SocketKiller.killSocket(client.socket(), null, null);
+        SocketKiller.killSocket(server.socket(), null, null);
+        toServer.release();
+        toClient.release();
+        if(onClose != null) {
+            onClose.run();
+        }
+    }
+
+    @Override
+    public long getLastActivityNs() {
+        return lastActivityNs;
+    }
+
+    /**
+     * Called by idle reaper, closed by event loop thread.
+     */
+    @Override
+    public void closeIdle(long idleMs) {
+        loop.execute(() -> {
+            if(closeTriggered == false) {
+                log.info("[#{}] No data for {} ms, close idle connection.", uid, idleMs);
+                metrics.idleTimeouts.increment();
+                closeDetected();
+            }
+        });
+    }
+
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    @Override
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    @Override
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    @Override
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    @Override
+    public long getClientReadBytes() {
+        return toServer.accumInBytes;
+    }
+
+    @Override
+    public long getServerReadBytes() {
+        return toClient.accumInBytes;
+    }
+
+    /**
+     * Read by other threads without lock, so only the counters (not the buffers) are used.
+     */
+    @Override
+    public long getQueueBytes() {
+        return (toServer.accumInBytes - toServer.accumOutBytes) + (toClient.accumInBytes - toClient.accumOutBytes);
+    }
+}
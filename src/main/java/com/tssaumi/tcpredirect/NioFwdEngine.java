@@ -0,0 +1,173 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based forwarding engine.<BR>
+ * A fixed set of event loop threads (default one per core) serve all forwarded connections,
+ * each connection ({@link NioFwd}) is bound to a single loop for its whole life.
+ */
+@Slf4j
+public class NioFwdEngine {
+
+    private static volatile NioFwdEngine instance = null;
+
+    public static NioFwdEngine getInstance() throws IOException {
+        NioFwdEngine engine = instance;
+        if(engine == null) {
+            synchronized(NioFwdEngine.class) {
+                engine = instance;
+                if(engine == null) {
+                    int threads = Config.nioThreads;
+                    if(threads <= 0) {
+                        threads = Runtime.getRuntime().availableProcessors();
+                    }
+                    engine = new NioFwdEngine(threads);
+                    instance = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+    private NioFwdEngine(int threads) throws IOException {
+        loops = new EventLoop[threads];
+        for(int i=0; i < threads; i++) {
+            loops[i] = new EventLoop("NioFwd-" + i);
+            loops[i].setDaemon(true);
+            loops[i].start();
+        }
+        log.info("NIO forwarding engine started. threads={}", threads);
+    }
+
+    /**
+     * Hand over both sockets to an event loop. Sockets must be created from {@link java.nio.channels.SocketChannel}.
+     * @param serverEarlyData data already read from server socket (not flipped), or null.
+     * @param options per connection options, compression is ignored.
+     */
+    public void forward(long uid, Socket clientSocket, Socket serverSocket, PooledBuffer serverEarlyData, ForwardOptions options) {
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        NioFwd fwd = new NioFwd(uid, clientSocket, serverSocket, serverEarlyData, options);
+        loop.register(fwd);
+    }
+
+    /**
+     * Data of a pipe waiting for its flush delay.
+     */
+    private static class Deferred {
+        final NioFwd.Pipe pipe;
+        final long firstNs;
+        final long deadlineNs;
+
+        Deferred(NioFwd.Pipe pipe, long firstNs, long deadlineNs) {
+            this.pipe = pipe;
+            this.firstNs = firstNs;
+            this.deadlineNs = deadlineNs;
+        }
+    }
+
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<NioFwd> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // event loop thread only
+        private final PriorityQueue<Deferred> deferred = new PriorityQueue<>(Comparator.comparingLong((Deferred d) -> d.deadlineNs));
+
+        EventLoop(String name) throws IOException {
+            super(name);
+            selector = Selector.open();
+        }
+
+        void register(NioFwd fwd) {
+            pending.add(fwd);
+            selector.wakeup();
+        }
+
+        /**
+         * Run task on event loop thread, for connections touched by other threads.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by event loop thread. Flush the pipe at deadline, unless written before. Also resume a write waiting for its {@link Shaper}.
+         */
+        void flushLater(NioFwd.Pipe pipe, long firstNs, long deadlineNs) {
+            deferred.add(new Deferred(pipe, firstNs, deadlineNs));
+        }
+
+        private void select() throws IOException {
+            if(tasks.isEmpty() == false) {
+                // run tasks at once
+                selector.selectNow();
+                return;
+            }
+            Deferred next = deferred.peek();
+            if(next == null) {
+                selector.select();
+                return;
+            }
+            long waitNs = next.deadlineNs - System.nanoTime();
+            if(waitNs <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1L, (waitNs + 999_999L) / 1_000_000L));
+            }
+        }
+
+        private void flushExpired() {
+            long now = System.nanoTime();
+            Deferred next;
+            while((next = deferred.peek()) != null && next.deadlineNs - now <= 0) {
+                deferred.poll();
+                next.pipe.flushDeferred(next.firstNs);
+            }
+        }
+
+        @Override
+        public void run() {
+            // buffers released here are acquired again by this loop
+            BufferPool.useThreadCache();
+            while(true) {
+                try {
+                    select();
+
+                    NioFwd fwd;
+                    while((fwd = pending.poll()) != null) {
+                        fwd.register(this, selector);
+                    }
+                    Runnable task;
+                    while((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while(it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioFwd)key.attachment()).handle(key);
+                    }
+                    flushExpired();
+                } catch(Exception e) {
+                    log.error("Unexpected exception in event loop {}", getName(), e);
+                }
+            }
+        }
+    }
+}
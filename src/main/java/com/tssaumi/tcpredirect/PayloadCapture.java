@@ -0,0 +1,443 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Capture of data read by the connections of a channel into a fixed size memory-mapped ring file.<BR>
+ * Forwarding threads only queue the buffer they read into (retained, not copied), one writer thread per file appends the chunks to the ring.
+ * When the retained buffers hold more than {@link RedirectTarget#captureQueueBytes} (their capacity, a small chunk still holds its whole buffer),
+ * or {@link MemoryBudget} is exhausted, chunks are dropped (and counted) instead of waiting, so a slow disk never slows down forwarding.<BR>
+ * The file survives a crash of the process, the OS writes back the mapped pages. Records of the last batch
+ * (not yet in the header) are lost then. Read it with {@link #main(String[])}.<BR>
+ * File format (big endian):
+ * <pre>
+ * header (64 bytes)
+ *   int magic "TRCP", int version, long capacity (bytes of ring),
+ *   long head, long tail (offsets of next and oldest record, counted from the first byte ever written),
+ *   long records (written), long dropped (chunks), long created (epoch ms)
+ * ring (capacity bytes), record at offset % capacity
+ *   int length (of record), long time (epoch us), long uid, byte side (C = read from client, S = read from server), data
+ * </pre>
+ * A record never wraps: when it does not fit before the end of the ring, the rest is skipped (marked with length 0
+ * if there is room for it) and the record starts at the beginning.
+ */
+@Slf4j
+public class PayloadCapture {
+
+    static final int MAGIC = 0x54524350;	// TRCP
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 1;
+    static final long MIN_SIZE = 1024 * 1024;	// 1M
+
+    private static final int OFF_CAPACITY = 8;
+    private static final int OFF_HEAD = 16;
+    private static final int OFF_TAIL = 24;
+    private static final int OFF_RECORDS = 32;
+    private static final int OFF_DROPPED = 40;
+    private static final int OFF_CREATED = 48;
+
+    private static final int BATCH_SIZE = 256;	// chunks written between header updates
+    private static final int IDLE_YIELDS = 8;	// before the writer parks
+
+    /**
+     * Files in use, by path. Channels with the same capture.file, or changed by reload, share one file.
+     */
+    private static final Map<String, RingFile> files = new HashMap<>();
+    /**
+     * Guards files and refs of each. Not a monitor, files are opened under it by hand shake threads (maybe virtual).
+     */
+    private static final ReentrantLock filesLock = new ReentrantLock();
+
+    private final RingFile ring;
+    private final ChannelMetrics metrics;
+
+    private PayloadCapture(RingFile ring, ChannelMetrics metrics) {
+        this.ring = ring;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Capture of a new channel. Null if channel has no capture.file, or it cannot be opened.
+     */
+    static PayloadCapture open(RedirectTarget target) {
+        if(target.captureFile == null) {
+            return null;
+        }
+        RingFile ring = RingFile.open(target);
+        return (ring == null ? null : new PayloadCapture(ring, target.getMetrics()));
+    }
+
+    /**
+     * Release capture of a stopped channel. File is closed once no channel uses it.
+     */
+    void release() {
+        ring.release();
+    }
+
+    /**
+     * Queue data read from side of connection uid, from position to limit of data.
+     */
+    void tap(long uid, TCPFwd.TYPE side, PooledBuffer data) {
+        tap(uid, side, data, data.buffer().position(), data.buffer().remaining());
+    }
+
+    /**
+     * Queue len bytes at offset of data read from side of connection uid. The buffer is retained (not copied) until written,
+     * these bytes must not be changed meanwhile, i.e. buffer not reused while {@link PooledBuffer#refCnt()} &gt; 1.
+     * Never waits: dropped if the writer is behind.
+     */
+    void tap(long uid, TCPFwd.TYPE side, PooledBuffer data, int offset, int len) {
+        if(len <= 0) {
+            return;
+        }
+        if(ring.reserve(data.capacity())) {
+            long timeUs = (ring.epochNs + System.nanoTime()) / 1000L;
+            ring.add(new Chunk(timeUs, uid, side, data.retain(), offset, len, this));
+        } else {
+            metrics.captureDrops.increment();
+            metrics.captureDroppedBytes.add(len);
+        }
+    }
+
+    /**
+     * Data read by a connection, waiting for the writer thread.
+     */
+    private static class Chunk {
+        final long timeUs;
+        final long uid;
+        final TCPFwd.TYPE side;
+        final PooledBuffer data;
+        final int offset;
+        final int len;
+        final PayloadCapture capture;
+
+        Chunk(long timeUs, long uid, TCPFwd.TYPE side, PooledBuffer data, int offset, int len, PayloadCapture capture) {
+            this.timeUs = timeUs;
+            this.uid = uid;
+            this.side = side;
+            this.data = data;
+            this.offset = offset;
+            this.len = len;
+            this.capture = capture;
+        }
+    }
+
+    /**
+     * Ring file with its writer thread, shared by the channels capturing to the same path.<BR>
+     * Writer yields a few times then parks when queue is empty, the forwarding thread adding the first chunk of a burst unparks it (one CAS per burst, none while writer is busy).
+     */
+    private static class RingFile {
+        private final String path;
+        private final long maxQueueBytes;
+        private final Queue<Chunk> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(0);	// capacity of buffers retained by queued chunks
+        private final LongAdder drops = new LongAdder();
+        private final long epochNs = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+        private final Thread writer;
+        private final AtomicBoolean sleeping = new AtomicBoolean(false);	// writer parked, or about to
+        private volatile boolean closed = false;
+        private int refs = 0;	// under filesLock
+
+        // writer thread only
+        private final RandomAccessFile file;
+        private final MappedByteBuffer map;
+        private final long capacity;
+        private long head = 0L;
+        private long tail = 0L;
+        private long records = 0L;
+        private long dropped = 0L;	// by former runs
+
+        private RingFile(String path, long size, long maxQueueBytes) throws IOException {
+            this.path = path;
+            this.maxQueueBytes = maxQueueBytes;
+            this.file = new RandomAccessFile(path, "rw");
+            boolean resume = false;
+            try {
+                if(file.length() == HEADER_SIZE + size) {
+                    file.seek(0);
+                    resume = (file.readInt() == MAGIC && file.readInt() == VERSION && file.readLong() == size);
+                }
+                file.setLength(HEADER_SIZE + size);
+                this.map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size);
+            } catch(IOException e) {
+                file.close();
+                throw e;
+            }
+            this.capacity = size;
+            if(resume) {
+                // append to capture of a former run
+                head = map.getLong(OFF_HEAD);
+                tail = map.getLong(OFF_TAIL);
+                records = map.getLong(OFF_RECORDS);
+                dropped = map.getLong(OFF_DROPPED);
+            } else {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putLong(OFF_CAPACITY, capacity);
+                map.putLong(OFF_CREATED, System.currentTimeMillis());
+                writeHeader();
+            }
+            writer = new Thread(this::writeLoop, "PayloadCapture-" + new File(path).getName());
+            writer.setDaemon(true);
+            writer.start();
+            log.info("Payload capture to {} started. size={} queue.bytes={} records={}", path, capacity, maxQueueBytes, records);
+        }
+
+        static RingFile open(RedirectTarget target) {
+            String path = new File(target.captureFile).getAbsolutePath();
+            filesLock.lock();
+            try {
+                RingFile ring = files.get(path);
+                if(ring == null) {
+                    try {
+                        ring = new RingFile(path, Math.max(MIN_SIZE, target.captureSize), Math.max(BufferPool.BUF_SIZE, target.captureQueueBytes));
+                    } catch(IOException e) {
+                        log.error("Fail to open capture file of channel {}! path={}", target.channel, path, e);
+                        return null;
+                    }
+                    files.put(path, ring);
+                }
+                ring.refs++;
+                return ring;
+            } finally {
+                filesLock.unlock();
+            }
+        }
+
+        /**
+         * Writer finishes what is queued and closes the file.
+         */
+        void release() {
+            filesLock.lock();
+            try {
+                if(--refs > 0) {
+                    return;
+                }
+                files.remove(path);
+                closed = true;
+            } finally {
+                filesLock.unlock();
+            }
+            LockSupport.unpark(writer);
+        }
+
+        /**
+         * Reserve memory of a retained buffer (its capacity, not only the bytes captured) before {@link #add(Chunk)}.
+         * Also counted in {@link MemoryBudget}. Return false if chunk must be dropped.
+         */
+        boolean reserve(int bytes) {
+            if(MemoryBudget.isExhausted()) {
+                drops.increment();
+                return false;
+            }
+            // closed checked after reserving: writer exits once nothing reserved, so no chunk is left in queue
+            if(queuedBytes.addAndGet(bytes) > maxQueueBytes || closed) {
+                queuedBytes.addAndGet(-bytes);
+                drops.increment();
+                return false;
+            }
+            MemoryBudget.add(bytes);
+            return true;
+        }
+
+        void add(Chunk c) {
+            queue.add(c);
+            if(sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void writeLoop() {
+            int idle = 0;
+            while(true) {
+                try {
+                    int n = 0;
+                    Chunk c;
+                    while(n < BATCH_SIZE && (c = queue.poll()) != null) {
+                        try {
+                            append(c);
+                            c.capture.metrics.captureBytes.add(c.len);
+                        } finally {
+                            queuedBytes.addAndGet(-c.data.capacity());
+                            MemoryBudget.remove(c.data.capacity());
+                            c.data.release();
+                        }
+                        n++;
+                    }
+                    if(n > 0) {
+                        idle = 0;
+                        writeHeader();
+                    } else if(closed && queuedBytes.get() == 0) {
+                        break;
+                    } else if(idle++ < IDLE_YIELDS) {
+                        // let forwarding threads queue more before paying for a park/unpark
+                        Thread.yield();
+                    } else {
+                        // flag set before checking queue again, so a chunk added meanwhile sees it and unparks
+                        sleeping.set(true);
+                        if(queue.isEmpty() && !closed) {
+                            LockSupport.park(this);
+                        }
+                        sleeping.set(false);
+                        idle = 0;
+                    }
+                } catch(Exception e) {
+                    log.error("Unexpected exception in payload capture to {}", path, e);
+                }
+            }
+            BufferPool.flushThreadCache();
+            try {
+                map.force();
+                file.close();
+            } catch(IOException e) {
+                log.error("Fail to close capture file {}", path, e);
+            }
+            log.info("Payload capture to {} closed. records={} dropped={}", path, records, dropped + drops.sum());
+        }
+
+        private void append(Chunk c) {
+            int length = RECORD_HEADER_SIZE + c.len;
+            long room = capacity - head % capacity;
+            if(room < length) {
+                // no wrap within a record
+                reclaim(head + room);
+                if(room >= 4) {
+                    map.putInt(HEADER_SIZE + (int)(head % capacity), 0);
+                }
+                head += room;
+            }
+            reclaim(head + length);
+            int pos = HEADER_SIZE + (int)(head % capacity);
+            map.putInt(pos, length);
+            map.putLong(pos + 4, c.timeUs);
+            map.putLong(pos + 12, c.uid);
+            map.put(pos + 20, (byte)c.side.toString().charAt(0));
+            map.put(pos + RECORD_HEADER_SIZE, c.data.buffer(), c.offset, c.len);
+            head += length;
+            records++;
+        }
+
+        /**
+         * Move tail past the records overwritten by writing up to end (exclusive).
+         */
+        private void reclaim(long end) {
+            boolean moved = false;
+            while(tail < head && tail < end - capacity) {
+                tail = next(map, capacity, tail);
+                moved = true;
+            }
+            if(moved) {
+                // before the records are overwritten, so the header never points into a half written record.
+                // head with it: tail may pass the head of the last batch, [tail, head) always holds whole records
+                map.putLong(OFF_HEAD, head);
+                map.putLong(OFF_TAIL, Math.min(tail, head));
+            }
+        }
+
+        private void writeHeader() {
+            map.putLong(OFF_HEAD, head);
+            map.putLong(OFF_TAIL, tail);
+            map.putLong(OFF_RECORDS, records);
+            map.putLong(OFF_DROPPED, dropped + drops.sum());
+        }
+    }
+
+    /**
+     * Offset of the record after the one at offset.
+     */
+    private static long next(ByteBuffer map, long capacity, long offset) {
+        long room = capacity - offset % capacity;
+        if(room < 4) {
+            return offset + room;
+        }
+        int length = map.getInt(HEADER_SIZE + (int)(offset % capacity));
+        return (length <= 0 ? offset + room : offset + length);
+    }
+
+    /**
+     * Offline dump of a capture file, oldest record first.<BR>
+     * Usage: PayloadCapture &lt;file&gt; [uid|*] [hex|text|none] (default all connections, hex)
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: java -cp tcp-redirect.jar com.tssaumi.tcpredirect.PayloadCapture <file> [uid|*] [hex|text|none]");
+            System.exit(1);
+        }
+        long uidFilter = (args.length > 1 && "*".equals(args[1]) == false ? Long.parseLong(args[1]) : -1L);
+        String format = (args.length > 2 ? args[2] : "hex");
+        try(RandomAccessFile f = new RandomAccessFile(args[0], "r")) {
+            MappedByteBuffer map = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            if(map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a capture file: " + args[0]);
+            }
+            long capacity = map.getLong(OFF_CAPACITY);
+            long head = map.getLong(OFF_HEAD);
+            long tail = map.getLong(OFF_TAIL);
+            System.out.println("# capacity=" + capacity + " used=" + (head - tail) + " records=" + map.getLong(OFF_RECORDS)
+                    + " dropped=" + map.getLong(OFF_DROPPED) + " created=" + new java.util.Date(map.getLong(OFF_CREATED)));
+            StringBuilder sb = new StringBuilder();
+            for(long offset = tail; offset < head; offset = next(map, capacity, offset)) {
+                long room = capacity - offset % capacity;
+                int pos = HEADER_SIZE + (int)(offset % capacity);
+                if(room < 4 || map.getInt(pos) <= 0) {
+                    continue;
+                }
+                int length = map.getInt(pos);
+                long uid = map.getLong(pos + 12);
+                if(uidFilter >= 0 && uid != uidFilter) {
+                    continue;
+                }
+                long timeUs = map.getLong(pos + 4);
+                char side = (char)map.get(pos + 20);
+                int len = length - RECORD_HEADER_SIZE;
+                sb.setLength(0);
+                sb.append(String.format("%tF %<tT.%06d [#%d] %s %s %d bytes", timeUs / 1000L, timeUs % 1_000_000L, uid, side,
+                        (side == 'C' ? ">>>" : "<<<"), len));
+                System.out.println(sb);
+                if("hex".equals(format)) {
+                    System.out.print(hexDump(map, pos + RECORD_HEADER_SIZE, len));
+                } else if("text".equals(format)) {
+                    byte[] bytes = new byte[len];
+                    map.get(pos + RECORD_HEADER_SIZE, bytes);
+                    System.out.println(new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1));
+                }
+            }
+        }
+    }
+
+    private static String hexDump(ByteBuffer buf, int pos, int len) {
+        StringBuilder sb = new StringBuilder();
+        for(int line = 0; line < len; line += 16) {
+            sb.append(String.format("  %08x  ", line));
+            StringBuilder text = new StringBuilder();
+            for(int i = 0; i < 16; i++) {
+                if(line + i < len) {
+                    int b = buf.get(pos + line + i) & 0xFF;
+                    sb.append(String.format("%02x ", b));
+                    text.append(b >= 0x20 && b < 0x7F ? (char)b : '.');
+                } else {
+                    sb.append("   ");
+                }
+            }
+            sb.append(' ').append(text).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted buffer borrowed from {@link BufferPool}.<BR>
+ * Reference count is 1 after acquire. Every {@link #retain()} must be paired with a {@link #release()},
+ * buffer goes back to pool when count drops to 0.
+ */
+@Slf4j
+public class PooledBuffer {
+
+    private static final Cleaner LEAK_CLEANER = Cleaner.create();
+
+    private final ByteBuffer buf;
+    private final BufferPool.SizeClass owner;
+    private final AtomicInteger refCnt = new AtomicInteger(0);
+    private LeakState leakState = null;
+
+    /**
+     * Tracking of leak detection. Must not reference the buffer, otherwise it is never collected.
+     */
+    private static class LeakState implements Runnable {
+        private final AtomicInteger refCnt;
+        private final int size;
+        private volatile Throwable site = null;
+
+        LeakState(AtomicInteger refCnt, int size) {
+            this.refCnt = refCnt;
+            this.size = size;
+        }
+
+        public void run() {
+            if(refCnt.get() > 0) {
+                log.error("LEAK: buffer({} bytes) collected without release. Acquired at:", size, site);
+            }
+        }
+    }
+
+    PooledBuffer(ByteBuffer buf, BufferPool.SizeClass owner) {
+        this.buf = buf;
+        this.owner = owner;
+    }
+
+    /**
+     * Called by pool when buffer is handed out.
+     */
+    void acquired(boolean trackLeak) {
+        buf.clear();
+        refCnt.set(1);
+        if(trackLeak) {
+            if(leakState == null) {
+                leakState = new LeakState(refCnt, buf.capacity());
+                LEAK_CLEANER.register(this, leakState);
+            }
+            leakState.site = new Throwable("Buffer acquired by " + Thread.currentThread().getName());
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    public int capacity() {
+        return buf.capacity();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+    public PooledBuffer retain() {
+        if(owner != null && refCnt.getAndIncrement() <= 0) {
+            refCnt.decrementAndGet();
+            throw new IllegalStateException("Retain a released buffer!");
+        }
+        return this;
+    }
+
+    public void release() {
+        if(owner == null) {
+            return;	// unpooled, e.g. dead signal
+        }
+        int cnt = refCnt.decrementAndGet();
+        if(cnt == 0) {
+            owner.recycle(this);
+        } else if(cnt < 0) {
+            refCnt.incrementAndGet();
+            log.error("Buffer released more than acquired!", new Throwable());
+        }
+    }
+
+    /**
+     * Buffer not belong to any pool, release() does nothing.
+     */
+    static PooledBuffer unpooled(ByteBuffer buf) {
+        return new PooledBuffer(buf, null);
+    }
+}
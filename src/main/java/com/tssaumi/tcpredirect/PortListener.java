@@ -1,79 +1,216 @@
 package com.tssaumi.tcpredirect;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Accept sockets of a local port with {@link Config#acceptThreads} threads.<BR>
+ * Accept threads share one listening socket, or each has its own with {@link Config#acceptReusePort}.
+ * Accept errors (e.g. out of file descriptors) never close the listening socket, the thread back off and retry.
+ */
 @Slf4j
 public class PortListener extends Thread {
+    /**
+     * Back off after accept error, give time to release file descriptors.
+     */
+    private static final long ACCEPT_ERROR_BACKOFF_MS = 100L;
+    private static final long REBIND_INTERVAL_MS = 3000L;
+
     protected volatile boolean running = false;
 
     protected String bindAddr = null;
     protected int localPort = -1;
-    protected ServerSocket ss = null;
+
+    /**
+     * Server owning the channels, null on agent side.
+     */
+    protected TCPRedirectServer server = null;
+
+    /**
+     * Listening sockets, one per accept thread with SO_REUSEPORT, otherwise one shared.
+     */
+    protected ServerSocketChannel[] channels = null;
+    private final ReentrantLock bindLock = new ReentrantLock();
+
+    @Getter protected ListenerStats stats = null;
 
     public PortListener(String threadName, String bindAddr, int localPort) {
         super(threadName);
+        // keep process running, also when started by a daemon thread (reload)
+        setDaemon(false);
         this.bindAddr = bindAddr;
         this.localPort = localPort;
     }
 
-    public PortListener(String bindAddr, int localPort) {
+    public PortListener(TCPRedirectServer server, String bindAddr, int localPort) {
         super("ServerPortListener");
+        setDaemon(false);
+        this.server = server;
         this.bindAddr = bindAddr;
         this.localPort = localPort;
     }
 
-    protected void closeServerSocket() {
-        if(ss != null) {
-            SocketKiller.killServerSocket(ss);
-            ss = null;
+    private boolean isReusePort() {
+        if(Config.acceptReusePort == false || Config.acceptThreads <= 1) {
+            return false;
+        }
+        try(ServerSocketChannel test = ServerSocketChannel.open()) {
+            return test.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch(IOException e) {
+            return false;
         }
     }
 
-    protected void createServerSocket() throws Exception {
-        closeServerSocket();
-        if(bindAddr != null && bindAddr.length() > 0) {
-            InetAddress[] addrs = InetAddress.getAllByName(bindAddr);
-            ss = new ServerSocket(localPort, 3, addrs[0]);
-        } else {
-            ss = new ServerSocket(localPort);
+    protected ServerSocketChannel createServerSocket(boolean reusePort) throws IOException {
+        // channel backed server socket, accepted sockets can be served by NIO engine
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            if(reusePort) {
+                ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if(bindAddr != null && bindAddr.length() > 0) {
+                InetAddress[] addrs = InetAddress.getAllByName(bindAddr);
+                ssc.bind(new InetSocketAddress(addrs[0], localPort), Config.listenBacklog);
+            } else {
+                ssc.bind(new InetSocketAddress(localPort), Config.listenBacklog);
+            }
+        } catch(IOException e) {
+            closeQuietly(ssc);
+            throw e;
         }
-        log.info("Server socket ready.");
+        log.info("Server socket ready. port={} backlog={} reuseport={}", localPort, Config.listenBacklog, reusePort);
+        return ssc;
     }
 
-    public void start() {
+    /**
+     * Open (again) the listening socket of the accept thread, retry until success or shutdown.
+     */
+    private ServerSocketChannel bind(int idx, ServerSocketChannel broken) throws InterruptedException {
+        boolean reusePort = channels.length > 1;
+        int slot = (reusePort ? idx : 0);
+        bindLock.lock();
+        try {
+            while(running) {
+                ServerSocketChannel cur = channels[slot];
+                if(cur != null && cur != broken && cur.isOpen()) {
+                    // reopened by other accept thread
+                    return cur;
+                }
+                if(cur != null) {
+                    closeQuietly(cur);
+                    channels[slot] = null;
+                }
+                try {
+                    channels[slot] = createServerSocket(reusePort);
+                    return channels[slot];
+                } catch(Exception e) {
+                    log.error("Fail to create server socket! Sleep {}ms before listen to port {} again ...", REBIND_INTERVAL_MS, localPort, e);
+                    sleep(REBIND_INTERVAL_MS);
+                }
+            }
+            return null;
+        } finally {
+            bindLock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
         running = true;
+        channels = new ServerSocketChannel[isReusePort() ? Config.acceptThreads : 1];
+        stats = new ListenerStats(getName(), localPort);
+        for(int i=1; i < Config.acceptThreads; i++) {
+            final int idx = i;
+            Thread t = new Thread(() -> acceptLoop(idx), getName() + "-" + i);
+            t.setDaemon(isDaemon());
+            t.start();
+        }
+        acceptLoop(0);
+    }
+
+    private void acceptLoop(int idx) {
+        ServerSocketChannel ssc = null;
         while(running) {
             try {
-                createServerSocket();
-                while (running) {
+                ssc = bind(idx, ssc);
+                if(ssc == null) {
+                    break;
+                }
+                while(running) {
+                    SocketChannel ch;
                     try {
-                        Socket socket = ss.accept();
-                        handShake(socket);
-                    } catch (Exception e) {
-                        log.error("Fail to accept new socket!", e);
+                        ch = ssc.accept();
+                    } catch(ClosedChannelException e) {
+                        if(running) {
+                            log.error("Server socket of port {} closed unexpectedly!", localPort, e);
+                        }
                         break;
+                    } catch(IOException e) {
+                        // keep listening socket, connections wait in backlog until recovered
+                        stats.acceptFailed();
+                        log.error("Fail to accept new socket! Back off {}ms.", ACCEPT_ERROR_BACKOFF_MS, e);
+                        sleep(ACCEPT_ERROR_BACKOFF_MS);
+                        continue;
+                    }
+                    stats.accepted();
+                    try {
+                        handShake(ch.socket());
+                    } catch(Exception e) {
+                        log.error("Fail to start hand shake! Drop socket: {}", ch, e);
+                        SocketKiller.killSocket(ch.socket(), null, null);
                     }
                 }
+            } catch(InterruptedException e) {
+                break;
             } catch(Exception e) {
-                log.error("Fail to create server socket!", e);
-            } finally {
-                try {
-                    log.info("Sleep 3s before listen to target port again ...");
-                    closeServerSocket();
-                    sleep(3000);
-                } catch(Exception e) {
-                    log.error("Fail to sleep.", e);
+                log.error("Accept thread of port {} failed!", localPort, e);
+            }
+        }
+        log.info("Accept thread {} of port {} stopped.", idx, localPort);
+    }
+
+    /**
+     * Stop accepting and close listening sockets, accepted connections are not affected.
+     */
+    public void shutdown() {
+        running = false;
+        bindLock.lock();
+        try {
+            if(channels != null) {
+                for(int i=0; i < channels.length; i++) {
+                    if(channels[i] != null) {
+                        closeQuietly(channels[i]);
+                        channels[i] = null;
+                    }
                 }
             }
+        } finally {
+            bindLock.unlock();
+        }
+        if(stats != null) {
+            stats.remove();
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel ssc) {
+        try {
+            ssc.close();
+        } catch(IOException e) {
+            log.warn("Fail to close server socket: {}", ssc, e);
         }
     }
 
     protected void handShake(Socket socket) {
-        HandShakeThread hs = new HandShakeThread(socket);
-        hs.start();
+        HandShakeExecutor.getInstance().execute(socket, new HandShakeThread(socket, server), stats);
     }
 }
@@ -1,18 +1,337 @@
 package com.tssaumi.tcpredirect;
 
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class RedirectTarget {
     public String channel = null;	// must be global unique
-    public String host = null;
+    public String host = null;	// (server) first backend
     public int port = -1;
 
+    /**
+     * (server) Backends serving this channel, one per "target.N" of the channel.
+     */
+    public final List<Backend> backends = new CopyOnWriteArrayList<>();
+
+    // per channel options, property "<name>.<CHANNEL>" override "<name>"
+
+    /**
+     * Idle sockets connected in advance. 0 = no pool.<BR>
+     * Agent: hand shaken with redirect server, see {@link ServerConnectionPool}.<BR>
+     * Server: connected to target, see {@link TargetConnectionPool}.
+     */
+    public int poolMinIdle = 0;
+    /**
+     * Pool grows up to this while clients find it empty, see {@link IdleSocketPool}.
+     */
+    public int poolMaxIdle = 0;
+    public long poolMaxAgeMs = 60000L;
+
+    /**
+     * (agent) Send data right after hand shake request without waiting for response. Server must support it.
+     */
+    public boolean handshakePipelined = false;
+
+    /**
+     * (agent) Hand shake version sent to redirect server, 2 requires an upgraded server. See {@link HandShakeFrame}.
+     */
+    public int handshakeVersion = HandShakeFrame.VERSION_1;
+
+    /**
+     * Read buffer size of forwarding, offered in hand shake v2.
+     */
+    public int bufferSize = BufferPool.BUF_SIZE;
+
+    /**
+     * SO_KEEPALIVE of agent to server leg, offered in hand shake v2.
+     */
+    public boolean keepAlive = false;
+
+    /**
+     * Compression of agent to server leg, offered in hand shake v2. See {@link Capabilities#COMPRESSION_DEFLATE}.
+     */
+    public int compression = Capabilities.COMPRESSION_NONE;
+    public int compressionLevel = 1;	// Deflater.BEST_SPEED
+
+    /**
+     * When gathered data is written to both sides of a connection, see {@link FlushPolicy}.
+     */
+    public FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    /**
+     * TCP_NODELAY of both sockets of a connection. Default: on, except with {@link FlushPolicy.Mode#SIZE}.
+     */
+    public boolean tcpNoDelay = true;
+    /**
+     * SO_SNDBUF and SO_RCVBUF of both sockets of a connection. 0 = OS default.
+     */
+    public int sendBufferSize = 0;
+    public int receiveBufferSize = 0;
+    /**
+     * SO_LINGER (seconds) of both sockets of a connection, applied when closed by {@link SocketKiller}.
+     * -1 = OS default (close returns at once, unsent data still sent), 0 = abortive close (RST).
+     */
+    public int soLinger = -1;
+    /**
+     * Close connections without traffic for this long, see {@link IdleReaper}. 0 = never.
+     */
+    public long idleTimeoutMs = 0L;
+    /**
+     * End of stream from one side shut down output of the other side only, instead of closing the connection.
+     */
+    public boolean halfClose = true;
+
+    /**
+     * Egress to the other end of tcp-redirect in bytes per second, of the channel and of each connection. 0 = no limit.
+     * See {@link Shaper}.
+     */
+    public long rateLimit = 0L;
+    public long connRateLimit = 0L;
+    /**
+     * Weight of channel in sharing {@link Config#linkRate}, see {@link LinkScheduler}.
+     */
+    public int rateWeight = 1;
+    /**
+     * Bytes sent without waiting after idle, for all rate limits of the channel.
+     */
+    public long rateBurst = 65536L;
+
+    /**
+     * Capture data read by connections of this channel into this ring file, see {@link PayloadCapture}. Null = no capture.
+     */
+    public String captureFile = null;
+    public long captureSize = 64L * 1024 * 1024;	// 64M
+    /**
+     * Max memory (buffer capacity) retained by chunks waiting for the capture writer, more are dropped.
+     */
+    public long captureQueueBytes = 8L * 1024 * 1024;	// 8M
+
+    /**
+     * Compression counters of all connections of this channel.
+     */
+    public final CompressionStats compressionStats = new CompressionStats();
+
+    private volatile ChannelMetrics metrics = null;
+
+    /**
+     * Traffic counters of all connections of this channel.
+     */
+    public ChannelMetrics getMetrics() {
+        ChannelMetrics m = metrics;
+        if(m == null) {
+            m = ChannelMetrics.of(channel);
+            metrics = m;
+        }
+        return m;
+    }
+
+    private volatile LinkScheduler.Share share = null;
+    private volatile boolean shareCreated = false;
+
+    /**
+     * Rate limits shared by all connections of this channel, or null if none.
+     */
+    LinkScheduler.Share getShare() {
+        if(shareCreated == false) {
+            synchronized(this) {
+                if(shareCreated == false) {
+                    share = LinkScheduler.share(this);
+                    shareCreated = true;
+                }
+            }
+        }
+        return share;
+    }
+
+    private volatile PayloadCapture capture = null;
+    private volatile boolean captureOpened = false;	// or stopped
+    /**
+     * Guards open and stop of capture. Not a monitor: the file is opened by a (maybe virtual) hand shake thread.
+     */
+    private final ReentrantLock captureLock = new ReentrantLock();
+
+    /**
+     * Payload capture of this channel, opened by its first connection. Null if none or channel stopped.
+     */
+    PayloadCapture getCapture() {
+        if(captureOpened == false) {
+            captureLock.lock();
+            try {
+                if(captureOpened == false) {
+                    capture = PayloadCapture.open(this);
+                    captureOpened = true;
+                }
+            } finally {
+                captureLock.unlock();
+            }
+        }
+        return capture;
+    }
+
+    /**
+     * Stop capture of a channel removed by reload, connections still forwarding are no longer captured.
+     */
+    void stopCapture() {
+        captureLock.lock();
+        try {
+            if(capture != null) {
+                capture.release();
+                capture = null;
+            }
+            captureOpened = true;
+        } finally {
+            captureLock.unlock();
+        }
+    }
+
+    /**
+     * Rate limits if already created by a connection, see {@link #getShare()}.
+     */
+    LinkScheduler.Share peekShare() {
+        return share;
+    }
+
+    /**
+     * (server) Backend selection, see {@link LoadBalancer}.
+     */
+    public LoadBalancer.Policy lbPolicy = LoadBalancer.Policy.LEAST_CONN;
+    /**
+     * (server) Interval of background TCP connect check of backends. 0 = disabled, backends are checked by client connections only.
+     */
+    public long healthCheckIntervalMs = 2000L;
+    /**
+     * (server) Time a failed backend is skipped, unless health check succeed earlier.
+     */
+    public long ejectMs = 10000L;
+    /**
+     * (server) Consecutive failed connects (clients or health check) before a backend is ejected.
+     */
+    public int ejectFailures = 3;
+    /**
+     * Connect timeout to backends (server) or redirect server (agent), see {@link AsyncConnector}.
+     */
+    public int connectTimeoutMs = 3000;
+    /**
+     * Delay before racing the next address of a host with several addresses.
+     */
+    public long connectStaggerMs = 250L;
+    /**
+     * Age of cached host name resolution before refreshed in background, see {@link Resolver}. 0 = no cache.
+     */
+    public long dnsTtlMs = 30000L;
+
+    /**
+     * Per channel options as read from properties, to tell on reload whether the channel changed.
+     */
+    final Map<String, String> options = new TreeMap<>();
+    /**
+     * (server) Background health check of backends, cancelled when channel removed by reload.
+     */
+    final List<ScheduledFuture<?>> healthChecks = new CopyOnWriteArrayList<>();
+
+    final ReentrantLock lbLock = new ReentrantLock();
+    int lbCounter = 0;	// guarded by lbLock
+
+    // pre-encoded by encodeHandShakeFrames(), no string work on hand shake
+
+    byte[] channelBytes = null;
+    Capabilities caps = null;
+    /**
+     * Capabilities of version 1 hand shake, nothing agreed with the other side.
+     */
+    Capabilities capsV1 = null;
+    /**
+     * (agent) Request of {@link #handshakeVersion}.
+     */
+    byte[] request = null;
+    /**
+     * (server) Response of version 1 and 2.
+     */
+    byte[] responseV1 = null;
+    byte[] responseV2 = null;
+
+    /**
+     * Apply socket options of the channel to a socket before forwarding.
+     */
+    void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if(sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if(receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if(soLinger >= 0) {
+            socket.setSoLinger(true, soLinger);
+        }
+    }
+
+    /**
+     * Same backends (server) or listen address (agent) and options as a target loaded again,
+     * so the running one (pools, backend state) is kept on reload.
+     */
+    boolean sameConfig(RedirectTarget other) {
+        if(options.equals(other.options) == false) {
+            return false;
+        }
+        if(backends.isEmpty() && other.backends.isEmpty()) {
+            return Objects.equals(host, other.host) && port == other.port;
+        }
+        // order of "target.N" does not matter
+        return backendKeys().equals(other.backendKeys());
+    }
+
+    private List<String> backendKeys() {
+        List<String> keys = new ArrayList<>();
+        for(Backend b : backends) {
+            keys.add(b.host + ":" + b.port + "," + b.weight);
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Encode hand shake messages once options are loaded.
+     */
+    void encodeHandShakeFrames() {
+        this.channelBytes = channel.getBytes(StandardCharsets.UTF_8);
+        this.caps = Capabilities.of(this);
+        this.capsV1 = Capabilities.of(this);
+        capsV1.compression = Capabilities.COMPRESSION_NONE;
+        if(host != null) {
+            this.responseV1 = HandShakeFrame.encodeV1(host + ":" + port);
+        }
+        this.responseV2 = HandShakeFrame.encodeResponse(HandShakeFrame.STATUS_OK, caps);
+        if(handshakeVersion == HandShakeFrame.VERSION_2) {
+            this.request = HandShakeFrame.encodeRequest(channelBytes, handshakePipelined ? HandShakeFrame.FLAG_PIPELINED : 0, caps);
+        } else {
+            this.request = HandShakeFrame.encodeV1(handshakePipelined ? channel + " " + Constants.HAND_SHAKE_FLAG_PIPELINED : channel);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Target[channel=");
         sb.append(channel);
         sb.append(" ==> ");
-        sb.append(host);
-        sb.append(":");
-        sb.append(port);
+        if(backends.size() > 1) {
+            sb.append(backends);
+            sb.append(" ");
+            sb.append(lbPolicy);
+        } else {
+            sb.append(host);
+            sb.append(":");
+            sb.append(port);
+        }
         sb.append("]");
         return sb.toString();
     }
@@ -0,0 +1,103 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Host name resolution cache shared by all upstream connects.<BR>
+ * Only the first lookup of a host wait for the resolver. Afterwards an expired entry is still returned
+ * while it is refreshed in background, and kept if the refresh fails, so resolver hiccups never reach
+ * the connect path.
+ */
+@Slf4j
+public class Resolver {
+
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "DnsRefresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Entry {
+        volatile InetAddress[] addresses;
+        volatile long resolveTimeNs;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(InetAddress[] addresses) {
+            this.addresses = addresses;
+            this.resolveTimeNs = System.nanoTime();
+        }
+    }
+
+    private static final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Addresses of host, IPv6 and IPv4 interleaved.
+     * @param ttlMs age before an entry is refreshed. 0 = no cache.
+     */
+    public static InetAddress[] resolve(String host, long ttlMs) throws UnknownHostException {
+        if(ttlMs <= 0) {
+            return interleave(InetAddress.getAllByName(host));
+        }
+        Entry entry = cache.get(host);
+        if(entry == null) {
+            entry = new Entry(interleave(InetAddress.getAllByName(host)));
+            cache.put(host, entry);
+            return entry.addresses;
+        }
+        if((System.nanoTime() - entry.resolveTimeNs) > ttlMs * 1_000_000L && entry.refreshing.compareAndSet(false, true)) {
+            Entry e = entry;
+            refresher.execute(() -> refresh(host, e));
+        }
+        return entry.addresses;
+    }
+
+    private static void refresh(String host, Entry entry) {
+        try {
+            InetAddress[] addresses = interleave(InetAddress.getAllByName(host));
+            entry.addresses = addresses;
+        } catch(Exception e) {
+            log.warn("Fail to resolve {}, keep cached addresses {}", host, entry.addresses, e);
+        } finally {
+            // retry after another TTL on failure
+            entry.resolveTimeNs = System.nanoTime();
+            entry.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Alternate address families, starting with the family of the first address (RFC 8305).
+     */
+    static InetAddress[] interleave(InetAddress[] addresses) {
+        if(addresses.length <= 1) {
+            return addresses;
+        }
+        boolean firstV6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for(InetAddress a : addresses) {
+            ((a instanceof Inet6Address) == firstV6 ? first : second).add(a);
+        }
+        InetAddress[] result = new InetAddress[addresses.length];
+        int n = 0;
+        for(int i=0; i < Math.max(first.size(), second.size()); i++) {
+            if(i < first.size()) {
+                result[n++] = first.get(i);
+            }
+            if(i < second.size()) {
+                result[n++] = second.get(i);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,26 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Agent side: idle sockets of a channel, already connected and hand shaken with redirect server.<BR>
+ * Accepted client get one immediately instead of waiting for connect and hand shake.<BR>
+ * <BR>
+ * Note: redirect server connects to the target as soon as hand shake completed,
+ * so every idle socket also hold a connection to the target.
+ */
+public class ServerConnectionPool extends IdleSocketPool {
+
+    private final ClientHandShakeThread connector;
+
+    public ServerConnectionPool(RedirectTarget target, String serverHost, int serverPort) {
+        super(target);
+        this.connector = new ClientHandShakeThread(null, target, serverHost, serverPort);
+    }
+
+    @Override
+    protected ReadySocket connect() throws Exception {
+        // called by refiller thread only
+        ReadySocket ready = new ReadySocket(connector.connect());
+        ready.caps = connector.getCaps();
+        return ready;
+    }
+}
@@ -0,0 +1,73 @@
+package com.tssaumi.tcpredirect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bandwidth shaping of one connection, applied to writes to the other end of tcp-redirect (agent-server leg):
+ * limit of the connection, limit of its channel and share of the channel of {@link Config#linkRate}, see {@link LinkScheduler}.<BR>
+ * A write takes its bytes from all buckets before it is written and waits as long as the slowest one requires.
+ * Meanwhile the queue of the connection fills, and reading from the sender stops by the usual backpressure.
+ */
+public class Shaper {
+
+    private static final long MAX_SLEEP_NS = 100_000_000L;	// check close every 100 ms
+
+    /**
+     * Side written to (tunnel side) in the thread and NIO engine.
+     */
+    final TCPFwd.TYPE side;
+    private final TokenBucket conn;
+    private final LinkScheduler.Share share;
+    private final ChannelMetrics metrics;
+
+    private Shaper(TCPFwd.TYPE side, TokenBucket conn, LinkScheduler.Share share, ChannelMetrics metrics) {
+        this.side = side;
+        this.conn = conn;
+        this.share = share;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Shaper of a new connection of target, or null if channel has no limit.
+     * @param side side of the connection connected to the other end of tcp-redirect.
+     */
+    static Shaper of(RedirectTarget target, TCPFwd.TYPE side) {
+        LinkScheduler.Share share = target.getShare();
+        TokenBucket conn = (target.connRateLimit > 0 ? new TokenBucket(target.connRateLimit, target.rateBurst) : null);
+        if(conn == null && share == null) {
+            return null;
+        }
+        return new Shaper(side, conn, share, target.getMetrics());
+    }
+
+    /**
+     * Take bytes about to be written. Return nanoseconds to wait before writing them, 0 if within all limits.
+     */
+    long take(long bytes) {
+        long now = System.nanoTime();
+        long waitNs = 0L;
+        if(conn != null) {
+            waitNs = conn.take(bytes, now);
+        }
+        if(share != null) {
+            waitNs = Math.max(waitNs, share.take(bytes, now));
+        }
+        if(waitNs > 0) {
+            metrics.shapingWaitNs.add(waitNs);
+        }
+        return waitNs;
+    }
+
+    /**
+     * Take bytes and wait as required, for blocking writers. Stop waiting once closed.
+     */
+    void pace(long bytes, AtomicBoolean closed) throws InterruptedException {
+        long waitNs = take(bytes);
+        while(waitNs > 0 && closed.get() == false) {
+            long sleepNs = Math.min(waitNs, MAX_SLEEP_NS);
+            TimeUnit.NANOSECONDS.sleep(sleepNs);
+            waitNs -= sleepNs;
+        }
+    }
+}
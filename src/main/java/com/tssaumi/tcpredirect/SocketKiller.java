@@ -2,39 +2,179 @@ package com.tssaumi.tcpredirect;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Close sockets for forwarding, hand shaking and listener threads, which never wait for a close.<BR>
+ * Closes are queued to a few shared closer threads ({@link Config#closerThreads}), each drains the queue
+ * (up to a batch) before waiting for it again. When the queue is full the close gets its own thread, callers never block.<BR>
+ * How a socket is closed (SO_LINGER) is set per channel before forwarding, see {@link RedirectTarget#configure(Socket)}.
+ * With linger &gt; 0 a close waits until unsent data is acknowledged (up to the linger time): such closes are queued to
+ * their own bounded set of threads ({@link Config#closerLingerThreads}, "SocketLinger"), so default and abortive closes never wait behind them.
+ * When that queue is full, e.g. a dead peer drop thousands of lingering connections at once, the close falls back to the
+ * OS default (unsent data still sent in background) on the closer threads, counted in overflows.
+ */
 @Slf4j
-public class SocketKiller extends Thread {
+public class SocketKiller implements Runnable {
+
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Upper bounds (seconds) of close latency histogram, from queued to closed.
+     */
+    public static final double[] LATENCY_BUCKETS = {0.0001, 0.001, 0.01, 0.1, 1, 10};
+
+    private static final LongAdder closed = new LongAdder();
+    private static final LongAdder overflows = new LongAdder();
+    private static final LongAdder latencySumNs = new LongAdder();
+    private static final LongAdder[] latencyCounts = new LongAdder[LATENCY_BUCKETS.length + 1];	// last one = +Inf
+    static {
+        for(int i=0; i < latencyCounts.length; i++) {
+            latencyCounts[i] = new LongAdder();
+        }
+    }
+
+    private static volatile BlockingQueue<SocketKiller> queue = null;
+    private static volatile ThreadPoolExecutor lingerPool = null;
+
+    /**
+     * Threads for lingering closes, at most {@link Config#closerLingerThreads}, ended after idle 60s.
+     * Closes over the queue size are rejected, see {@link #submit(SocketKiller)}.
+     */
+    private static ThreadPoolExecutor getLingerPool() {
+        ThreadPoolExecutor pool = lingerPool;
+        if(pool == null) {
+            synchronized(SocketKiller.class) {
+                pool = lingerPool;
+                if(pool == null) {
+                    int threads = Math.max(1, Config.closerLingerThreads);
+                    AtomicLong threadCount = new AtomicLong(1);
+                    pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(Math.max(1, Config.closerQueueSize)), r -> {
+                        Thread t = new Thread(r, "SocketLinger-" + threadCount.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    pool.allowCoreThreadTimeOut(true);
+                    lingerPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static BlockingQueue<SocketKiller> getQueue() {
+        BlockingQueue<SocketKiller> q = queue;
+        if(q == null) {
+            synchronized(SocketKiller.class) {
+                q = queue;
+                if(q == null) {
+                    q = new ArrayBlockingQueue<>(Math.max(1, Config.closerQueueSize));
+                    int threads = Math.max(1, Config.closerThreads);
+                    for(int i=0; i < threads; i++) {
+                        BlockingQueue<SocketKiller> tasks = q;
+                        Thread t = new Thread(() -> closeLoop(tasks), "SocketKiller-" + (i + 1));
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                    queue = q;
+                    log.info("Socket closer started. threads={} queue={}", threads, q.remainingCapacity());
+                }
+            }
+        }
+        return q;
+    }
+
 	private ServerSocket serverSocket = null;
     private Socket socket = null;
     private InputStream is = null;
     private OutputStream os = null;
+    private final long queuedNs = System.nanoTime();
 
     /**
-     * Start a new thread to close server socket.
+     * Close server socket on a closer thread.
      */
     public static void killServerSocket(ServerSocket serverSocket) {
-        SocketKiller killer = new SocketKiller(serverSocket, null, null, null);
-        killer.start();
+        submit(new SocketKiller(serverSocket, null, null, null));
     }
-    
+
     /**
-     * Start a new thread to close socket and its corresponding in/out stream.
+     * Close socket and its corresponding in/out stream on a closer thread.
      */
     public static void killSocket(Socket socket, InputStream is, OutputStream os) {
-        SocketKiller killer = new SocketKiller(null, socket, is, os);
-        killer.start();
+        submit(new SocketKiller(null, socket, is, os));
+    }
+
+    private static void submit(SocketKiller killer) {
+        if(killer.lingers()) {
+            try {
+                getLingerPool().execute(killer);
+                return;
+            } catch(RejectedExecutionException e) {
+                // linger queue full: never wait, close without linger behind other closes
+                overflows.increment();
+            }
+            try {
+                killer.socket.setSoLinger(false, 0);
+            } catch(SocketException e) {
+                // closing anyway
+            }
+        }
+        if(getQueue().offer(killer) == false) {
+            // queue full, e.g. closers stuck in linger: never wait, close on a new thread (see Threads)
+            overflows.increment();
+            Threads.start("SocketKiller", killer);
+        }
+    }
+
+    private static void closeLoop(BlockingQueue<SocketKiller> tasks) {
+        List<SocketKiller> batch = new ArrayList<>(BATCH_SIZE);
+        while(true) {
+            try {
+                batch.add(tasks.take());
+                tasks.drainTo(batch, BATCH_SIZE - 1);
+                for(SocketKiller killer : batch) {
+                    killer.run();
+                }
+            } catch(InterruptedException e) {
+                log.warn("Socket closer interrupted, {} sockets queued.", tasks.size());
+                return;
+            } catch(Exception e) {
+                log.error("Unexpected exception in socket closer", e);
+            } finally {
+                batch.clear();
+            }
+        }
     }
-    
+
     private SocketKiller(ServerSocket serverSocket, Socket socket, InputStream is, OutputStream os) {
     	this.serverSocket = serverSocket;
         this.socket = socket;
         this.is = is;
         this.os = os;
     }
-    
+
+    /**
+     * Close blocks until unsent data acknowledged, see {@link RedirectTarget#soLinger}.
+     */
+    private boolean lingers() {
+        try {
+            return socket != null && socket.isClosed() == false && socket.getSoLinger() > 0;
+        } catch(SocketException e) {
+            return false;
+        }
+    }
+
     public void run() {
         try {
             if(is != null) {
@@ -65,5 +205,51 @@ public class SocketKiller extends Thread {
         } catch(Exception e) {
             log.error("Fail to close server socket! serverSocket={}", serverSocket, e);
         }
+        closed(System.nanoTime() - queuedNs);
+    }
+
+    private static void closed(long latencyNs) {
+        closed.increment();
+        latencySumNs.add(latencyNs);
+        int i = 0;
+        while(i < LATENCY_BUCKETS.length && latencyNs > LATENCY_BUCKETS[i] * 1e9) {
+            i++;
+        }
+        latencyCounts[i].increment();
+    }
+
+    /**
+     * Closes queued and not yet started, lingering ones included.
+     */
+    public static int getQueueLength() {
+        BlockingQueue<SocketKiller> q = queue;
+        ThreadPoolExecutor pool = lingerPool;
+        return (q == null ? 0 : q.size()) + (pool == null ? 0 : pool.getQueue().size());
+    }
+
+    public static long getClosed() {
+        return closed.sum();
+    }
+
+    /**
+     * Closes given their own thread because the queue was full, or closed without linger because the linger queue was full.
+     */
+    public static long getOverflows() {
+        return overflows.sum();
+    }
+
+    public static long getLatencySumNs() {
+        return latencySumNs.sum();
+    }
+
+    /**
+     * Closes per {@link #LATENCY_BUCKETS} (not cumulative), last one = +Inf.
+     */
+    public static long[] getLatencyCounts() {
+        long[] counts = new long[latencyCounts.length];
+        for(int i=0; i < counts.length; i++) {
+            counts[i] = latencyCounts[i].sum();
+        }
+        return counts;
     }
-}
\ No newline at end of file
+}
@@ -2,15 +2,23 @@ package com.tssaumi.tcpredirect;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.text.DecimalFormat;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.tssaumi.tcpredirect.SocketKiller;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-public class TCPFwd {
+public class TCPFwd implements LiveConnection, IdleReaper.Watched {
 
     private long uid = -1L; // unique ID
     private BytesQueue qTo = null;
@@ -18,11 +26,31 @@ public class TCPFwd {
     
     private String clientAddress = null;
     private String serverAddress = null;
+
+    private int bufferSize = BufferPool.BUF_SIZE;
+
+    // compression of the agent-server leg
+    private TYPE compressedSide = null;
+    private CompressionStats compressionStats = null;
+    private int compressionLevel = 0;
+    private Compressor compressor = null;
+    private Decompressor decompressor = null;
+
+    private Runnable onClose = null;
+
+    private ChannelMetrics metrics = null;
+    private FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    private boolean halfClose = false;
+    private Shaper shaper = null;
+    private PayloadCapture capture = null;
+    private volatile IdleReaper.Entry idleEntry = null;
+    private final long startTimeNs = System.nanoTime();
+    private final long startTimeMs = System.currentTimeMillis();
     
-    private Connection client = null;
-    private Connection server = null;
+    private volatile Connection client = null;
+    private volatile Connection server = null;
     
-    private enum TYPE {
+    enum TYPE {
     	CLIENT("C"),
     	SERVER("S");
     	
@@ -39,106 +67,354 @@ public class TCPFwd {
     	
     };
 
-    private boolean closeTriggered = false;
-    private synchronized void closeDetected() {
-    	if(closeTriggered == false) {
-	    	// log data before die
-	    	StringBuilder sb = new StringBuilder("[#"+uid+"] Capture connection info:");
-	    	DecimalFormat df = new DecimalFormat("#,##0");
-	    	sb.append("\r\n=================================================================");
-	    	sb.append("\r\n(Client) ").append(clientAddress).append(" >>><<< ").append(serverAddress).append(" (Server)");
-	    	sb.append("\r\nClient >>> Server queue size: ").append(df.format(qTo.getBytes()));
-	    	sb.append("\r\nClient <<< Server queue size: ").append(df.format(qBack.getBytes()));
-	    	sb.append("\r\nClient READ>>>WRITE(bytes): ").append(df.format(client.getAccumInBytes())).append(" >>> ").append(df.format(server.getAccumOutBytes()));
-	    	sb.append("\r\nServer READ>>>WRITE(bytes): ").append(df.format(server.getAccumInBytes())).append(" >>> ").append(df.format(client.getAccumOutBytes()));
-	    	sb.append("\r\n=================================================================");
-	    	log.info(sb.toString());
+    // no monitor lock here, so virtual threads calling it are never pinned
+    private final AtomicBoolean closeTriggered = new AtomicBoolean(false);
+    private void closeDetected() {
+    	if(closeTriggered.compareAndSet(false, true)) {
+	    	IdleReaper.cancel(idleEntry);
+	    	// log data before die, server side may not be created yet when client close immediately
+	    	Connection c = client;
+	    	Connection s = server;
+	    	log.info(connectionInfo(uid, clientAddress, serverAddress, qTo.getBytes(), qBack.getBytes(),
+	    			c != null ? c.getAccumInBytes() : 0L, s != null ? s.getAccumOutBytes() : 0L,
+	    			s != null ? s.getAccumInBytes() : 0L, c != null ? c.getAccumOutBytes() : 0L));
+	    	metrics.closed(this);
+	    	if(compressedSide != null) {
+	    		log.info("[#{}] Compression of {} side: {}, {}. Channel total: {}", uid, compressedSide, compressor, decompressor, compressionStats);
+	    	}
+	    	if(onClose != null) {
+	    		onClose.run();
+	    	}
     	}
-    	closeTriggered = true;
     	
         close();
     }
 
     /**
-     * LinkedBlockingQueue which keep current bytes buffered.
+     * Directions finished by end of stream, see {@link #halfClose}.
      */
-    class BytesQueue extends LinkedBlockingQueue<byte[]> {
-        private long totalBytes = 0;
+    private final AtomicInteger directionsDone = new AtomicInteger(0);
+
+    /**
+     * WRITE side wrote everything of a direction ended by end of stream and shut down its output.
+     * Connection is closed when both directions are done.
+     */
+    private void directionDone() {
+        if(directionsDone.incrementAndGet() >= 2) {
+            closeDetected();
+        }
+    }
+
+    /**
+     * Connection info logged when connection die. Shared by all forwarding engines.
+     */
+    static String connectionInfo(long uid, String clientAddress, String serverAddress,
+    		long toServerQueueBytes, long toClientQueueBytes,
+    		long clientReadBytes, long serverWriteBytes, long serverReadBytes, long clientWriteBytes) {
+    	StringBuilder sb = new StringBuilder("[#"+uid+"] Capture connection info:");
+    	DecimalFormat df = new DecimalFormat("#,##0");
+    	sb.append("\r\n=================================================================");
+    	sb.append("\r\n(Client) ").append(clientAddress).append(" >>><<< ").append(serverAddress).append(" (Server)");
+    	sb.append("\r\nClient >>> Server queue size: ").append(df.format(toServerQueueBytes));
+    	sb.append("\r\nClient <<< Server queue size: ").append(df.format(toClientQueueBytes));
+    	sb.append("\r\nClient READ>>>WRITE(bytes): ").append(df.format(clientReadBytes)).append(" >>> ").append(df.format(serverWriteBytes));
+    	sb.append("\r\nServer READ>>>WRITE(bytes): ").append(df.format(serverReadBytes)).append(" >>> ").append(df.format(clientWriteBytes));
+    	sb.append("\r\n=================================================================");
+    	return sb.toString();
+    }
+
+    /**
+     * Dead signal put to queue when READ side stopped.
+     */
+    static final PooledBuffer DEAD_SIGNAL = PooledBuffer.unpooled(ByteBuffer.allocate(0));
+
+    /**
+     * Number of READ sides of this connection stopped by backpressure.
+     */
+    private final AtomicInteger throttledSides = new AtomicInteger(0);
+
+    /**
+     * LinkedBlockingQueue which keep current bytes buffered.<BR>
+     * Element is a flipped buffer from {@link BufferPool}, released by the WRITE side.<BR>
+     * Memory held by queued buffers is limited by {@link Config#queueMaxBytes} and {@link MemoryBudget}.
+     */
+    static class BytesQueue extends LinkedBlockingQueue<PooledBuffer> {
+        private static final long THROTTLE_WAIT_MS = 50L;
+
+        private final long uid;
+        private final AtomicInteger throttledSides;
+
+        private final AtomicLong totalBytes = new AtomicLong(0);
+        private final AtomicLong totalMemory = new AtomicLong(0);	// capacity of queued buffers
+        
+        private final ReentrantLock budgetLock = new ReentrantLock();
+        private final Condition drained = budgetLock.newCondition();
+        private volatile boolean throttled = false;
+        private volatile boolean closed = false;
+        
+        /**
+         * @param throttledSides counter of READ sides stopped by backpressure, shared by both queues of the connection.
+         */
+        BytesQueue(long uid, AtomicInteger throttledSides) {
+            this.uid = uid;
+            this.throttledSides = throttledSides;
+        }
         
         public long getBytes() {
-            return totalBytes;
+            return totalBytes.get();
+        }
+        
+        /**
+         * Memory held by queued buffers, which is >= {@link #getBytes()}.
+         */
+        public long getMemory() {
+        	return totalMemory.get();
+        }
+        
+        public boolean isThrottled() {
+        	return throttled;
         }
         
-        private final Object SYN_OBJ = new Object();
         public void addBytes(long len) {
-            synchronized(SYN_OBJ) {
-                totalBytes += len;
-            }
+            totalBytes.addAndGet(len);
         }
         
         public void removeBytes(long len) {
-            synchronized(SYN_OBJ) {
-                totalBytes -= len;
-            }
+            totalBytes.addAndGet(-len);
+        }
+        
+        private void added(PooledBuffer e) {
+        	addBytes(e.buffer().remaining());
+        	totalMemory.addAndGet(e.capacity());
+        	MemoryBudget.add(e.capacity());
+        }
+        
+        private void removed(PooledBuffer e) {
+        	removeBytes(e.buffer().remaining());
+        	totalMemory.addAndGet(-e.capacity());
+        	MemoryBudget.remove(e.capacity());
+        	if(throttled && canResume()) {
+        		budgetLock.lock();
+        		try {
+        			drained.signalAll();
+        		} finally {
+        			budgetLock.unlock();
+        		}
+        	}
+        }
+        
+        private boolean isOverBudget() {
+        	long limit = Config.queueMaxBytes;
+        	return (limit > 0 && totalMemory.get() >= limit) || MemoryBudget.isExhausted();
+        }
+        
+        /**
+         * Resume when drained to half of the limit.
+         */
+        private boolean canResume() {
+        	long limit = Config.queueMaxBytes;
+        	return (limit <= 0 || totalMemory.get() < limit / 2) && MemoryBudget.canResume();
+        }
+        
+        /**
+         * Block READ side while queue is over budget.
+         * Return when queue drained, or reader stopped.
+         */
+        void awaitDrained(InThread reader) throws InterruptedException {
+        	if(isOverBudget() == false) {
+        		return;
+        	}
+        	throttled = true;
+        	if(throttledSides.getAndIncrement() == 0) {
+        		MemoryBudget.throttled();
+        	}
+        	log.debug("[#{}] Queue over budget, stop READ from {}. memory={}", uid, reader.host, totalMemory.get());
+        	budgetLock.lock();
+        	try {
+        		// timed wait, global budget is released by other connections without signal
+        		while(reader.running && canResume() == false) {
+        			drained.await(THROTTLE_WAIT_MS, TimeUnit.MILLISECONDS);
+        		}
+        	} finally {
+        		budgetLock.unlock();
+        		throttled = false;
+        		if(throttledSides.decrementAndGet() == 0) {
+        			MemoryBudget.resumed();
+        		}
+        	}
+        	log.debug("[#{}] Queue drained, resume READ from {}. memory={}", uid, reader.host, totalMemory.get());
+        }
+        
+        /**
+         * Release all queued buffers (and those put later) back to pool, then wake up WRITE side.
+         */
+        void discard() {
+        	closed = true;
+        	drain();
+        	super.offer(DEAD_SIGNAL);
+        }
+        
+        private void drain() {
+        	PooledBuffer e;
+        	while((e = poll()) != null) {
+        		e.release();
+        	}
         }
         
         @Override
-        public void put(byte[] e) throws InterruptedException {
-            super.put(e);
-            if(e instanceof byte[]) {
-                byte[] bytes = (byte[])e;
-                addBytes(bytes.length);
+        public void put(PooledBuffer e) throws InterruptedException {
+        	if(closed) {
+        		e.release();
+        		return;
+        	}
+            // count before published: once queued, WRITE side may write and release it at any time
+            added(e);
+            try {
+                super.put(e);
+            } catch(InterruptedException ex) {
+                removed(e);
+                throw ex;
+            }
+            if(closed) {
+            	// discarded concurrently
+            	drain();
             }
         }
         
         @Override
-        public byte[] take() throws InterruptedException {
-        	byte[] e = super.take();
+        public PooledBuffer take() throws InterruptedException {
+        	PooledBuffer e = super.take();
         	if(e != null) {
-        		removeBytes(e.length);
+        		removed(e);
         	}
         	return e;
         }
         
         @Override
-        public byte[] poll() {
-        	byte[] e = super.poll();
+        public PooledBuffer poll() {
+        	PooledBuffer e = super.poll();
         	if(e != null) {
-        		removeBytes(e.length);
+        		removed(e);
         	}
         	return e;
         }
         
         @Override
-        public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
-            byte[] e = super.poll(timeout, unit);
+        public PooledBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+            PooledBuffer e = super.poll(timeout, unit);
             if(e != null) {
-            	removeBytes(e.length);
+            	removed(e);
             }
             return e;
         }
     }
     
     public TCPFwd(long uid, Socket clientSocket, Socket serverSocket, boolean clientPaused, boolean serverPaused) {
+        this(uid, clientSocket, serverSocket, clientPaused, serverPaused, null);
+    }
+    
+    /**
+     * @param serverEarlyData data already read from server socket (not flipped), or null. Written to client first.
+     */
+    public TCPFwd(long uid, Socket clientSocket, Socket serverSocket, boolean clientPaused, boolean serverPaused, PooledBuffer serverEarlyData) {
+        this(uid, clientSocket, serverSocket, clientPaused, serverPaused, serverEarlyData, BufferPool.BUF_SIZE);
+    }
+
+    /**
+     * @param bufferSize read buffer size, rounded to a size class of {@link BufferPool}.
+     */
+    public TCPFwd(long uid, Socket clientSocket, Socket serverSocket, boolean clientPaused, boolean serverPaused, PooledBuffer serverEarlyData, int bufferSize) {
+        this(uid, clientSocket, serverSocket, clientPaused, serverPaused, serverEarlyData, bufferOptions(bufferSize));
+    }
+
+    private static ForwardOptions bufferOptions(int bufferSize) {
+        ForwardOptions options = new ForwardOptions();
+        options.bufferSize = bufferSize;
+        return options;
+    }
+
+    /**
+     * @param options per connection options, see {@link ForwardOptions#of}. Socket options of its target are not applied here.
+     */
+    TCPFwd(long uid, Socket clientSocket, Socket serverSocket, boolean clientPaused, boolean serverPaused, PooledBuffer serverEarlyData, ForwardOptions options) {
         this.uid = uid;
-        this.qTo = new BytesQueue();
-        this.qBack = new BytesQueue();
+        this.onClose = options.onClose;
+        this.metrics = options.metrics;
+        this.flushPolicy = options.flushPolicy;
+        this.halfClose = options.halfClose;
+        this.shaper = options.shaper;
+        this.capture = options.capture;
+        this.bufferSize = options.bufferSize;
+        this.compressedSide = options.compressedSide;
+        this.compressionStats = options.compressionStats;
+        this.compressionLevel = options.compressionLevel;
+        this.qTo = new BytesQueue(uid, throttledSides);
+        this.qBack = new BytesQueue(uid, throttledSides);
         
         try {
+            if(compressedSide != null) {
+                // inflated data is written to the other side
+                Socket rawSocket = (compressedSide == TYPE.CLIENT ? serverSocket : clientSocket);
+                this.decompressor = new Decompressor(compressionStats, bufferSize, Config.directBuffers && rawSocket.getChannel() != null);
+            }
+            if(serverEarlyData != null) {
+                serverEarlyData.buffer().flip();
+                metrics.serverReadBytes.add(serverEarlyData.buffer().remaining());
+                if(compressedSide == TYPE.SERVER) {
+                    // read from agent-server leg, still compressed
+                    try {
+                        decompressor.decompress(serverEarlyData.buffer(), b -> put(qBack, TYPE.SERVER, b));
+                    } finally {
+                        serverEarlyData.release();
+                    }
+                } else {
+                    put(qBack, TYPE.SERVER, serverEarlyData);
+                }
+            }
+
             this.clientAddress = clientSocket.getRemoteSocketAddress().toString();
             this.serverAddress = serverSocket.getRemoteSocketAddress().toString();
             
+            if(compressedSide != null) {
+                this.compressor = new Compressor(compressionLevel, compressionStats,
+                        Config.directBuffers && (compressedSide == TYPE.CLIENT ? clientSocket : serverSocket).getChannel() != null);
+            }
+            metrics.opened(this);
             client = new Connection(uid, TYPE.CLIENT, clientAddress, clientSocket, qTo, qBack, clientPaused);
             server = new Connection(uid, TYPE.SERVER, serverAddress, serverSocket, qBack, qTo, serverPaused);
+            idleEntry = IdleReaper.watch(this, options.idleTimeoutMs);
+            if(closeTriggered.get()) {
+                // client side died while server side was being created
+                IdleReaper.cancel(idleEntry);
+                closeServer();
+            }
         } catch(Exception e) {
             log.error("Fail to start TCP Forwarding. client={} server={}", clientSocket, serverSocket, e);
+            if(closeTriggered.compareAndSet(false, true)) {
+                metrics.closed(this);
+                if(onClose != null) {
+                    onClose.run();
+                }
+            }
             close();
         }
     }
     
+    /**
+     * Hand over data read from side (flipped) to the WRITE side of the other, captured first if channel has a capture.
+     */
+    private void put(BytesQueue q, TYPE side, PooledBuffer data) throws InterruptedException {
+        if(capture != null) {
+            capture.tap(uid, side, data);
+        }
+        q.put(data);
+    }
+
     public void close() {
         closeClient();
         closeServer();
+        qTo.discard();
+        qBack.discard();
     }
 
     public void closeClient() {
@@ -172,11 +448,21 @@ public class TCPFwd {
             is = socket.getInputStream();
             os = socket.getOutputStream();
             
-            tIn = new InThread(""+uid+"-"+type+"(R)", host, is, qIn, paused);
-            tOut = new OutThread(""+uid+"-"+type+"(W)", host, os, qOut, paused);
+            tIn = new InThread(host, is, socket.getChannel(), qIn, paused);
+            tIn.readCounter = (type == TYPE.CLIENT ? metrics.clientReadBytes : metrics.serverReadBytes);
+            tIn.side = type;
+            tOut = new OutThread(host, os, socket.getChannel(), qOut, paused);
+            tOut.socket = socket;
+            if(shaper != null && shaper.side == type) {
+                tOut.shaper = shaper;
+            }
+            if(type == compressedSide) {
+                tIn.decompressor = decompressor;
+                tOut.compressor = compressor;
+            }
             
-            tIn.start();
-            tOut.start();
+            Threads.start(""+uid+"-"+type+"(R)", tIn);
+            Threads.start(""+uid+"-"+type+"(W)", tOut);
         }
         
         public long getAccumOutBytes() {
@@ -187,6 +473,10 @@ public class TCPFwd {
         	return tIn.getAccumBytes();
         }
 
+        long getLastActivityNs() {
+            return Math.max(tIn.lastReadTimeNs, tOut.lastWriteTimeNs);
+        }
+
         public void close() {
         	// 1) stop threads
             if(tIn != null) {
@@ -205,47 +495,95 @@ public class TCPFwd {
     }
     
     /**
-     * Read data from InputStream, and put to queue.
+     * Read data from socket channel (or InputStream when socket has no channel), and put to queue.
      */
-    class InThread extends Thread {
+    class InThread implements Runnable {
         private volatile boolean running = false;
 
         private String host = null;
         
         private BytesQueue q = null;
         private InputStream is = null;
+        private SocketChannel ch = null;
+        private Decompressor decompressor = null;
+        private LongAdder readCounter = null;	// of channel
+        private TYPE side = null;
         
         private final long minRespTimeMs = 100L;   // min response time = 100 ms
         
-        // statics
-        @Getter private long accumBytes = 0;
+        // statics, written by this thread only
+        @Getter private volatile long accumBytes = 0;
+        private volatile long lastReadTimeNs = 0;
+        private boolean endOfStream = false;
 
-        public InThread(String name, String host, InputStream is, BytesQueue q, boolean pause) {
-            super(name);
+        public InThread(String host, InputStream is, SocketChannel ch, BytesQueue q, boolean pause) {
             this.host = host;
             this.is = is;
+            this.ch = ch;
             this.q = q;
         }
         
+        /**
+         * Read into buffer. Return number of bytes read, or -1 if end of stream.
+         */
+        private int read(ByteBuffer buffer) throws IOException {
+            if(ch != null) {
+                return ch.read(buffer);
+            }
+            int len = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if(len > 0) {
+                buffer.position(buffer.position() + len);
+            }
+            return len;
+        }
+        
         public void run() {
-            byte[] buffer = new byte[40960];   // 40K
+            boolean direct = (ch != null && Config.directBuffers);
+            AdaptiveReadSize readSize = new AdaptiveReadSize(bufferSize);
             running = true;
             try {
                 while(running) {
-                    boolean sleepRequired = false;
-                    
-                    int len = is.read(buffer);
+                    // backpressure: stop reading while WRITE side cannot catch up
+                    q.awaitDrained(this);
+                    if(running == false) {
+                        break;
+                    }
+                    PooledBuffer pooled = BufferPool.acquire(readSize.next(), direct);
+                    ByteBuffer buffer = pooled.buffer();
+                    int len;
+                    long readStart = System.nanoTime();
+                    try {
+                        len = read(buffer);
+                    } catch(Exception e) {
+                        pooled.release();
+                        throw e;
+                    }
+                    lastReadTimeNs = System.nanoTime();
+                    readSize.record(buffer.capacity(), len, lastReadTimeNs - readStart);
                     if(len < 0) {
                         // connection closed!
+                        pooled.release();
                         log.error("[#{}] READ {} bytes from {}! END OF STREAM detected!", uid, len, host);
+                        endOfStream = true;
                         running = false;
                     } else {
-                        if(len > 0) {
-                            byte[] dataTrunk = new byte[len];
-                            System.arraycopy(buffer, 0, dataTrunk, 0, len);
-                            q.put(dataTrunk);
+                        if(len > 0 && decompressor != null) {
+                            buffer.flip();
+                            try {
+                                decompressor.decompress(buffer, b -> put(q, side, b));
+                            } finally {
+                                pooled.release();
+                            }
+                            accumBytes += len;
+                            readCounter.add(len);
+                        } else if(len > 0) {
+                            // hand over buffer to WRITE side, no copy
+                            buffer.flip();
+                            put(q, side, pooled);
                             accumBytes += len;
+                            readCounter.add(len);
                         } else {
+                            pooled.release();
                             log.warn("Read zero byte from stream!");
                         }
                     }
@@ -256,14 +594,21 @@ public class TCPFwd {
             	}
             } finally {
         		running = false;
+        		if(decompressor != null) {
+        			decompressor.end();
+        		}
         		try {
-        			q.put(new byte[0]);
+        			q.put(DEAD_SIGNAL);
         		} catch(Exception ex) {
         			log.error("Fail to put dead signal in queue...", ex);
         		}
             }
+            BufferPool.flushThreadCache();
             log.info("[#{}][THREAD END] Stop READ from: {}", uid, host);
-            closeDetected();
+            if(endOfStream == false || halfClose == false) {
+                closeDetected();
+            }
+            // otherwise WRITE side of the other socket shut down its output after queued data written
         }
         
         public void stopNow() {
@@ -272,9 +617,10 @@ public class TCPFwd {
     }
     
     /**
-     * Poll data from queue and write data to OutputStream
+     * Poll data from queue and write data to socket channel (or OutputStream when socket has no channel).<BR>
+     * Buffers queued at the moment are written together by a single gathering write.
      */
-    class OutThread extends Thread {
+    class OutThread implements Runnable {
         private volatile boolean running = false;
         private volatile boolean pause = false;
         private volatile boolean skipData = false;
@@ -283,85 +629,148 @@ public class TCPFwd {
 
         private BytesQueue q = null;
         private OutputStream os = null;
+        private SocketChannel ch = null;
+        private Socket socket = null;
+        private Compressor compressor = null;
+        private Shaper shaper = null;
+        private boolean endOfData = false;
         
-        private final int WRITE_BUF_SIZE = 40960;	// 40K
-        private int curBufSize = 0;
-        private byte[] writeBuffer = new byte[WRITE_BUF_SIZE];
+        private static final int MAX_GATHER = 16;
+        private final PooledBuffer[] batch = new PooledBuffer[MAX_GATHER];
+        private final ByteBuffer[] batchBuffers = new ByteBuffer[MAX_GATHER];
         
         /**
          * Time of latest writing to OUT stream.<BR>
          * = System.nanoTime()
          */
-        @Getter private long lastWriteTimeNs = 0;
+        @Getter private volatile long lastWriteTimeNs = 0;
         
         private static final long SLEEP_MS = 100L;   // min response time = 100 ms
         
-        // statics
-        @Getter private long accumBytes = 0;
-        @Getter private long accumSkipBytes = 0;	// bytes that thrown away
+        // statics, written by this thread only
+        @Getter private volatile long accumBytes = 0;
+        @Getter private volatile long accumSkipBytes = 0;	// bytes that thrown away
         
-        public OutThread(String name, String host, OutputStream os, BytesQueue q, boolean pause) {
-            super(name);
+        public OutThread(String host, OutputStream os, SocketChannel ch, BytesQueue q, boolean pause) {
             this.host = host;
             this.os = os;
+            this.ch = ch;
             this.q = q;
             this.pause = pause;
         }
         
+        private void write(int count, long bytes) throws IOException, InterruptedException {
+            if(compressor != null) {
+                lastWriteTimeNs = System.nanoTime();
+                // flush when nothing more to write, i.e. on idle
+                compressor.compress(batchBuffers, count, running == false || q.isEmpty(), this::writeFully);
+                accumBytes += bytes;
+                return;
+            }
+            if(shaper != null) {
+                shaper.pace(bytes, closeTriggered);
+            }
+            lastWriteTimeNs = System.nanoTime();
+            if(ch != null) {
+                long written = 0;
+                while(written < bytes) {
+                    written += ch.write(batchBuffers, 0, count);
+                }
+            } else {
+                for(int i=0; i < count; i++) {
+                    ByteBuffer buf = batchBuffers[i];
+                    os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                }
+            }
+            accumBytes += bytes;
+        }
+        
+        private void writeFully(ByteBuffer buf) throws IOException {
+            if(shaper != null) {
+                // rate of compressed bytes
+                try {
+                    shaper.pace(buf.remaining(), closeTriggered);
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for rate limit");
+                }
+            }
+            if(ch != null) {
+                while(buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            } else {
+                os.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                buf.position(buf.limit());
+            }
+        }
+        
         public void run() {
             running = true;
             try {
                 while(running) {
                     if(pause == false) {
-                    	byte[] dataTrunk = null;
-                    	if(curBufSize == 0) {
-                    		dataTrunk = q.take();
-                    	} else {
-                    		dataTrunk = q.poll();
-                    	}
-                        if(dataTrunk != null) {
-                            int dataSize = dataTrunk.length;
-                            if(dataSize == 0) {
-                            	// get dead signal!
-                            	running = false;
-                            	continue;
+                        // wait for first buffer, then gather more as flush policy allow
+                        PooledBuffer dataTrunk = q.take();
+                        long firstNs = (flushPolicy.waits() ? System.nanoTime() : 0L);
+                        int count = 0;
+                        long bytes = 0;
+                        FlushPolicy.Reason reason = FlushPolicy.Reason.EMPTY;
+                        while(dataTrunk != null) {
+                            if(dataTrunk == DEAD_SIGNAL) {
+                                // get dead signal!
+                                running = false;
+                                endOfData = true;
+                                reason = FlushPolicy.Reason.CLOSE;
+                                break;
                             }
-                            if(skipData == false) {
-                            	if((WRITE_BUF_SIZE - curBufSize) > dataSize) {
-                            		System.arraycopy(dataTrunk, 0, writeBuffer, curBufSize, dataSize);
-                            		curBufSize += dataSize;
-                            	} else {
-                            		if(curBufSize > 0 ) {
-	                            		lastWriteTimeNs = System.nanoTime();
-	                            		os.write(writeBuffer, 0 , curBufSize);
-	                                    accumBytes += curBufSize;
-	                            		curBufSize = 0;
-                            		}
-                            		if(dataSize >= WRITE_BUF_SIZE) {
-	                            		lastWriteTimeNs = System.nanoTime();
-	                            		os.write(dataTrunk);
-	                                    accumBytes += dataSize;
-                            		} else {
-                            			System.arraycopy(dataTrunk, 0, writeBuffer, curBufSize, dataSize);
-                            			curBufSize += dataSize;
-                            		}
-                            	}
-                            } else {
-                                accumSkipBytes += dataSize;
+                            batch[count] = dataTrunk;
+                            batchBuffers[count] = dataTrunk.buffer();
+                            count++;
+                            bytes += dataTrunk.buffer().remaining();
+                            if(count >= MAX_GATHER) {
+                                reason = FlushPolicy.Reason.FULL;
+                                break;
+                            }
+                            if(flushPolicy.isFull(bytes)) {
+                                reason = FlushPolicy.Reason.SIZE;
+                                break;
+                            }
+                            dataTrunk = q.poll();
+                            if(dataTrunk == null && flushPolicy.waits()) {
+                                long waitNs = flushPolicy.remainingNs(firstNs, System.nanoTime());
+                                if(waitNs > 0) {
+                                    dataTrunk = q.poll(waitNs, TimeUnit.NANOSECONDS);
+                                }
+                                if(dataTrunk == null) {
+                                    reason = FlushPolicy.Reason.TIME;
+                                }
+                            }
+                        }
+                        try {
+                            if(count > 0) {
+                                if(skipData == false) {
+                                    write(count, bytes);
+                                    metrics.flushed(reason, bytes);
+                                } else {
+                                    accumSkipBytes += bytes;
+                                    metrics.skippedBytes.add(bytes);
+                                }
+                            }
+                            if(endOfData && compressor != null && skipData == false) {
+                                // previous batch may be compressed without flush (queue not empty yet), before end() and shutdown
+                                compressor.flush(this::writeFully);
+                            }
+                        } finally {
+                            for(int i=0; i < count; i++) {
+                                batch[i].release();
+                                batch[i] = null;
+                                batchBuffers[i] = null;
                             }
-                        } else {
-                        	// nothing polled
-                        	if(curBufSize > 0) {
-                        		lastWriteTimeNs = System.nanoTime();
-                        		os.write(writeBuffer, 0, curBufSize);
-                        		accumBytes += curBufSize;
-                        		curBufSize = 0;
-                        	}
                         }
                     } else {
                     	// paused
                     	if(SLEEP_MS > 0) {
-                    		sleep(SLEEP_MS);
+                    		Thread.sleep(SLEEP_MS);
                     	}
                     }
                 }
@@ -370,7 +779,22 @@ public class TCPFwd {
             		log.error("[#{}]Exception in WRITE! host={}", uid, host, e);
             	}
             }
+            if(compressor != null) {
+                compressor.end();
+            }
+            BufferPool.flushThreadCache();
             log.info("[#{}][THREAD END] Stop WRITE to: {}", uid, host);
+            if(endOfData && halfClose && closeTriggered.get() == false) {
+                // all data of the direction written, pass end of stream on
+                try {
+                    socket.shutdownOutput();
+                    log.info("[#{}] Half close: output to {} shut down.", uid, host);
+                    directionDone();
+                    return;
+                } catch(Exception e) {
+                    log.error("[#{}] Fail to shut down output to {}", uid, host, e);
+                }
+            }
             closeDetected();
         }
         
@@ -386,4 +810,62 @@ public class TCPFwd {
             running = false;
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public long getUid() {
+        return uid;
+    }
+
+    @Override
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    @Override
+    public String getServerAddress() {
+        return serverAddress;
+    }
+
+    @Override
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    @Override
+    public long getClientReadBytes() {
+        Connection c = client;
+        return (c != null ? c.getAccumInBytes() : 0);
+    }
+
+    @Override
+    public long getServerReadBytes() {
+        Connection s = server;
+        return (s != null ? s.getAccumInBytes() : 0);
+    }
+
+    @Override
+    public long getQueueBytes() {
+        return qTo.getBytes() + qBack.getBytes();
+    }
+
+    @Override
+    public long getLastActivityNs() {
+        long last = startTimeNs;
+        Connection c = client;
+        Connection s = server;
+        if(c != null) {
+            last = Math.max(last, c.getLastActivityNs());
+        }
+        if(s != null) {
+            last = Math.max(last, s.getLastActivityNs());
+        }
+        return last;
+    }
+
+    @Override
+    public void closeIdle(long idleMs) {
+        log.info("[#{}] No data for {} ms, close idle connection.", uid, idleMs);
+        metrics.idleTimeouts.increment();
+        closeDetected();
+    }
+}
@@ -3,22 +3,42 @@ package com.tssaumi.tcpredirect;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.FileInputStream;
-import java.util.Map;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.StringTokenizer;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static com.tssaumi.tcpredirect.Constants.CLIENT_PROP_FILE;
 
 @Slf4j
 public class TCPRedirect extends TCPRedirectServer {
 
+    // set by loadProperties() called from super constructor, so no initializer here
+    protected String serverHost;
+    protected int serverPort;
+
+    protected MuxClient muxClient = null;
+
     public TCPRedirect(Properties props) throws Exception {
         super(props);
     }
 
+    protected TCPRedirect(Properties props, boolean loadConfig) throws Exception {
+        super(props, loadConfig);
+    }
+
+    @Override
+    protected TCPRedirectServer load(Properties props) throws Exception {
+        return new TCPRedirect(props, false);
+    }
+
     protected void loadProperties() throws Exception {
+        this.serverHost = props.getProperty("redirect.server.host");
+        if(serverHost == null || serverHost.trim().isEmpty()) {
+            throw new RedirectException("Missing property \"redirect.server.host\"!");
+        }
+        this.serverHost = serverHost.trim();
+        this.serverPort = getIntProp(props, "redirect.server.port");
+
         Set<String> names = props.stringPropertyNames();
         for (String name : names) {
             if (name.matches("channel\\.[0-9A-Z_\\.-]+")) {
@@ -28,26 +48,94 @@ public class TCPRedirect extends TCPRedirectServer {
                     throw new Exception("Invalid target! "+channel+"="+hostPort);
                 }
 
-                int index = hostPort.indexOf(":");
+                // [bind address:]local port
+                hostPort = hostPort.trim();
+                String host = null;
+                int index = hostPort.lastIndexOf(":");
                 if(index >= 0) {
-                    String host = hostPort.substring(0,index);
-                    int port = Integer.parseInt(hostPort.substring(index+1));
-                    RedirectTarget target = new RedirectTarget();
-                    target.channel = channel;
-                    target.host = host;
-                    target.port = port;
-                    channelMap.put(channel, target);
+                    host = hostPort.substring(0,index);
                 }
+                int port = Integer.parseInt(hostPort.substring(index+1));
+                RedirectTarget target = new RedirectTarget();
+                target.channel = channel;
+                target.host = host;
+                target.port = port;
+                loadTargetOptions(target);
+                // listener of the channel restarted on reload when redirect server changed
+                target.options.put("redirect.server", serverHost + ":" + serverPort);
+                if(target.compression != Capabilities.COMPRESSION_NONE && target.handshakeVersion == HandShakeFrame.VERSION_1) {
+                    throw new RedirectException("Compression of channel "+channel+" requires handshake.version=2");
+                }
+                addTarget(target);
             }
         }
     }
 
     public void start() {
+        if(Config.muxEnabled) {
+            muxClient = new MuxClient(serverHost, serverPort, Config.muxTunnels);
+            log.info("Multiplexed tunnel enabled. tunnels={}", Config.muxTunnels);
+        }
+
+        instances.add(this);
+        MetricsServer.start();
+
         // listen to all port
         for(RedirectTarget target : channelMap.values()) {
-            ClientPortListener listener = new ClientPortListener(target.channel, target.host, target.port);
-            listener.start();
-            log.info("Channel {} started. host={} port={}", target.channel, target.host, target.port);
+            startListener(target);
+        }
+    }
+
+    private void startListener(RedirectTarget target) {
+        ClientPortListener listener = new ClientPortListener(target, serverHost, serverPort, muxClient);
+        listeners.add(listener);
+        listener.start();
+        log.info("Channel {} started. host={} port={}", target.channel, target.host, target.port);
+    }
+
+    /**
+     * Pools of agent belong to listeners, no health check.
+     */
+    @Override
+    protected int getDefaultMaxPerSource() {
+        return Config.AGENT_MAX_PER_SOURCE;
+    }
+
+    @Override
+    protected void startTarget(RedirectTarget target) {
+    }
+
+    @Override
+    protected void stopTarget(RedirectTarget target) {
+        target.stopCapture();
+        log.info("Channel {} stopped, connections already forwarding are left to drain. {}", target.channel, target);
+    }
+
+    @Override
+    protected void checkReload(TCPRedirectServer loaded) {
+        TCPRedirect agent = (TCPRedirect)loaded;
+        boolean serverChanged = serverHost.equals(agent.serverHost) == false || serverPort != agent.serverPort;
+        if(serverChanged && muxClient != null) {
+            log.warn("Change of redirect server is ignored by multiplexed tunnels until restart. running={}:{}", serverHost, serverPort);
+        }
+        this.serverHost = agent.serverHost;
+        this.serverPort = agent.serverPort;
+    }
+
+    /**
+     * Stop listening to ports of removed channels first, a changed channel may listen to the same port again.
+     */
+    @Override
+    protected void channelsChanged(List<RedirectTarget> added, List<RedirectTarget> removed) {
+        for(PortListener pl : listeners) {
+            ClientPortListener listener = (ClientPortListener)pl;
+            if(removed.contains(listener.getTarget())) {
+                listener.shutdown();
+                listeners.remove(listener);
+            }
+        }
+        for(RedirectTarget target : added) {
+            startListener(target);
         }
     }
 
@@ -61,6 +149,9 @@ public class TCPRedirect extends TCPRedirectServer {
 
             TCPRedirect client = new TCPRedirect(props);
             client.start();
+            if(Config.configReload) {
+                ConfigReloader.start(client, CLIENT_PROP_FILE);
+            }
         } catch(Exception e) {
             log.error("Exception!!! Application terminated.", e);
         }
@@ -10,6 +10,7 @@ import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lombok.Getter;
@@ -60,14 +61,67 @@ public class TCPRedirectServer {
 
 	protected Properties props = null;
 	
-	protected static final Map<String, RedirectTarget> channelMap = new ConcurrentHashMap<>();
+	/**
+	 * Channels of this instance, so several servers and agents can run in one JVM (e.g. load test).<BR>
+	 * Replaced as a whole by {@link #reload(Properties)}.
+	 */
+	protected volatile Map<String, RedirectTarget> channelMap = new ConcurrentHashMap<>();
 	
 	private static final int MAX_HAND_SHAKE_IDLE_MS = 5000;
 
-	public static RedirectTarget getTarget(String channelId) {
+	/**
+	 * Started servers and agents, for metrics.
+	 */
+	protected static final List<TCPRedirectServer> instances = new CopyOnWriteArrayList<>();
+
+	protected final List<PortListener> listeners = new CopyOnWriteArrayList<>();
+
+	public RedirectTarget getTarget(String channelId) {
 		return channelMap.get(channelId);
 	}
 
+	/**
+	 * Snapshot of channelMap for lookup by raw bytes of hand shake message.
+	 */
+	private volatile RedirectTarget[] targetTable = new RedirectTarget[0];
+
+	/**
+	 * Find target by channel ID bytes, no String created. Channels are few, linear scan is enough.
+	 */
+	public RedirectTarget getTarget(byte[] buf, int off, int len) {
+		for(RedirectTarget target : targetTable) {
+			if(HandShakeFrame.equals(target.channelBytes, buf, off, len)) {
+				return target;
+			}
+		}
+		return null;
+	}
+
+	public RedirectTarget[] getTargets() {
+		return targetTable;
+	}
+
+	/**
+	 * Channels of all started servers and agents, for metrics.
+	 */
+	public static List<RedirectTarget> getAllTargets() {
+		List<RedirectTarget> list = new ArrayList<>();
+		for(TCPRedirectServer instance : instances) {
+			list.addAll(Arrays.asList(instance.getTargets()));
+		}
+		return list;
+	}
+
+	/**
+	 * Target whose options are being loaded, options read are recorded in it.
+	 */
+	private RedirectTarget loading = null;
+
+	protected void addTarget(RedirectTarget target) {
+		channelMap.put(target.channel, target);
+		targetTable = channelMap.values().toArray(new RedirectTarget[0]);
+	}
+
 	protected boolean getBoolProp(Properties props, String name, boolean defVal) throws Exception {
 		String str = props.getProperty(name);
 		if(str == null) {
@@ -115,6 +169,175 @@ public class TCPRedirectServer {
 		return Integer.parseInt(str);
 	}
 	
+	/**
+	 * Default of handshake.max.per.source: unlimited on the server, its connections all come from a few agents
+	 * and each hand shake includes connect to the backend.
+	 */
+	protected int getDefaultMaxPerSource() {
+		return 0;
+	}
+
+	/**
+	 * Load settings shared by server and agent into {@link Config}.
+	 */
+	protected void loadConfig() throws Exception {
+		String engine = props.getProperty("fwd.engine");
+		if(engine != null && engine.trim().length() > 0) {
+			try {
+				Config.engine = Config.Engine.valueOf(engine.trim().toUpperCase());
+			} catch(IllegalArgumentException e) {
+				throw new RedirectException("Invalid forwarding engine! fwd.engine="+engine);
+			}
+		}
+		Config.nioThreads = getIntProp(props, "nio.threads", Config.nioThreads);
+		Config.directBuffers = getBoolProp(props, "direct.buffers", Config.directBuffers);
+		Config.bufferThreadCache = getIntProp(props, "buffer.thread.cache", Config.bufferThreadCache);
+		Config.bufferLeakDetection = getBoolProp(props, "buffer.leak.detection", Config.bufferLeakDetection);
+		Config.bufferAdaptive = getBoolProp(props, "buffer.adaptive", Config.bufferAdaptive);
+		Config.bufferIdleMs = getLongProp(props, "buffer.idle.ms", Config.bufferIdleMs);
+		Config.queueMaxBytes = getLongProp(props, "queue.max.bytes", Config.queueMaxBytes);
+		Config.memoryMaxBytes = getLongProp(props, "memory.max.bytes", Config.memoryMaxBytes);
+		Config.muxEnabled = getBoolProp(props, "mux.enabled", Config.muxEnabled);
+		Config.muxTunnels = getIntProp(props, "mux.tunnels", Config.muxTunnels);
+		Config.muxWindowBytes = getIntProp(props, "mux.window.bytes", Config.muxWindowBytes);
+		Config.listenBacklog = getIntProp(props, "listen.backlog", Config.listenBacklog);
+		Config.acceptThreads = Math.max(1, getIntProp(props, "accept.threads", Config.acceptThreads));
+		Config.acceptReusePort = getBoolProp(props, "accept.reuseport", Config.acceptReusePort);
+		Config.listenerStatsIntervalMs = getLongProp(props, "listener.stats.interval.ms", Config.listenerStatsIntervalMs);
+		Config.handshakeMaxInFlight = Math.max(1, getIntProp(props, "handshake.max.inflight", Config.handshakeMaxInFlight));
+		Config.handshakeMaxPerSource = getIntProp(props, "handshake.max.per.source", getDefaultMaxPerSource());
+		Config.handshakeTimeoutMs = Math.max(1, getIntProp(props, "handshake.timeout.ms", Config.handshakeTimeoutMs));
+		Config.metricsPort = getIntProp(props, "metrics.port", Config.metricsPort);
+		String metricsBindAddr = props.getProperty("metrics.bind.addr");
+		if(metricsBindAddr != null && metricsBindAddr.trim().length() > 0) {
+			Config.metricsBindAddr = metricsBindAddr.trim();
+		}
+		Config.configReload = getBoolProp(props, "config.reload", Config.configReload);
+		Config.linkRate = getLongProp(props, "link.rate", Config.linkRate);
+		Config.closerThreads = Math.max(1, getIntProp(props, "closer.threads", Config.closerThreads));
+		Config.closerQueueSize = Math.max(1, getIntProp(props, "closer.queue.size", Config.closerQueueSize));
+		Config.closerLingerThreads = Math.max(1, getIntProp(props, "closer.linger.threads", Config.closerLingerThreads));
+		Config.virtualThreads = getBoolProp(props, "virtual.threads", Config.virtualThreads);
+		if(Config.virtualThreads && Threads.isVirtualThreadSupported() == false) {
+			log.warn("Virtual thread is not supported by this JVM ({}), use platform thread.", System.getProperty("java.version"));
+		}
+		log.info("Forwarding engine: {} virtual.threads={}", Config.engine, Config.virtualThreads);
+	}
+
+	/**
+	 * Channel specific property "name.CHANNEL", or "name" when not specified for the channel.
+	 */
+	protected String getChannelProp(String channel, String name) {
+		String str = props.getProperty(name + "." + channel);
+		if(str == null) {
+			str = props.getProperty(name);
+		}
+		if(loading != null && channel.equals(loading.channel)) {
+			loading.options.put(name, str);
+		}
+		return str;
+	}
+
+	protected int getChannelIntProp(String channel, String name, int defVal) {
+		String str = getChannelProp(channel, name);
+		return str == null ? defVal : Integer.parseInt(str.trim());
+	}
+
+	protected long getChannelLongProp(String channel, String name, long defVal) {
+		String str = getChannelProp(channel, name);
+		return str == null ? defVal : Long.parseLong(str.trim());
+	}
+
+	protected boolean getChannelBoolProp(String channel, String name, boolean defVal) throws Exception {
+		Properties p = new Properties();
+		String str = getChannelProp(channel, name);
+		if(str != null) {
+			p.setProperty(name, str.trim());
+		}
+		return getBoolProp(p, name, defVal);
+	}
+
+	/**
+	 * Load per channel options of a target.
+	 */
+	protected void loadTargetOptions(RedirectTarget target) throws Exception {
+		loading = target;
+		try {
+			loadChannelOptions(target);
+		} finally {
+			loading = null;
+		}
+		target.encodeHandShakeFrames();
+	}
+
+	private void loadChannelOptions(RedirectTarget target) throws Exception {
+		target.handshakePipelined = getChannelBoolProp(target.channel, "handshake.pipelined", target.handshakePipelined);
+		target.poolMinIdle = getChannelIntProp(target.channel, "pool.min.idle", target.poolMinIdle);
+		target.poolMaxIdle = Math.max(target.poolMinIdle, getChannelIntProp(target.channel, "pool.max.idle", target.poolMinIdle));
+		target.poolMaxAgeMs = getChannelLongProp(target.channel, "pool.max.age.ms", target.poolMaxAgeMs);
+		target.handshakeVersion = getChannelIntProp(target.channel, "handshake.version", target.handshakeVersion);
+		if(target.handshakeVersion != HandShakeFrame.VERSION_1 && target.handshakeVersion != HandShakeFrame.VERSION_2) {
+			throw new RedirectException("Invalid handshake.version of channel "+target.channel+": "+target.handshakeVersion);
+		}
+		target.bufferSize = getChannelIntProp(target.channel, "buffer.size", target.bufferSize);
+		target.keepAlive = getChannelBoolProp(target.channel, "tcp.keepalive", target.keepAlive);
+		String compression = getChannelProp(target.channel, "compression");
+		if(compression != null) {
+			compression = compression.trim();
+			if("none".equalsIgnoreCase(compression)) {
+				target.compression = Capabilities.COMPRESSION_NONE;
+			} else if("deflate".equalsIgnoreCase(compression)) {
+				target.compression = Capabilities.COMPRESSION_DEFLATE;
+			} else {
+				throw new RedirectException("Invalid compression of channel "+target.channel+": "+compression);
+			}
+		}
+		target.compressionLevel = getChannelIntProp(target.channel, "compression.level", target.compressionLevel);
+		String lbPolicy = getChannelProp(target.channel, "lb.policy");
+		if(lbPolicy != null) {
+			try {
+				target.lbPolicy = LoadBalancer.Policy.valueOf(lbPolicy.trim().toUpperCase().replace('.', '_'));
+			} catch(IllegalArgumentException e) {
+				throw new RedirectException("Invalid lb.policy of channel "+target.channel+": "+lbPolicy);
+			}
+		}
+		target.healthCheckIntervalMs = getChannelLongProp(target.channel, "health.check.interval.ms", target.healthCheckIntervalMs);
+		target.ejectMs = getChannelLongProp(target.channel, "eject.ms", target.ejectMs);
+		target.ejectFailures = Math.max(1, getChannelIntProp(target.channel, "eject.failures", target.ejectFailures));
+		target.connectTimeoutMs = getChannelIntProp(target.channel, "connect.timeout.ms", target.connectTimeoutMs);
+		target.connectStaggerMs = getChannelLongProp(target.channel, "connect.stagger.ms", target.connectStaggerMs);
+		target.dnsTtlMs = getChannelLongProp(target.channel, "dns.ttl.ms", target.dnsTtlMs);
+		String flushPolicy = getChannelProp(target.channel, "flush.policy");
+		FlushPolicy.Mode flushMode = target.flushPolicy.mode;
+		if(flushPolicy != null) {
+			try {
+				flushMode = FlushPolicy.Mode.valueOf(flushPolicy.trim().toUpperCase());
+			} catch(IllegalArgumentException e) {
+				throw new RedirectException("Invalid flush.policy of channel "+target.channel+": "+flushPolicy);
+			}
+		}
+		target.flushPolicy = new FlushPolicy(flushMode,
+				getChannelIntProp(target.channel, "flush.size", target.flushPolicy.size),
+				getChannelLongProp(target.channel, "flush.delay.us", target.flushPolicy.delayNs / 1000L));
+		target.tcpNoDelay = getChannelBoolProp(target.channel, "tcp.nodelay", flushMode != FlushPolicy.Mode.SIZE);
+		target.sendBufferSize = getChannelIntProp(target.channel, "so.sndbuf", target.sendBufferSize);
+		target.receiveBufferSize = getChannelIntProp(target.channel, "so.rcvbuf", target.receiveBufferSize);
+		target.soLinger = getChannelIntProp(target.channel, "so.linger", target.soLinger);
+		target.rateLimit = getChannelLongProp(target.channel, "rate.limit", target.rateLimit);
+		target.connRateLimit = getChannelLongProp(target.channel, "conn.rate.limit", target.connRateLimit);
+		target.rateWeight = Math.max(1, getChannelIntProp(target.channel, "rate.weight", target.rateWeight));
+		target.rateBurst = Math.max(1, getChannelLongProp(target.channel, "rate.burst", target.rateBurst));
+		target.idleTimeoutMs = getChannelLongProp(target.channel, "idle.timeout.ms", target.idleTimeoutMs);
+		target.halfClose = getChannelBoolProp(target.channel, "half.close", target.halfClose);
+		String captureFile = getChannelProp(target.channel, "capture.file");
+		if(captureFile != null && captureFile.trim().length() > 0) {
+			target.captureFile = captureFile.trim();
+		}
+		target.captureSize = Math.min(Integer.MAX_VALUE - PayloadCapture.HEADER_SIZE,
+				Math.max(PayloadCapture.MIN_SIZE, getChannelLongProp(target.channel, "capture.size", target.captureSize)));
+		target.captureQueueBytes = getChannelLongProp(target.channel, "capture.queue.bytes", target.captureQueueBytes);
+	}
+
 	protected void loadProperties() throws Exception {
 		this.localPort = getIntProp(props, "local.port");
 		this.bindAddr = props.getProperty("bind.addr");
@@ -136,10 +359,12 @@ public class TCPRedirectServer {
 				}
 
 				try {
+					// CHANNEL,host,port[,weight]
 					StringTokenizer st = new StringTokenizer(prop, ",");
 					String channel = st.nextToken().trim().toUpperCase();
 					String host = st.nextToken().trim();
-					int port = Integer.parseInt(st.nextToken());
+					int port = Integer.parseInt(st.nextToken().trim());
+					int weight = (st.hasMoreTokens() ? Integer.parseInt(st.nextToken().trim()) : 1);
 
 					if(channel.isEmpty()) {
 						throw new RedirectException("Empty channel ID in target! property: "+name);
@@ -151,15 +376,25 @@ public class TCPRedirectServer {
 						throw new RedirectException("Invalid port! property: "+name);
 					}
 
-					if(channelMap.get(channel) != null) {
-						throw new RedirectException("Channel ID ["+channel+"] is duplicated! property: "+name);
+					if(weight <= 0) {
+						throw new RedirectException("Invalid weight! property: "+name);
 					}
 
-					RedirectTarget target = new RedirectTarget();
+					RedirectTarget target = channelMap.get(channel);
+					if(target != null) {
+						// same channel again: one more backend
+						target.backends.add(new Backend(target, host, port, weight));
+						log.info("Added backend {} to target: {}", target.backends.get(target.backends.size() - 1), target);
+						continue;
+					}
+
+					target = new RedirectTarget();
 					target.channel = channel;
 					target.host = host;
 					target.port = port;
-					channelMap.put(channel, target);
+					target.backends.add(new Backend(target, host, port, weight));
+					loadTargetOptions(target);
+					addTarget(target);
 					log.info("Added new target: {}", target);
 				} catch(RedirectException e) {
 					throw e;
@@ -171,14 +406,147 @@ public class TCPRedirectServer {
 	}
 
 	public TCPRedirectServer(Properties props) throws Exception {
+		this(props, true);
+	}
+
+	/**
+	 * @param loadConfig false to load channels only, global settings in {@link Config} are not changed (reload).
+	 */
+	protected TCPRedirectServer(Properties props, boolean loadConfig) throws Exception {
 		this.props = props;
+		if(loadConfig) {
+			loadConfig();
+		}
 		loadProperties();
 	}
 
+	/**
+	 * Load channels of new properties into an instance not started, see {@link #reload(Properties)}.
+	 */
+	protected TCPRedirectServer load(Properties props) throws Exception {
+		return new TCPRedirectServer(props, false);
+	}
+
+	/**
+	 * Apply channels of new properties while running:
+	 * <UL>
+	 * <LI>Channels with same backends and options are kept as is.</LI>
+	 * <LI>Added or changed channels are started, the routing table is swapped at once, so a hand shake see
+	 *     either the old or the new channels.</LI>
+	 * <LI>Removed or changed channels stop accepting, their connections already forwarding are left to drain.</LI>
+	 * </UL>
+	 * Global settings (forwarding engine, thread counts, ports of this instance) are not reloaded, need restart.
+	 * @throws Exception invalid properties, running channels are not changed.
+	 */
+	public synchronized void reload(Properties props) throws Exception {
+		TCPRedirectServer loaded = load(props);
+		checkReload(loaded);
+
+		Map<String, RedirectTarget> next = new ConcurrentHashMap<>();
+		List<RedirectTarget> added = new ArrayList<>();
+		List<RedirectTarget> removed = new ArrayList<>();
+		for(RedirectTarget target : loaded.channelMap.values()) {
+			RedirectTarget old = channelMap.get(target.channel);
+			if(old != null && old.sameConfig(target)) {
+				next.put(old.channel, old);
+			} else {
+				next.put(target.channel, target);
+				added.add(target);
+				if(old != null) {
+					removed.add(old);
+				}
+			}
+		}
+		for(RedirectTarget old : channelMap.values()) {
+			if(loaded.channelMap.containsKey(old.channel) == false) {
+				removed.add(old);
+			}
+		}
+		if(added.isEmpty() && removed.isEmpty()) {
+			log.info("Configuration reloaded, no channel changed.");
+			return;
+		}
+
+		for(RedirectTarget target : added) {
+			startTarget(target);
+		}
+		this.props = props;
+		this.channelMap = next;
+		this.targetTable = next.values().toArray(new RedirectTarget[0]);
+		channelsChanged(added, removed);
+		for(RedirectTarget target : removed) {
+			stopTarget(target);
+		}
+		log.info("Configuration reloaded. started={} stopped={} channels={}", added, removed, next.size());
+	}
+
+	/**
+	 * Warn about settings of a reload which need restart.
+	 */
+	protected void checkReload(TCPRedirectServer loaded) {
+		if(localPort != loaded.localPort || Objects.equals(bindAddr, loaded.bindAddr) == false) {
+			log.warn("Change of local.port / bind.addr is ignored until restart. running={}:{}", bindAddr, localPort);
+		}
+	}
+
+	/**
+	 * Called by {@link #reload(Properties)} once routing table swapped, before removed channels are stopped.
+	 */
+	protected void channelsChanged(List<RedirectTarget> added, List<RedirectTarget> removed) {
+	}
+
+	/**
+	 * Start background work of a channel: connection pools and health check of backends.
+	 */
+	protected void startTarget(RedirectTarget target) {
+		for(Backend backend : target.backends) {
+			if(target.poolMinIdle > 0) {
+				backend.pool = new TargetConnectionPool(target, backend);
+				backend.pool.start();
+			}
+		}
+		if(target.healthCheckIntervalMs > 0) {
+			LoadBalancer.startHealthCheck(target);
+		}
+	}
+
+	/**
+	 * Stop background work of a channel removed by reload. Connections already forwarding are not affected.
+	 */
+	protected void stopTarget(RedirectTarget target) {
+		int active = 0;
+		for(Backend backend : target.backends) {
+			if(backend.pool != null) {
+				backend.pool.stop();
+			}
+			active += backend.getActiveConnections();
+		}
+		LoadBalancer.stopHealthCheck(target);
+		target.stopCapture();
+		log.info("Channel {} stopped, {} connections left to drain. {}", target.channel, active, target);
+	}
+
 	public void start() {
-		PortListener pl = new PortListener(bindAddr, localPort);
+		for(RedirectTarget target : channelMap.values()) {
+			startTarget(target);
+		}
+		instances.add(this);
+		MetricsServer.start();
+		PortListener pl = new PortListener(this, bindAddr, localPort);
+		listeners.add(pl);
 		pl.start();
 	}
+
+	/**
+	 * Stop listening, connections already forwarding are not affected.
+	 */
+	public void stop() {
+		for(PortListener pl : listeners) {
+			pl.shutdown();
+		}
+		listeners.clear();
+		instances.remove(this);
+	}
 	
 	public static void main(String argv[]) throws Exception {
 		try {
@@ -190,6 +558,9 @@ public class TCPRedirectServer {
 			
 			TCPRedirectServer server = new TCPRedirectServer(props);
 			server.start();
+			if(Config.configReload) {
+				ConfigReloader.start(server, SERVER_PROP_FILE);
+			}
 		} catch(Exception e) {
 			log.error("Exception!!! Application terminated.", e);
 		}
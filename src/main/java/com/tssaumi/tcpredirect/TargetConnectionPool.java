@@ -0,0 +1,43 @@
+package com.tssaumi.tcpredirect;
+
+/**
+ * Server side: idle sockets connected to a backend of a channel.<BR>
+ * Remove DNS lookup and TCP connect to the target from the critical path of hand shaking.<BR>
+ * <BR>
+ * Note: keep {@link RedirectTarget#poolMaxAgeMs} below the idle (or login) timeout of the target,
+ * greeting sent by target on idle sockets is kept and forwarded to client first.
+ */
+public class TargetConnectionPool extends IdleSocketPool {
+
+    private final Backend backend;
+
+    public TargetConnectionPool(RedirectTarget target, Backend backend) {
+        super(target);
+        this.backend = backend;
+    }
+
+    /**
+     * Ejected backend is not refilled.
+     */
+    @Override
+    protected boolean isEnabled() {
+        return backend.isAvailable();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " backend " + backend;
+    }
+
+    @Override
+    protected ReadySocket connect() throws Exception {
+        try {
+            ReadySocket ready = new ReadySocket(backend.connect());
+            backend.succeeded();
+            return ready;
+        } catch(Exception e) {
+            backend.failed(e);
+            throw e;
+        }
+    }
+}
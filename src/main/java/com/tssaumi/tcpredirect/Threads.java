@@ -0,0 +1,47 @@
+package com.tssaumi.tcpredirect;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Create threads for forwarding, hand shaking and socket closing.<BR>
+ * When {@link Config#virtualThreads} is enabled and the JVM supports it (Java 21+),
+ * threads are virtual threads, otherwise platform threads.
+ */
+@Slf4j
+public class Threads {
+
+    private static final ThreadFactory VIRTUAL_FACTORY = virtualThreadFactory();
+
+    /**
+     * Thread.ofVirtual().factory() looked up by reflection, so it still runs on JVM without virtual thread.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Create and start a new thread.
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread t = null;
+        if(Config.virtualThreads && VIRTUAL_FACTORY != null) {
+            t = VIRTUAL_FACTORY.newThread(task);
+            t.setName(name);
+        } else {
+            t = new Thread(task, name);
+        }
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,68 @@
+package com.tssaumi.tcpredirect;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rate limit in bytes per second with a burst, see {@link Shaper}.<BR>
+ * Bytes are taken at once and the bucket may go into debt: the caller waits until the debt is paid back,
+ * so a large write is never split and the average rate still holds.
+ */
+public class TokenBucket {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long rate;
+    private final long burst;
+
+    // guarded by lock
+    private double tokens;
+    private long lastNs = System.nanoTime();
+
+    /**
+     * @param rate bytes per second, > 0.
+     * @param burst bytes that can be taken at once without waiting after idle.
+     */
+    public TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Change rate, e.g. share of the link given by {@link LinkScheduler}. Tokens already earned are kept.
+     */
+    void setRate(long rate) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.rate = Math.max(1, rate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take bytes about to be written. Return nanoseconds to wait before writing them, 0 if within rate.
+     */
+    long take(long bytes, long now) {
+        lock.lock();
+        try {
+            refill(now);
+            tokens -= bytes;
+            return (tokens >= 0 ? 0L : (long)(-tokens * 1e9 / rate));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastNs;
+        if(elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * (rate / 1e9));
+            lastNs = now;
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package com.tssaumi.tcpredirect;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.text.DecimalFormat;
 
 public class Util {
@@ -16,4 +20,50 @@ public class Util {
         sb.append("us");
         return sb.toString();
     }
+
+    /**
+     * Read bytes already arrived on an idle socket without blocking, e.g. greeting of a server-speaks-first protocol.<BR>
+     * Socket must be created from channel and not used by other thread.
+     * @param buf buffer to append to, or null to acquire one from {@link BufferPool} when data arrived.
+     * @return buffer with data appended (not flipped), or null if nothing arrived.
+     * @throws EOFException if peer closed the socket.
+     */
+    public static PooledBuffer readAvailable(Socket socket, PooledBuffer buf) throws IOException {
+        return readAvailable(socket, buf, true);
+    }
+
+    /**
+     * @param failOnEof false to return data arrived before end of stream, which is read again by the next read.
+     */
+    public static PooledBuffer readAvailable(Socket socket, PooledBuffer buf, boolean failOnEof) throws IOException {
+        SocketChannel ch = socket.getChannel();
+        if(ch == null || socket.isClosed()) {
+            throw new EOFException("Socket closed: " + socket);
+        }
+        PooledBuffer probe = (buf != null ? buf : BufferPool.acquire(Config.directBuffers));
+        try {
+            ch.configureBlocking(false);
+            int len = 0;
+            while(probe.buffer().hasRemaining() && (len = ch.read(probe.buffer())) > 0) {
+                // read all arrived
+            }
+            if(len < 0 && failOnEof) {
+                throw new EOFException("END OF STREAM detected: " + socket);
+            }
+        } catch(IOException e) {
+            if(buf == null) {
+                probe.release();
+            }
+            throw e;
+        } finally {
+            if(ch.isOpen()) {
+                ch.configureBlocking(true);
+            }
+        }
+        if(buf == null && probe.buffer().position() == 0) {
+            probe.release();
+            return null;
+        }
+        return probe;
+    }
 }